@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.Date;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Outcome and timing of single attempt of downloading uri.
+ * 
+ * @see AbsDownloadService#historySize()
+ * @see IDownloadService#getHistory(android.net.Uri)
+ */
+public class AUSyncerHistoryEntry implements Parcelable {
+
+	private final int mMessage;
+	private final int mAttempt;
+	private final long mStartTimeMs;
+	private final long mEndTimeMs;
+
+	public static final Parcelable.Creator<AUSyncerHistoryEntry> CREATOR = new Parcelable.Creator<AUSyncerHistoryEntry>() {
+		public AUSyncerHistoryEntry createFromParcel(Parcel in) {
+			return new AUSyncerHistoryEntry(in);
+		}
+
+		public AUSyncerHistoryEntry[] newArray(int size) {
+			return new AUSyncerHistoryEntry[size];
+		}
+	};
+
+	AUSyncerHistoryEntry(int message, int attempt, long startTimeMs,
+			long endTimeMs) {
+		mMessage = message;
+		mAttempt = attempt;
+		mStartTimeMs = startTimeMs;
+		mEndTimeMs = endTimeMs;
+	}
+
+	private AUSyncerHistoryEntry(Parcel in) {
+		mMessage = in.readInt();
+		mAttempt = in.readInt();
+		mStartTimeMs = in.readLong();
+		mEndTimeMs = in.readLong();
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeInt(mMessage);
+		dest.writeInt(mAttempt);
+		dest.writeLong(mStartTimeMs);
+		dest.writeLong(mEndTimeMs);
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	int getMessage() {
+		return mMessage;
+	}
+
+	public boolean isSuccess() {
+		return mMessage == AUSyncerStatus.SUCCESS;
+	}
+
+	public boolean isNoInternetConnection() {
+		return mMessage == AUSyncerStatus.NO_INTERNET_CONNECTION;
+	}
+
+	public boolean isInternalIssue() {
+		return mMessage == AUSyncerStatus.INTERNAL_ISSUE;
+	}
+
+	public boolean isCustomIssue() {
+		return mMessage == AUSyncerStatus.CUSTOM_ERROR;
+	}
+
+	public boolean isCancelled() {
+		return mMessage == AUSyncerStatus.CANCELLED;
+	}
+
+	public boolean isError() {
+		return mMessage != AUSyncerStatus.SUCCESS;
+	}
+
+	/**
+	 * Return number of attempt, see {@link AUSyncerStatus#getAttempt()}
+	 * 
+	 * @return attempt number starting from 1
+	 */
+	public int getAttempt() {
+		return mAttempt;
+	}
+
+	/**
+	 * Return time when task started, or when it finished if it was never
+	 * started
+	 * 
+	 * @return time in ms since epoch
+	 */
+	public long getStartTimeMs() {
+		return mStartTimeMs;
+	}
+
+	/**
+	 * Return time when task finished
+	 * 
+	 * @return time in ms since epoch
+	 */
+	public long getEndTimeMs() {
+		return mEndTimeMs;
+	}
+
+	/**
+	 * Return how long task was executed
+	 * 
+	 * @return duration in ms
+	 */
+	public long getDurationMs() {
+		return mEndTimeMs - mStartTimeMs;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof AUSyncerHistoryEntry)) {
+			return false;
+		}
+		AUSyncerHistoryEntry oo = (AUSyncerHistoryEntry) o;
+		return mMessage == oo.mMessage && mAttempt == oo.mAttempt
+				&& mStartTimeMs == oo.mStartTimeMs
+				&& mEndTimeMs == oo.mEndTimeMs;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = mMessage;
+		result = 31 * result + mAttempt;
+		result = 31 * result + (int) (mStartTimeMs ^ (mStartTimeMs >>> 32));
+		result = 31 * result + (int) (mEndTimeMs ^ (mEndTimeMs >>> 32));
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "Message: " + AUSyncerStatus.getMessageTypeString(mMessage)
+				+ ", Attempt: " + mAttempt + ", Start: "
+				+ new Date(mStartTimeMs) + ", Duration: " + getDurationMs()
+				+ "ms";
+	}
+}
@@ -25,25 +25,68 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.appunite.ausyncer.BuildConfig;
+
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.Log;
 
+/**
+ * Result of last download of uri.
+ *
+ * <p>
+ * Message object is kept in the form in which it was received: status read
+ * from parcel or {@link DownloadStatusStore} keeps serialized JSON and parses
+ * it only when one of <code>getMsgObject*</code> methods is called, status
+ * created with {@link JSONObject} serializes it only when it is written.
+ * Message object should not be modified after status is created.
+ * </p>
+ *
+ * <p>
+ * Errors of HTTP requests could be described by typed payload instead of
+ * JSON message object:
+ *
+ * <pre class="prettyprint">
+ * if (response.getStatusLine().getStatusCode() == 503) {
+ * 	return AUSyncerStatus.statusHttpError(503, retryAfterMs);
+ * }
+ * </pre>
+ *
+ * </p>
+ *
+ * <p>
+ * Statuses are equal when they are of the same kind, so for example every
+ * successful status is equal to {@link #statusNeverDownloaded()}.
+ * </p>
+ */
 @SuppressWarnings("UnusedDeclaration")
 public class AUSyncerStatus implements Parcelable {
 
+	private static final String TAG = AUSyncerStatus.class.getCanonicalName();
+
 	private static final String JSON_DEFAULT_ERROR = "ERROR";
 	private static final String JSON_DEFAULT_ERRORS = "ERRORS";
 
-	private static final int SUCCESS = 0;
+	static final int SUCCESS = 0;
 
-	private static final int NO_INTERNET_CONNECTION = 2;
-	private static final int INTERNAL_ISSUE = 3;
-	private static final int CUSTOM_ERROR = 5;
+	static final int NO_INTERNET_CONNECTION = 2;
+	static final int INTERNAL_ISSUE = 3;
+	static final int CUSTOM_ERROR = 5;
+	static final int CANCELLED = 6;
 
 	private final int mMessage;
 	private final long mStatusTimeMs;
-	private final JSONObject mMessageObject;
+	// at least one of them is set when status has message object
+	private volatile JSONObject mMessageObject;
+	private volatile String mMessageObjectStr;
 	private final long mLastDownloaded;
+	private final int mAttempt;
+	private final int mHttpCode;
+	private final long mRetryAfterMs;
+
+	// uri that was never downloaded has no status time
+	private static final AUSyncerStatus NEVER_DOWNLOADED = new AUSyncerStatus(
+			SUCCESS, 0L, -1L, (String) null, 1);
 
 	public static final Parcelable.Creator<AUSyncerStatus> CREATOR = new Parcelable.Creator<AUSyncerStatus>() {
 		public AUSyncerStatus createFromParcel(Parcel in) {
@@ -56,6 +99,11 @@ public class AUSyncerStatus implements Parcelable {
 	};
 
 	private AUSyncerStatus(int message, JSONObject msgObject) {
+		this(message, msgObject, -1, -1L);
+	}
+
+	private AUSyncerStatus(int message, JSONObject msgObject, int httpCode,
+			long retryAfterMs) {
 		mMessage = message;
 		mStatusTimeMs = System.currentTimeMillis();
 		mMessageObject = msgObject;
@@ -64,13 +112,48 @@ public class AUSyncerStatus implements Parcelable {
 		} else {
 			mLastDownloaded = -1L;
 		}
+		mAttempt = 1;
+		mHttpCode = httpCode;
+		mRetryAfterMs = retryAfterMs;
 	}
 
 	AUSyncerStatus(int message, long statusTimeMs, long lastDownloaded, JSONObject messageObject) {
+		this(message, statusTimeMs, lastDownloaded, messageObject, 1);
+	}
+
+	AUSyncerStatus(int message, long statusTimeMs, long lastDownloaded,
+			JSONObject messageObject, int attempt) {
 		mMessage = message;
 		mStatusTimeMs = statusTimeMs;
 		mMessageObject = messageObject;
 		mLastDownloaded = lastDownloaded;
+		mAttempt = attempt;
+		mHttpCode = -1;
+		mRetryAfterMs = -1L;
+	}
+
+	/**
+	 * Create status with message object that will be parsed on demand
+	 *
+	 * @param messageObjectStr
+	 *            serialized JSON message object or null
+	 */
+	AUSyncerStatus(int message, long statusTimeMs, long lastDownloaded,
+			String messageObjectStr, int attempt) {
+		this(message, statusTimeMs, lastDownloaded, messageObjectStr, attempt,
+				-1, -1L);
+	}
+
+	AUSyncerStatus(int message, long statusTimeMs, long lastDownloaded,
+			String messageObjectStr, int attempt, int httpCode,
+			long retryAfterMs) {
+		mMessage = message;
+		mStatusTimeMs = statusTimeMs;
+		mMessageObjectStr = messageObjectStr;
+		mLastDownloaded = lastDownloaded;
+		mAttempt = attempt;
+		mHttpCode = httpCode;
+		mRetryAfterMs = retryAfterMs;
 	}
 
 	private AUSyncerStatus(Parcel in) {
@@ -78,28 +161,27 @@ public class AUSyncerStatus implements Parcelable {
 		mStatusTimeMs = in.readLong();
         final boolean hasMessageObject = in.readByte() != 0;
         if (hasMessageObject) {
-            String messageObjectStr = in.readString();
-            try {
-                mMessageObject = new JSONObject(messageObjectStr);
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
-        } else {
-            mMessageObject = null;
+            mMessageObjectStr = in.readString();
         }
 		mLastDownloaded = in.readLong();
+		mAttempt = in.readInt();
+		mHttpCode = in.readInt();
+		mRetryAfterMs = in.readLong();
 	}
 
 	@Override
 	public void writeToParcel(Parcel dest, int flags) {
 		dest.writeInt(mMessage);
 		dest.writeLong(mStatusTimeMs);
-        final boolean hasMessageObject = mMessageObject != null;
-        dest.writeByte(hasMessageObject ? (byte)1 : (byte)0);
-        if (hasMessageObject) {
-            dest.writeString(mMessageObject.toString());
+        final String messageObjectStr = getMsgObjectStringOrNull();
+        dest.writeByte(messageObjectStr != null ? (byte)1 : (byte)0);
+        if (messageObjectStr != null) {
+            dest.writeString(messageObjectStr);
         }
 		dest.writeLong(mLastDownloaded);
+		dest.writeInt(mAttempt);
+		dest.writeInt(mHttpCode);
+		dest.writeLong(mRetryAfterMs);
 	}
 
 	@Override
@@ -111,9 +193,14 @@ public class AUSyncerStatus implements Parcelable {
 		return new AUSyncerStatus(SUCCESS, null);
 	}
 
-	static AUSyncerStatus statusNeverDownloaded() {
-		return new AUSyncerStatus(SUCCESS, System.currentTimeMillis(), -1L,
-				null);
+	/**
+	 * Status of uri that was never downloaded. Returned instance is shared
+	 * and its status time is 0.
+	 * 
+	 * @return never downloaded status
+	 */
+	public static AUSyncerStatus statusNeverDownloaded() {
+		return NEVER_DOWNLOADED;
 	}
 
 	public static AUSyncerStatus statusNoInternetConnection() {
@@ -135,7 +222,48 @@ public class AUSyncerStatus implements Parcelable {
 	public static AUSyncerStatus statusInternalIssue(Collection<String> errors) {
 		return new AUSyncerStatus(INTERNAL_ISSUE, fromStringsCollection(errors));
 	}
+
+	/**
+	 * Internal issue caused by unexpected HTTP response
+	 * 
+	 * @param httpCode
+	 *            HTTP status code of response
+	 * @return internal issue status
+	 */
+	public static AUSyncerStatus statusHttpError(int httpCode) {
+		return statusHttpError(httpCode, -1L);
+	}
+
+	/**
+	 * Internal issue caused by unexpected HTTP response that asked to retry
+	 * later. Retry is not scheduled before <code>retryAfterMs</code> even if
+	 * {@link RetryPolicy} gives shorter delay.
+	 * 
+	 * @param httpCode
+	 *            HTTP status code of response
+	 * @param retryAfterMs
+	 *            delay from Retry-After header in ms or -1 if there is none
+	 * @return internal issue status
+	 */
+	public static AUSyncerStatus statusHttpError(int httpCode,
+			long retryAfterMs) {
+		if (httpCode < 0)
+			throw new IllegalArgumentException("httpCode could not be negative");
+		if (retryAfterMs < -1L)
+			throw new IllegalArgumentException("retryAfterMs should be -1 or positive");
+
+		return new AUSyncerStatus(INTERNAL_ISSUE, null, httpCode, retryAfterMs);
+	}
 	
+	/**
+	 * Status of task that was cancelled or timed out before finish.
+	 * 
+	 * @return cancelled status
+	 */
+	public static AUSyncerStatus statusCancelled() {
+		return new AUSyncerStatus(CANCELLED, null);
+	}
+
 	public static AUSyncerStatus statusCustomError() {
 		return new AUSyncerStatus(CUSTOM_ERROR, null);
 	}
@@ -192,6 +320,10 @@ public class AUSyncerStatus implements Parcelable {
 		return mMessage == CUSTOM_ERROR;
 	}
 
+	public boolean isCancelled() {
+		return mMessage == CANCELLED;
+	}
+
 	public boolean isError() {
 		return mMessage != SUCCESS;
 	}
@@ -205,38 +337,70 @@ public class AUSyncerStatus implements Parcelable {
 	}
 
 	public JSONObject getMsgObjectOrNull() {
-		return mMessageObject;
+		JSONObject messageObject = mMessageObject;
+		if (messageObject != null || mMessageObjectStr == null) {
+			return messageObject;
+		}
+		// parsing twice by concurrent callers is harmless
+		try {
+			messageObject = new JSONObject(mMessageObjectStr);
+		} catch (JSONException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, "Wrong message object: " + mMessageObjectStr, e);
+			}
+			return null;
+		}
+		mMessageObject = messageObject;
+		return messageObject;
+	}
+
+	/**
+	 * Return message object as serialized JSON without parsing it
+	 *
+	 * @return serialized message object or null
+	 */
+	String getMsgObjectStringOrNull() {
+		String messageObjectStr = mMessageObjectStr;
+		if (messageObjectStr != null || mMessageObject == null) {
+			return messageObjectStr;
+		}
+		messageObjectStr = mMessageObject.toString();
+		mMessageObjectStr = messageObjectStr;
+		return messageObjectStr;
 	}
 	
 	public String getStringOrNull() {
-		if (mMessageObject == null) {
+		JSONObject messageObject = getMsgObjectOrNull();
+		if (messageObject == null) {
 			return null;
 		}
 		try {
-			return mMessageObject.getString(JSON_DEFAULT_ERROR);
+			return messageObject.getString(JSON_DEFAULT_ERROR);
 		} catch (JSONException e) {
 			throw null;
 		}
 	}
 
 	public String getMsgObjectAsStringOrThrow() {
-		if (mMessageObject == null) {
+		JSONObject messageObject = getMsgObjectOrNull();
+		if (messageObject == null) {
 			throw new IllegalStateException("There is no message data");
 		}
 		try {
-			return mMessageObject.getString(JSON_DEFAULT_ERROR);
+			return messageObject.getString(JSON_DEFAULT_ERROR);
 		} catch (JSONException e) {
 			throw new IllegalStateException(e);
 		}
 	}
 	
 	public Collection<String> getMsgObjectAsStringArrayOrNull() {
-		if (mMessageObject == null) {
+		JSONObject messageObject = getMsgObjectOrNull();
+		if (messageObject == null) {
 			return null;
 		}
 		try {
 			List<String> ret = new ArrayList<String>();
-			JSONArray jsonArray = mMessageObject.getJSONArray(JSON_DEFAULT_ERRORS);
+			JSONArray jsonArray = messageObject.getJSONArray(JSON_DEFAULT_ERRORS);
 			for (int i = 0; i < jsonArray.length(); i++) {
 				ret.add(jsonArray.getString(i));
 			}
@@ -247,12 +411,13 @@ public class AUSyncerStatus implements Parcelable {
 	}
 
 	public Collection<String> getMsgObjectAsStringArrayOrThrow() {
-		if (mMessageObject == null) {
+		JSONObject messageObject = getMsgObjectOrNull();
+		if (messageObject == null) {
 			throw new IllegalStateException("There is no message data");
 		}
 		try {
 			List<String> ret = new ArrayList<String>();
-			JSONArray jsonArray = mMessageObject.getJSONArray(JSON_DEFAULT_ERRORS);
+			JSONArray jsonArray = messageObject.getJSONArray(JSON_DEFAULT_ERRORS);
 			for (int i = 0; i < jsonArray.length(); i++) {
 				ret.add(jsonArray.getString(i));
 			}
@@ -265,6 +430,84 @@ public class AUSyncerStatus implements Parcelable {
 	public long getLastDownloaded() {
 		return mLastDownloaded;
 	}
+
+	/**
+	 * Return HTTP status code given to {@link #statusHttpError(int, long)}
+	 * 
+	 * @return HTTP status code or -1 if there is none
+	 */
+	public int getHttpCode() {
+		return mHttpCode;
+	}
+
+	/**
+	 * Return delay requested by server before next attempt
+	 * 
+	 * @return delay in ms or -1 if there is none
+	 */
+	public long getRetryAfterMs() {
+		return mRetryAfterMs;
+	}
+
+	/**
+	 * Return number of attempt that ended with this status. Greater than 1
+	 * when task was retried according to {@link RetryPolicy}.
+	 * 
+	 * @return attempt number starting from 1
+	 */
+	public int getAttempt() {
+		return mAttempt;
+	}
+
+	AUSyncerStatus withAttempt(int attempt) {
+		if (attempt == mAttempt) {
+			return this;
+		}
+		return copy(mLastDownloaded, attempt);
+	}
+
+	AUSyncerStatus withLastDownloaded(long lastDownloaded) {
+		if (lastDownloaded == mLastDownloaded) {
+			return this;
+		}
+		return copy(lastDownloaded, mAttempt);
+	}
+
+	private AUSyncerStatus copy(long lastDownloaded, int attempt) {
+		// copy keeps message object in the form that is already available
+		AUSyncerStatus status = new AUSyncerStatus(mMessage, mStatusTimeMs,
+				lastDownloaded, mMessageObjectStr, attempt, mHttpCode,
+				mRetryAfterMs);
+		status.mMessageObject = mMessageObject;
+		return status;
+	}
+
+	/**
+	 * Check if status has the same values, unlike {@link #equals(Object)}
+	 * which compares only kind of status
+	 * 
+	 * @param other
+	 *            other status or null
+	 * @return true if all values are the same
+	 */
+	boolean sameValues(AUSyncerStatus other) {
+		if (other == this) {
+			return true;
+		}
+		if (other == null) {
+			return false;
+		}
+		if (mMessage != other.mMessage || mStatusTimeMs != other.mStatusTimeMs
+				|| mLastDownloaded != other.mLastDownloaded
+				|| mAttempt != other.mAttempt || mHttpCode != other.mHttpCode
+				|| mRetryAfterMs != other.mRetryAfterMs) {
+			return false;
+		}
+		String messageObjectStr = getMsgObjectStringOrNull();
+		String otherMessageObjectStr = other.getMsgObjectStringOrNull();
+		return messageObjectStr == null ? otherMessageObjectStr == null
+				: messageObjectStr.equals(otherMessageObjectStr);
+	}
 	
 	@Override
 	public boolean equals(Object o) {
@@ -277,8 +520,14 @@ public class AUSyncerStatus implements Parcelable {
 		AUSyncerStatus oo = (AUSyncerStatus) o;
 		return this.mMessage == oo.mMessage;
 	}
+
+	@Override
+	public int hashCode() {
+		// consistent with equals that compares only kind of status
+		return mMessage;
+	}
 	
-	private static String getMessageTypeString(int message) {
+	static String getMessageTypeString(int message) {
 		switch (message) {
 		case SUCCESS:
 			return "success";
@@ -288,6 +537,8 @@ public class AUSyncerStatus implements Parcelable {
 			return "internal issue";
 		case CUSTOM_ERROR:
 			return "custom error";
+		case CANCELLED:
+			return "cancelled";
 		default:
 			return "wrong message type!!!";
 		}
@@ -297,8 +548,11 @@ public class AUSyncerStatus implements Parcelable {
 	public String toString() {
 		return "Message: " + getMessageTypeString(mMessage) +
                 ", Date: " + new Date(mStatusTimeMs) +
-                ", MessageObject: " + (mMessageObject == null ? null : mMessageObject.toString()) +
-                ", LastDownloaded: " + mLastDownloaded;
+                ", MessageObject: " + getMsgObjectStringOrNull() +
+                ", LastDownloaded: " + mLastDownloaded +
+                ", Attempt: " + mAttempt +
+                ", HttpCode: " + mHttpCode +
+                ", RetryAfter: " + mRetryAfterMs;
 	}
 	
 }
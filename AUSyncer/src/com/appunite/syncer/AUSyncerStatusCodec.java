@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import android.util.Base64;
+
+/**
+ * Compact versioned binary record of {@link AUSyncerStatus}.
+ *
+ * <p>
+ * Record version 2:
+ *
+ * <pre>
+ * byte    version
+ * int     message
+ * long    statusTimeMs
+ * long    lastDownloaded
+ * int     attempt
+ * int     httpCode or -1
+ * long    retryAfterMs or -1
+ * int     payload length in bytes or -1 if there is no payload
+ * byte[]  payload - message object as UTF-8 JSON
+ * </pre>
+ *
+ * Version 1 is the same without <code>httpCode</code> and
+ * <code>retryAfterMs</code>, it is still decoded.
+ * </p>
+ */
+final class AUSyncerStatusCodec {
+
+	static final byte VERSION = 2;
+	private static final byte VERSION_WITHOUT_HTTP = 1;
+
+	private static final int HEADER_SIZE = 1 + 4 + 8 + 8 + 4 + 4 + 8 + 4;
+	private static final String CHARSET = "UTF-8";
+
+	private AUSyncerStatusCodec() {
+	}
+
+	/**
+	 * Encode status to binary record
+	 *
+	 * @param status
+	 *            status to encode
+	 * @return record
+	 */
+	static byte[] encode(AUSyncerStatus status) {
+        if (status == null) throw new NullPointerException("status could not be null");
+
+		String messageObjectStr = status.getMsgObjectStringOrNull();
+		byte[] payload = messageObjectStr == null ? null
+				: toBytes(messageObjectStr);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+				+ (payload == null ? 0 : payload.length));
+		buffer.put(VERSION);
+		buffer.putInt(status.getMessage());
+		buffer.putLong(status.getStatusTimeMs());
+		buffer.putLong(status.getLastDownloaded());
+		buffer.putInt(status.getAttempt());
+		buffer.putInt(status.getHttpCode());
+		buffer.putLong(status.getRetryAfterMs());
+		if (payload == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(payload.length);
+			buffer.put(payload);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Decode status from binary record
+	 *
+	 * @param record
+	 *            record created by {@link #encode(AUSyncerStatus)}
+	 * @return status
+	 * @throws IllegalArgumentException
+	 *             when record is corrupted or has unknown version
+	 */
+	static AUSyncerStatus decode(byte[] record) {
+        if (record == null) throw new NullPointerException("record could not be null");
+
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		try {
+			byte version = buffer.get();
+			if (version != VERSION && version != VERSION_WITHOUT_HTTP) {
+				throw new IllegalArgumentException("Unknown record version: "
+						+ version);
+			}
+			int message = buffer.getInt();
+			long statusTimeMs = buffer.getLong();
+			long lastDownloaded = buffer.getLong();
+			int attempt = buffer.getInt();
+			int httpCode = -1;
+			long retryAfterMs = -1L;
+			if (version != VERSION_WITHOUT_HTTP) {
+				httpCode = buffer.getInt();
+				retryAfterMs = buffer.getLong();
+			}
+			int payloadLength = buffer.getInt();
+			if (payloadLength < -1 || payloadLength > buffer.remaining()) {
+				// length is checked before corrupted one is allocated
+				throw new IllegalArgumentException("Wrong payload length: "
+						+ payloadLength);
+			}
+			String messageObjectStr = null;
+			if (payloadLength >= 0) {
+				byte[] payload = new byte[payloadLength];
+				buffer.get(payload);
+				// payload is parsed by status only when it is needed
+				messageObjectStr = fromBytes(payload);
+			}
+			return new AUSyncerStatus(message, statusTimeMs, lastDownloaded,
+					messageObjectStr, attempt, httpCode, retryAfterMs);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Record is too short", e);
+		}
+	}
+
+	/**
+	 * Encode status to record that could be saved as string
+	 *
+	 * @param status
+	 *            status to encode
+	 * @return Base64 of record
+	 */
+	static String encodeToString(AUSyncerStatus status) {
+		return Base64.encodeToString(encode(status), Base64.NO_WRAP);
+	}
+
+	/**
+	 * Decode status from string created by
+	 * {@link #encodeToString(AUSyncerStatus)}
+	 *
+	 * @param record
+	 *            Base64 of record
+	 * @return status
+	 * @throws IllegalArgumentException
+	 *             when record is corrupted or has unknown version
+	 */
+	static AUSyncerStatus decodeFromString(String record) {
+        if (record == null) throw new NullPointerException("record could not be null");
+
+		return decode(Base64.decode(record, Base64.NO_WRAP));
+	}
+
+	private static byte[] toBytes(String str) {
+		try {
+			return str.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String fromBytes(byte[] bytes) {
+		try {
+			return new String(bytes, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Aggregated statuses of uri and all its descendants, i.e.
+ * <code>content://authority/example</code> and
+ * <code>content://authority/example/1</code>.
+ * 
+ * @see IDownloadService#getSubtreeStatus(android.net.Uri)
+ */
+public class AUSyncerSubtreeStatus implements Parcelable {
+
+	private final int mCount;
+	private final int mSuccessCount;
+	private final int mErrorCount;
+	private final int mInProgressCount;
+
+	public static final Parcelable.Creator<AUSyncerSubtreeStatus> CREATOR = new Parcelable.Creator<AUSyncerSubtreeStatus>() {
+		public AUSyncerSubtreeStatus createFromParcel(Parcel in) {
+			return new AUSyncerSubtreeStatus(in);
+		}
+
+		public AUSyncerSubtreeStatus[] newArray(int size) {
+			return new AUSyncerSubtreeStatus[size];
+		}
+	};
+
+	AUSyncerSubtreeStatus(int count, int successCount, int errorCount,
+			int inProgressCount) {
+		mCount = count;
+		mSuccessCount = successCount;
+		mErrorCount = errorCount;
+		mInProgressCount = inProgressCount;
+	}
+
+	private AUSyncerSubtreeStatus(Parcel in) {
+		mCount = in.readInt();
+		mSuccessCount = in.readInt();
+		mErrorCount = in.readInt();
+		mInProgressCount = in.readInt();
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeInt(mCount);
+		dest.writeInt(mSuccessCount);
+		dest.writeInt(mErrorCount);
+		dest.writeInt(mInProgressCount);
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	/**
+	 * Return number of uris in subtree that have status
+	 * 
+	 * @return number of uris
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Return number of uris in subtree which last status is success
+	 * 
+	 * @return number of uris
+	 */
+	public int getSuccessCount() {
+		return mSuccessCount;
+	}
+
+	/**
+	 * Return number of uris in subtree which last status is error
+	 * 
+	 * @return number of uris
+	 * @see AUSyncerStatus#isError()
+	 */
+	public int getErrorCount() {
+		return mErrorCount;
+	}
+
+	/**
+	 * Return number of uris in subtree that are queued or running
+	 * 
+	 * @return number of uris
+	 */
+	public int getInProgressCount() {
+		return mInProgressCount;
+	}
+
+	public boolean isInProgress() {
+		return mInProgressCount > 0;
+	}
+
+	public boolean hasErrors() {
+		return mErrorCount > 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof AUSyncerSubtreeStatus)) {
+			return false;
+		}
+		AUSyncerSubtreeStatus oo = (AUSyncerSubtreeStatus) o;
+		return mCount == oo.mCount && mSuccessCount == oo.mSuccessCount
+				&& mErrorCount == oo.mErrorCount
+				&& mInProgressCount == oo.mInProgressCount;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = mCount;
+		result = 31 * result + mSuccessCount;
+		result = 31 * result + mErrorCount;
+		result = 31 * result + mInProgressCount;
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "Count: " + mCount + ", Success: " + mSuccessCount
+				+ ", Errors: " + mErrorCount + ", In progress: "
+				+ mInProgressCount;
+	}
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.List;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ServiceConnection;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+/**
+ * Connection, lifecycle and reporting shared by {@link DownloadHelper} and
+ * {@link MultiDownloadHelper}. Subclass keeps state of its uris and combines
+ * it into one reported status.
+ *
+ * <p>
+ * All helpers of process share one {@link DownloadServiceConnection}, so
+ * service stays bound when one activity is paused and other one is resumed.
+ * Helper never waits for service on main thread. State of uris is read on
+ * background thread after connection, and until it is read status is
+ * reported from state read last time.
+ * </p>
+ * 
+ * <p>
+ * If service saves statuses in {@link MappedDownloadStatusStore} helper
+ * could read them directly, so last status is reported before service is
+ * connected:
+ * 
+ * <pre class="prettyprint">
+ * mDownloadHelper.setStatusStore(MappedDownloadStatusStore.open(this));
+ * </pre>
+ * 
+ * </p>
+ */
+@SuppressWarnings("UnusedDeclaration")
+@SuppressLint("HandlerLeak")
+public abstract class AbsDownloadHelper implements ServiceConnection {
+
+	private static class TaskFinished {
+		final Uri uri;
+		final AUSyncerStatus status;
+
+		TaskFinished(Uri uri, AUSyncerStatus status) {
+			this.uri = uri;
+			this.status = status;
+		}
+	}
+
+	private static class ServiceState {
+		final IDownloadService service;
+		final Object state;
+
+		ServiceState(IDownloadService service, Object state) {
+			this.service = service;
+			this.state = state;
+		}
+	}
+
+	private boolean mHaveLocalData = false;
+	private boolean mLocalDataIsEmpty = true;
+	// state pushed by service, accessed only from main thread
+	private boolean mHaveServiceState = false;
+	private boolean mHaveStoredState = false;
+	private DownloadStatusStore mStatusStore = null;
+
+	private final DownloadHelperStatus mDownloadHelperStatus;
+	final Context mContext;
+	final String mServiceActionName;
+
+	private DownloadServiceConnection mConnection = null;
+	private IDownloadService mDownloadService = null;
+	private IDownloadServiceCallback.Stub mCallback = new IDownloadServiceCallback.Stub() {
+
+		@Override
+		public void onTaskQueued(Uri uri) throws RemoteException {
+			sendFromService(MyHandler.MSG_TASK_IN_PROGRESS, uri);
+		}
+
+		@Override
+		public void onTaskStarted(Uri uri) throws RemoteException {
+			sendFromService(MyHandler.MSG_TASK_IN_PROGRESS, uri);
+		}
+
+		@Override
+		public void onTaskFinished(Uri uri, AUSyncerStatus status)
+				throws RemoteException {
+			sendFromService(MyHandler.MSG_TASK_FINISHED, new TaskFinished(
+					uri, status));
+		}
+	};
+	private boolean mIsActive = false;
+	private final ReportedStatus mReportedStatus = new ReportedStatus();
+	private long mReportThrottleMs = 0;
+	private long mLastReportTimeMs = 0;
+	private final MyHandler mMyHandler;
+
+	private class MyHandler extends Handler {
+
+		private static final int MSG_TASK_IN_PROGRESS = 0;
+		private static final int MSG_TASK_FINISHED = 1;
+		private static final int MSG_REPORT = 2;
+		private static final int MSG_SERVICE_STATE = 3;
+		private static final int MSG_SERVICE_DIED = 4;
+		private static final int MSG_STORED_STATE = 5;
+
+		public MyHandler(Looper looper) {
+			super(looper);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void handleMessage(Message msg) {
+			if (!mIsActive) {
+				return;
+			}
+			switch (msg.what) {
+			case MSG_REPORT:
+				setProgressStatus();
+				return;
+			case MSG_SERVICE_STATE:
+				ServiceState serviceState = (ServiceState) msg.obj;
+				if (serviceState.service != mDownloadService) {
+					// read from connection that is already closed
+					return;
+				}
+				mHaveServiceState = true;
+				setServiceState(serviceState.state);
+				setProgressStatus();
+				return;
+			case MSG_STORED_STATE:
+				if (mHaveServiceState) {
+					// service state is newer than the stored one
+					return;
+				}
+				mHaveStoredState = true;
+				setStoredStatuses((List<AUSyncerStatus>) msg.obj);
+				setProgressStatus();
+				return;
+			case MSG_SERVICE_DIED:
+				if (msg.obj == mDownloadService) {
+					reconnect();
+				}
+				return;
+			case MSG_TASK_IN_PROGRESS:
+				if (!onTaskInProgress((Uri) msg.obj)) {
+					return;
+				}
+				break;
+			case MSG_TASK_FINISHED:
+				TaskFinished finished = (TaskFinished) msg.obj;
+				if (!onTaskFinished(finished.uri, finished.status)) {
+					return;
+				}
+				break;
+			default:
+				throw new RuntimeException("no msg : " + msg.what);
+			}
+			scheduleProgressStatus();
+		}
+
+	}
+
+	AbsDownloadHelper(Context context, String serviceActionName,
+			DownloadHelperStatus downloadHelperStatus) {
+        if (context == null) throw new NullPointerException("Context could not be null");
+        if (serviceActionName == null) throw new NullPointerException(
+                "serviceActionName could not be null");
+        if (downloadHelperStatus == null) throw new NullPointerException(
+                "downloadHelperStatus could not be null");
+
+		mContext = context;
+		mServiceActionName = serviceActionName;
+		mDownloadHelperStatus = downloadHelperStatus;
+		mMyHandler = new MyHandler(context.getMainLooper());
+	}
+
+	/**
+	 * Return uris which callbacks are registered in service
+	 */
+	abstract List<Uri> observedUris();
+
+	/**
+	 * Read state of observed uris from service, called on background thread
+	 * after callback is registered
+	 *
+	 * @return state passed to {@link #setServiceState(Object)}
+	 */
+	abstract Object readServiceState(IDownloadService service)
+			throws RemoteException;
+
+	/**
+	 * Take state read by {@link #readServiceState(IDownloadService)}, called
+	 * on main thread
+	 */
+	abstract void setServiceState(Object state);
+
+	/**
+	 * Take last statuses of observed uris read from status store, called on
+	 * main thread only until state of service is read
+	 *
+	 * @param statuses
+	 *            statuses in order of {@link #observedUris()}
+	 */
+	abstract void setStoredStatuses(List<AUSyncerStatus> statuses);
+
+	/**
+	 * Called on main thread when task of uri was queued or started
+	 *
+	 * @return true if state of helper changed
+	 */
+	abstract boolean onTaskInProgress(Uri uri);
+
+	/**
+	 * Called on main thread when task of uri finished
+	 *
+	 * @return true if state of helper changed
+	 */
+	abstract boolean onTaskFinished(Uri uri, AUSyncerStatus status);
+
+	/**
+	 * Return true if any of observed uris is in progress
+	 */
+	abstract boolean isInProgress();
+
+	/**
+	 * Return status reported to observer, or null if it is not known
+	 */
+	abstract AUSyncerStatus getReportedLastStatus();
+
+	/**
+	 * Request download of observed uris through connected service
+	 */
+	abstract void requestDownload(IDownloadService service, Bundle bundle,
+			boolean withForce) throws RemoteException;
+
+	/**
+	 * Request download of observed uris when helper is not resumed
+	 */
+	abstract void startAsyncDownload(Bundle bundle, boolean withForce);
+
+	/**
+	 * Called when helper is resumed, before state is reported
+	 */
+	void onResume() {
+	}
+
+	/**
+	 * Set store from which last statuses are read while service is not
+	 * connected. Store should be shared with service, i.e.
+	 * {@link MappedDownloadStatusStore#open(Context)} when
+	 * {@link AbsDownloadService#createStatusStore()} returns it. Store is
+	 * only read, so it is never closed by helper.
+	 *
+	 * @param statusStore
+	 *            store or <code>null</code> to wait for service
+	 */
+	public void setStatusStore(DownloadStatusStore statusStore) {
+		mStatusStore = statusStore;
+	}
+
+	/**
+	 * Initialize helper. Should be called in {@link Activity#onResume}.
+	 */
+	public void onActivityResume() {
+        if (mIsActive) {
+            throw new IllegalStateException("Download helper already resumed");
+        }
+		mIsActive = true;
+		// views could be changed while helper was paused
+		mReportedStatus.reset();
+		onResume();
+
+		mConnection = DownloadServiceConnection.obtain(mContext,
+				mServiceActionName);
+		try {
+			mConnection.acquire(this);
+		} catch (IllegalArgumentException e) {
+			mIsActive = false;
+			throw e;
+		}
+		// state of service is read in background, report last known one
+		setProgressStatus();
+		if (!mHaveServiceState && mStatusStore != null) {
+			readStoredStatuses(mStatusStore);
+		}
+	}
+
+	private void readStoredStatuses(final DownloadStatusStore statusStore) {
+		// store could read from disk, so main thread does not wait
+		DownloadServiceConnection.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				List<AUSyncerStatus> statuses = statusStore
+						.getLastStatuses(observedUris());
+				mMyHandler.obtainMessage(MyHandler.MSG_STORED_STATE, statuses)
+						.sendToTarget();
+			}
+		});
+	}
+
+	/**
+	 * Pause helper. Should be called in {@link Activity#onPause}.
+	 */
+	public void onActivityPause() {
+        if (!mIsActive) {
+            throw new IllegalStateException("Download helper not resumed");
+        }
+		mIsActive = false;
+		if (mDownloadService != null) {
+			final IDownloadService downloadService = mDownloadService;
+			// after registration, because tasks are run in order
+			DownloadServiceConnection.runInBackground(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						downloadService.unregisterCallback(mCallback);
+					} catch (RemoteException ignored) {
+						// service is dead so callback is already removed
+					}
+				}
+			});
+			mDownloadService = null;
+		}
+		mConnection.release(this);
+		mConnection = null;
+		mMyHandler.removeMessages(MyHandler.MSG_TASK_IN_PROGRESS);
+		mMyHandler.removeMessages(MyHandler.MSG_TASK_FINISHED);
+		mMyHandler.removeMessages(MyHandler.MSG_REPORT);
+		mMyHandler.removeMessages(MyHandler.MSG_SERVICE_STATE);
+		mMyHandler.removeMessages(MyHandler.MSG_SERVICE_DIED);
+		mMyHandler.removeMessages(MyHandler.MSG_STORED_STATE);
+	}
+
+	/**
+	 * Informs helper that your data was loaded/unloaded
+	 *
+	 * @param haveLocalData
+	 *            <code>true</code> if your data was downloaded,
+	 *            <code>false</code> otherwise
+	 * @param dataIsEmpty
+	 *            <code>true</code> if downloaded data was empty,
+	 *            <code>false</code> otherwise. This value is only read if
+	 *            <code>haveLocalData == true</code>
+	 */
+	public void updateLocalData(boolean haveLocalData, boolean dataIsEmpty) {
+		mHaveLocalData = haveLocalData;
+		mLocalDataIsEmpty = dataIsEmpty;
+		if (mIsActive) {
+			setProgressStatus();
+		}
+	}
+
+	/**
+	 * Simple wrapper for {@link #updateLocalData(boolean, boolean)} that can
+	 * be used with cursor.
+	 *
+	 * <p>
+	 * In Example:
+	 *
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * public void onLoadFinished(Loader&lt;Cursor&gt; loader, Cursor cursor) {
+	 * 	mDownloadHelper.updateLocalData(cursor);
+	 * 	mAdapter.swapCursor(cursor);
+	 * }
+	 *
+	 * &#064;Override
+	 * public void onLoaderReset(Loader&lt;Cursor&gt; loader) {
+	 * 	mDownloadHelper.updateLocalData(null);
+	 * 	mAdapter.swapCursor(null);
+	 * }
+	 * </pre>
+	 *
+	 * </p>
+	 *
+	 * @param cursor
+	 *            <code>cursor</code> if your data was loaded, <code>null</code>
+	 *            otherwise
+	 */
+	public void updateLocalData(Cursor cursor) {
+		boolean haveLocalData = cursor != null;
+		boolean dataIsEmpty = cursor == null || cursor.getCount() == 0;
+		this.updateLocalData(haveLocalData, dataIsEmpty);
+	}
+
+	/**
+	 * Request download of observed data. Usually should be invoked
+	 * <code>startDownloading(null, false)</code> in {@link Activity#onResume}
+	 * and <code>startDownloading(null, true)</code> while user pushes refresh
+	 * button.
+	 *
+	 * @param bundle
+	 *            data that should be delivered to subclass of
+	 *            {@link AbsDownloadService}.
+	 * @param withForce
+	 *            should downloading be performed even if the refresh time has
+	 *            not expired
+	 */
+	public void startDownloading(final Bundle bundle, final boolean withForce) {
+        if (mIsActive) {
+            // executed on background thread when service is connected
+            mConnection.execute(new DownloadServiceConnection.ServiceRequest() {
+
+                @Override
+                public void run(IDownloadService service)
+                        throws RemoteException {
+                    requestDownload(service, bundle, withForce);
+                }
+            });
+            if (mDownloadService != null) {
+                // progress will be pushed by service if task was queued
+                setProgressStatus();
+            }
+        } else {
+            startAsyncDownload(bundle, withForce);
+        }
+	}
+
+	private void reconnect() {
+		mDownloadService = null;
+		mConnection.reconnect();
+		setProgressStatus();
+	}
+
+	/**
+	 * Send message from service callback. Message goes through background
+	 * thread so it is never handled before state that was read after
+	 * registration of callback.
+	 */
+	private void sendFromService(final int what, final Object obj) {
+		DownloadServiceConnection.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				mMyHandler.obtainMessage(what, obj).sendToTarget();
+			}
+		});
+	}
+
+	@Override
+	public void onServiceConnected(ComponentName name, IBinder service) {
+		final IDownloadService downloadService = IDownloadService.Stub
+				.asInterface(service);
+		mDownloadService = downloadService;
+		// service could read statuses from disk, so main thread does not wait
+		DownloadServiceConnection.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				Object state;
+				try {
+					// register before reading state so no change is missed
+					downloadService.registerCallback(mCallback,
+							observedUris(), false);
+					state = readServiceState(downloadService);
+				} catch (RemoteException e) {
+					mMyHandler.obtainMessage(MyHandler.MSG_SERVICE_DIED,
+							downloadService).sendToTarget();
+					return;
+				}
+				mMyHandler.obtainMessage(MyHandler.MSG_SERVICE_STATE,
+						new ServiceState(downloadService, state))
+						.sendToTarget();
+			}
+		});
+	}
+
+	@Override
+	public void onServiceDisconnected(ComponentName name) {
+		mDownloadService = null;
+	}
+
+	/**
+	 * Set minimal time between reports caused by service. Changes that come
+	 * sooner are reported together when time passes, so burst of finished
+	 * tasks causes single report. Changes of local data are always reported
+	 * immediately.
+	 *
+	 * @param reportThrottleMs
+	 *            time in ms, <code>0</code> to report every change
+	 *            immediately
+	 */
+	public void setReportThrottle(long reportThrottleMs) {
+		if (reportThrottleMs < 0)
+			throw new IllegalArgumentException("reportThrottleMs could not be negative");
+
+		mReportThrottleMs = reportThrottleMs;
+	}
+
+	private void scheduleProgressStatus() {
+		if (mMyHandler.hasMessages(MyHandler.MSG_REPORT)) {
+			// change will be reported with already scheduled report
+			return;
+		}
+		long reportTimeMs = mLastReportTimeMs + mReportThrottleMs;
+		if (mReportThrottleMs == 0 || SystemClock.uptimeMillis() >= reportTimeMs) {
+			setProgressStatus();
+		} else {
+			mMyHandler.sendEmptyMessageAtTime(MyHandler.MSG_REPORT, reportTimeMs);
+		}
+	}
+
+	/**
+	 * Report status to observer if it changed since last report
+	 */
+	protected void setProgressStatus() {
+		boolean screenProgress;
+		boolean progressIndicator;
+		boolean screenVisible;
+		boolean screenEmpty;
+
+		AUSyncerStatus lastStatus;
+
+		// state read last time is used until service is connected again
+		if ((!mHaveServiceState && !mHaveStoredState) || !mHaveLocalData) {
+			lastStatus = AUSyncerStatus.statusNeverDownloaded();
+			progressIndicator = true;
+			screenProgress = true;
+			screenVisible = false;
+			screenEmpty = false;
+		} else {
+			boolean isInProgress = isInProgress();
+
+			lastStatus = getReportedLastStatus();
+			if (lastStatus == null) {
+				lastStatus = AUSyncerStatus.statusNeverDownloaded();
+			}
+
+			boolean hasDownloadedData = !lastStatus.isNeverDownloaded();
+
+			progressIndicator = isInProgress;
+			screenProgress = !hasDownloadedData && isInProgress && mLocalDataIsEmpty;
+			screenVisible = !mLocalDataIsEmpty;
+			screenEmpty = hasDownloadedData && mLocalDataIsEmpty;
+		}
+
+		if (!mReportedStatus.update(screenVisible, screenEmpty, screenProgress,
+				progressIndicator, lastStatus)) {
+			// nothing changed since last report
+			return;
+		}
+		mMyHandler.removeMessages(MyHandler.MSG_REPORT);
+		mLastReportTimeMs = SystemClock.uptimeMillis();
+		mDownloadHelperStatus.onReportStatus(screenVisible, screenEmpty,
+				screenProgress, progressIndicator, lastStatus);
+	}
+}
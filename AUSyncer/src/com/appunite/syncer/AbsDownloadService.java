@@ -16,12 +16,24 @@
 
 package com.appunite.syncer;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.annotation.SuppressLint;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -30,7 +42,10 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
 
 /**
@@ -99,6 +114,27 @@ import android.text.format.DateUtils;
  * <ul>
  * <li>{@link AbsDownloadService#forceDownload(Uri, long, long)}</li>
  * <li>{@link AbsDownloadService#taskWakeLockTimeout(Uri, Bundle)}</li>
+ * <li>{@link AbsDownloadService#batchWakeLockTimeout()}</li>
+ * <li>{@link AbsDownloadService#batchWakeLockIdleTime()}</li>
+ * <li>{@link AbsDownloadService#onQueueDrained(int, long)}</li>
+ * <li>{@link AbsDownloadService#createStatusStore()}</li>
+ * <li>{@link AbsDownloadService#statusFlushDelay()}</li>
+ * <li>{@link AbsDownloadService#maxPendingStatuses()}</li>
+ * <li>{@link AbsDownloadService#maxCachedStatuses()}</li>
+ * <li>{@link AbsDownloadService#preloadStatuses()}</li>
+ * <li>{@link AbsDownloadService#broadcastStatusChanges()}</li>
+ * <li>{@link AbsDownloadService#historySize()}</li>
+ * <li>{@link AbsDownloadService#maxHistoryBytes()}</li>
+ * <li>{@link AbsDownloadService#statusTimeToLive()}</li>
+ * <li>{@link AbsDownloadService#maxStatuses()}</li>
+ * <li>{@link AbsDownloadService#taskTimeout(Uri, Bundle)}</li>
+ * <li>{@link AbsDownloadService#retryPolicy(Uri, Bundle)}</li>
+ * <li>{@link AbsDownloadService#deferTasksWhileOffline()}</li>
+ * <li>{@link AbsDownloadService#isConnected()}</li>
+ * <li>{@link AbsDownloadService#maxConcurrentTasks()}</li>
+ * <li>{@link AbsDownloadService#taskGroup(Uri, Bundle)}</li>
+ * <li>{@link AbsDownloadService#maxConcurrentTasksInGroup(int)}</li>
+ * <li>{@link AbsDownloadService#priorityAgingTime()}</li>
  * </ul>
  * </p>
  * 
@@ -108,28 +144,73 @@ import android.text.format.DateUtils;
 public abstract class AbsDownloadService extends Service {
 
     public static final int DEFAULT_FORCE_UPDATE_TIME_MS = 10000;
+	public static final int DEFAULT_MAX_CONCURRENT_TASKS = 1;
+	public static final int NO_TASK_GROUP = -1;
+	public static final long DEFAULT_PRIORITY_AGING_TIME_MS = 30000;
+	public static final long DEFAULT_BATCH_WAKE_LOCK_IDLE_TIME_MS = 1000;
+	public static final long DEFAULT_STATUS_FLUSH_DELAY_MS = 500;
+	public static final int DEFAULT_MAX_PENDING_STATUSES = 32;
+	public static final long DEFAULT_MAX_HISTORY_BYTES = 64 * 1024;
+
+	/**
+	 * Priority of bulk synchronization that user is not waiting for. Default
+	 * priority of {@link DownloadHelper#startAsyncDownload}.
+	 */
+	public static final int PRIORITY_BACKGROUND = 0;
+	/**
+	 * Priority of data that user is looking at. Default priority of
+	 * {@link DownloadHelper#startDownloading(Bundle, boolean)}.
+	 */
+	public static final int PRIORITY_FOREGROUND = 1;
+	/**
+	 * Priority of request that does not specify it, both by intent and by
+	 * {@link IDownloadService#download(Uri, Bundle, boolean)}.
+	 */
+	public static final int DEFAULT_PRIORITY = PRIORITY_FOREGROUND;
 	public static final String ON_PROGRESS_CHANGE_EXTRA_URI = "extra_uri";
 	public static final String ON_PROGRESS_CHANGEEXTRA_IS_STATUS = "extra_status";
 	public static final String ON_PROGRESS_CHANGE = "com.appunite.syncer.ON_PROGRESS_CHANGE";
+	// receivers of sender process get status directly, not by broadcast
+	static final String ON_PROGRESS_CHANGE_EXTRA_SENDER_PID = "extra_sender_pid";
 	
 	public static final String EXTRA_URI = "extra_uri";
 	public static final String EXTRA_BUNDLE = "extra_bundle";
 	public static final String EXTRA_WITH_FORCE = "extra_with_force";
+	public static final String EXTRA_PRIORITY = "extra_priority";
 
     private static final int STOP_SELF_MESSAGE = 0;
+    private static final int TASK_TIMEOUT_MESSAGE = 1;
+    private static final int RETRY_MESSAGE = 2;
+    private static final int DRAIN_IDLE_MESSAGE = 3;
+    private static final int EVICT_MESSAGE = 4;
+
+	private static final int TASK_QUEUED = 0;
+	private static final int TASK_STARTED = 1;
+	private static final int TASK_FINISHED = 2;
+    private static final String HISTORY_FILE_NAME = "download_history";
+    // eviction does not compete with tasks requested at service start
+    private static final long EVICTION_DELAY_MILLIS = DateUtils.SECOND_IN_MILLIS * 10;
+    private static final long EVICTION_INTERVAL_MILLIS = DateUtils.HOUR_IN_MILLIS;
     private static final long INACTIVITY_TIME_MILLIS = DateUtils.MINUTE_IN_MILLIS * 5;
 
     private static class MyThread extends Thread {
 		private final AbsDownloadService mDownloadService;
+		private final PowerManager.WakeLock mWakeLock;
 
-		public MyThread(AbsDownloadService downloadService, String threadName) {
+		public MyThread(AbsDownloadService downloadService, String threadName,
+				PowerManager.WakeLock wakeLock) {
 			super(threadName);
 			this.mDownloadService = downloadService;
+			this.mWakeLock = wakeLock;
 		}
 
 		@Override
 		public void run() {
-			mDownloadService.run();
+			try {
+				mDownloadService.run();
+			} finally {
+				mDownloadService.onWorkerExit();
+			}
 		}
 	}
 
@@ -138,8 +219,93 @@ public abstract class AbsDownloadService extends Service {
 		public Uri uri;
 		public Bundle bundle;
 		public boolean withForce;
-		public int startId;
+		public int priority;
+		public int attempt = 1;
+		public ArrayList<Integer> startIds = new ArrayList<Integer>(1);
+		public int group;
+		public int groupLimit;
+		public boolean running;
+		public boolean deferred;
+		public boolean finished;
+		public boolean cancelled;
+		public Thread thread;
+		public PowerManager.WakeLock wakeLock;
+		// forced request that came while task was running
+		public Task followUp;
+		// request that came after running task was cancelled and waits until
+		// its onHandleUri returns
+		public Task waiting;
+		public boolean blocked;
+		// task with lower order is executed first
+		public long order;
+		public long sequence;
+		public long startTimeMs = -1;
+
+	}
+
+	private static class Retry {
+
+		public Uri uri;
+		public Bundle bundle;
+		public boolean withForce;
+		public int priority;
+		public int attempt;
+
+	}
+
+	private static final Comparator<Task> TASK_ORDER = new Comparator<Task>() {
+
+		@Override
+		public int compare(Task lhs, Task rhs) {
+			if (lhs.order != rhs.order) {
+				return lhs.order < rhs.order ? -1 : 1;
+			}
+			if (lhs.sequence != rhs.sequence) {
+				return lhs.sequence < rhs.sequence ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	private static class CallbackFilter {
+
+		public final List<Uri> uris;
+		public final boolean withDescendants;
+
+		public CallbackFilter(List<Uri> uris, boolean withDescendants) {
+			this.uris = uris;
+			this.withDescendants = withDescendants;
+		}
+
+		public boolean matches(Uri uri) {
+			for (Uri filterUri : uris) {
+				if (filterUri.equals(uri)) {
+					return true;
+				}
+				if (withDescendants && isDescendant(filterUri, uri)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static boolean isDescendant(Uri parent, Uri uri) {
+			if (!equals(parent.getScheme(), uri.getScheme())
+					|| !equals(parent.getAuthority(), uri.getAuthority())) {
+				return false;
+			}
+			List<String> parentSegments = parent.getPathSegments();
+			List<String> segments = uri.getPathSegments();
+			if (parentSegments.size() >= segments.size()) {
+				return false;
+			}
+			return parentSegments.equals(
+					segments.subList(0, parentSegments.size()));
+		}
 
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
 	}
 
     private class StopHandler extends Handler {
@@ -153,7 +319,31 @@ public abstract class AbsDownloadService extends Service {
             super.handleMessage(msg);
             switch (msg.what){
                 case STOP_SELF_MESSAGE :
-                    stopSelf();
+                    stopSelfIfInactive();
+                    break;
+                case TASK_TIMEOUT_MESSAGE :
+                    final Task task = (Task) msg.obj;
+                    if (markCancelled(task)) {
+                        // status of cancelled task is written and reported
+                        // off main thread
+                        mStatusStore.runInBackground(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                finishTask(task,
+                                        AUSyncerStatus.statusCancelled());
+                            }
+                        });
+                    }
+                    break;
+                case RETRY_MESSAGE :
+                    retry((Retry) msg.obj);
+                    break;
+                case DRAIN_IDLE_MESSAGE :
+                    finishDrain(false);
+                    break;
+                case EVICT_MESSAGE :
+                    startEviction();
                     break;
                 default: throw new RuntimeException("no msg : " + msg.what);
             }
@@ -178,6 +368,15 @@ public abstract class AbsDownloadService extends Service {
 			AbsDownloadService.this.download(uri, bundle, withForce);
 		}
 
+		@Override
+		public void downloadWithPriority(Uri uri, Bundle bundle,
+				boolean withForce, int priority) throws RemoteException {
+            if (uri == null) throw new NullPointerException("Uri could not be null");
+
+			AbsDownloadService.this.download(uri, bundle, withForce, -1,
+					priority);
+		}
+
 
 		@Override
 		public AUSyncerStatus getLastStatus(Uri uri) throws RemoteException {
@@ -186,19 +385,171 @@ public abstract class AbsDownloadService extends Service {
 			return AbsDownloadService.this.getLastStatus(uri);
 		}
 
+		@Override
+		public boolean[] inProgressAll(List<Uri> uris) throws RemoteException {
+            if (uris == null) throw new NullPointerException("uris could not be null");
+
+			return AbsDownloadService.this.inProgress(uris);
+		}
+
+		@Override
+		public void downloadAll(List<Uri> uris, Bundle bundle,
+				boolean withForce, int priority) throws RemoteException {
+            if (uris == null) throw new NullPointerException("uris could not be null");
+
+			AbsDownloadService.this.download(uris, bundle, withForce, priority);
+		}
+
+		@Override
+		public List<AUSyncerStatus> getLastStatuses(List<Uri> uris)
+				throws RemoteException {
+            if (uris == null) throw new NullPointerException("uris could not be null");
+
+			return AbsDownloadService.this.getLastStatuses(uris);
+		}
+
+		@Override
+		public boolean cancel(Uri uri) throws RemoteException {
+            if (uri == null) throw new NullPointerException("uri could not be null");
+
+			return AbsDownloadService.this.cancel(uri);
+		}
+
+		@Override
+		public void registerCallback(IDownloadServiceCallback callback,
+				List<Uri> uris, boolean withDescendants)
+				throws RemoteException {
+            if (callback == null) throw new NullPointerException("callback could not be null");
+            if (uris == null) throw new NullPointerException("uris could not be null");
+
+			mCallbacks.register(callback, new CallbackFilter(uris,
+					withDescendants));
+		}
+
+		@Override
+		public void unregisterCallback(IDownloadServiceCallback callback)
+				throws RemoteException {
+            if (callback == null) throw new NullPointerException("callback could not be null");
+
+			mCallbacks.unregister(callback);
+		}
+
+		@Override
+		public List<AUSyncerHistoryEntry> getHistory(Uri uri)
+				throws RemoteException {
+            if (uri == null) throw new NullPointerException("uri could not be null");
+
+			return AbsDownloadService.this.getHistory(uri);
+		}
+
+		@Override
+		public AUSyncerSubtreeStatus getSubtreeStatus(Uri prefix)
+				throws RemoteException {
+            if (prefix == null) throw new NullPointerException("prefix could not be null");
+
+			return AbsDownloadService.this.getSubtreeStatus(prefix);
+		}
+
+		@Override
+		public List<Uri> getFailedChildren(Uri prefix, int limit)
+				throws RemoteException {
+            if (prefix == null) throw new NullPointerException("prefix could not be null");
+
+			return AbsDownloadService.this.getFailedChildren(prefix, limit);
+		}
+
 	};
 	
 	protected AUSyncerStatus getLastStatus(Uri uri) {
         if (uri == null) throw new NullPointerException("uri could not be null");
 
-		return mDownloadSharedPreference.getLastStatus(uri);
+		return mStatusStore.getLastStatus(uri);
+	}
+
+	protected List<AUSyncerStatus> getLastStatuses(List<Uri> uris) {
+        if (uris == null) throw new NullPointerException("uris could not be null");
+
+		return mStatusStore.getLastStatuses(uris);
 	}
 
 	protected void setLastStatus(Uri uri, AUSyncerStatus status) {
         if (uri == null) throw new NullPointerException("uri could not be null");
         if (status == null) throw new NullPointerException("status could not be null");
 
-		mDownloadSharedPreference.setLastStatus(uri, status);
+		mStatusStore.setLastStatus(uri, status);
+		mStatusIndex.setStatus(uri, status);
+	}
+
+	/**
+	 * Return aggregated statuses of uri and all its descendants. First call
+	 * reads all statuses from store, following calls use index kept in
+	 * memory.
+	 * 
+	 * @param prefix
+	 *            root of subtree, i.e.
+	 *            <code>content://authority/example</code>
+	 * @return aggregated status
+	 */
+	protected AUSyncerSubtreeStatus getSubtreeStatus(Uri prefix) {
+        if (prefix == null) throw new NullPointerException("prefix could not be null");
+
+		return loadedStatusIndex().getSubtreeStatus(prefix);
+	}
+
+	/**
+	 * Return uri and its descendants which last status is error
+	 * 
+	 * @param prefix
+	 *            root of subtree, i.e.
+	 *            <code>content://authority/example</code>
+	 * @param limit
+	 *            maximal number of returned uris
+	 * @return failed uris
+	 */
+	protected List<Uri> getFailedChildren(Uri prefix, int limit) {
+        if (prefix == null) throw new NullPointerException("prefix could not be null");
+
+		return loadedStatusIndex().getFailedChildren(prefix, limit);
+	}
+
+	private StatusIndex loadedStatusIndex() {
+		synchronized (mStatusIndex) {
+			if (!mStatusIndex.isLoaded()) {
+				mStatusIndex.load(mStatusStore.getAllLastStatuses());
+			}
+		}
+		return mStatusIndex;
+	}
+
+	/**
+	 * Return recent attempts of downloading uri when history is enabled by
+	 * {@link #historySize()}. History saved by previous instance of service
+	 * is read in background, so right after service is created older entries
+	 * could be missing.
+	 * 
+	 * @param uri
+	 *            uri of data
+	 * @return entries starting from the newest one
+	 */
+	protected List<AUSyncerHistoryEntry> getHistory(Uri uri) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+
+		if (mHistory == null) {
+			return new ArrayList<AUSyncerHistoryEntry>(0);
+		}
+		return mHistory.get(uri);
+	}
+
+	private void addHistoryEntry(Task task, AUSyncerStatus status) {
+		if (mHistory == null) {
+			return;
+		}
+		long endTimeMs = System.currentTimeMillis();
+		// task that was not started took no time
+		long startTimeMs = task.startTimeMs == -1 ? endTimeMs
+				: task.startTimeMs;
+		mHistory.add(task.uri, new AUSyncerHistoryEntry(status.getMessage(),
+				status.getAttempt(), startTimeMs, endTimeMs));
 	}
 
 	/**
@@ -229,36 +580,308 @@ public abstract class AbsDownloadService extends Service {
 		return true;
 	}
 
+	/**
+	 * Decide what happens with task that needs network, according to
+	 * {@link #isNetworkNeeded(Uri, Bundle)}, while network is not available.
+	 * Default implementation returns <code>false</code> so task fails with
+	 * {@link AUSyncerStatus#statusNoInternetConnection()}.
+	 * 
+	 * <p>
+	 * When <code>true</code> is returned
+	 * {@link AUSyncerStatus#statusNoInternetConnection()} is still reported,
+	 * but task is parked and executed again in priority order as soon as
+	 * connection is back. Parked task is not in progress.
+	 * </p>
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return <code>true</code> if tasks should wait for network
+	 */
+	protected boolean deferTasksWhileOffline() {
+		return false;
+	}
+
+	/**
+	 * Return if device has internet connection. Result is cached, this method
+	 * is called in {@link #onCreate()} and on every connectivity change.
+	 * Default implementation asks {@link ConnectivityManager} for active
+	 * network, so ACCESS_NETWORK_STATE permission is needed.
+	 * 
+	 * <p>
+	 * If you override this method with your own notion of connectivity call
+	 * {@link #notifyConnectivityChanged()} when it changes.
+	 * </p>
+	 * 
+	 * @return <code>true</code> if internet connection is available
+	 */
+	protected boolean isConnected() {
+		ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo netInfo = cm.getActiveNetworkInfo();
+		return netInfo != null && netInfo.isConnected();
+	}
+
+	/**
+	 * Read connection state again with {@link #isConnected()}. When connection
+	 * is available tasks deferred by {@link #deferTasksWhileOffline()} are
+	 * queued again. Called automatically on connectivity change broadcast.
+	 */
+	protected void notifyConnectivityChanged() {
+		mHasInternetConnection = isConnected();
+		if (mHasInternetConnection) {
+			requeueDeferredTasks();
+		}
+	}
+
 	protected void download(Uri uri, Bundle bundle, boolean withForce) {
-		download(uri, bundle, withForce, -1);
+		download(uri, bundle, withForce, -1, DEFAULT_PRIORITY);
 	}
 	
 	protected void download(Uri uri, Bundle bundle, boolean withForce, int startId) {
+		download(uri, bundle, withForce, startId, DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Request download of given uri.
+	 * 
+	 * <p>
+	 * Tasks with higher priority are executed before tasks with lower
+	 * priority. To prevent starvation every task gains one priority level per
+	 * {@link #priorityAgingTime()} of waiting in queue.
+	 * </p>
+	 * 
+	 * @param uri
+	 *            uri to download
+	 * @param bundle
+	 *            data that will be given to
+	 *            {@link #onHandleUri(Uri, Bundle, boolean)}
+	 * @param withForce
+	 *            should downloading be performed even if the refresh time has
+	 *            not expired
+	 * @param startId
+	 *            start id of service or -1
+	 * @param priority
+	 *            priority of task i.e. {@link #PRIORITY_FOREGROUND} or
+	 *            {@link #PRIORITY_BACKGROUND}
+	 */
+	protected void download(Uri uri, Bundle bundle, boolean withForce,
+			int startId, int priority) {
+		download(uri, bundle, withForce, startId, priority, 1);
+	}
+
+	private void download(Uri uri, Bundle bundle, boolean withForce,
+			int startId, int priority, int attempt) {
         if (uri == null) throw new NullPointerException("Uri could not be null");
 
         notifyActive();
 
-		if (!withForce) {
-			AUSyncerStatus lastStatus = getLastStatus(uri);
-			if (lastStatus.isSuccess() && lastStatus.getLastDownloaded() != -1L) {
-				long currentTimeMillis = System.currentTimeMillis();
-				if (!forceDownload(uri, lastStatus.getStatusTimeMs(),
-						currentTimeMillis)) {
-					return;
+		if (!withForce && isUpToDate(uri, getLastStatus(uri))) {
+			return;
+		}
+		// every priority level is worth mAgingTime of waiting
+		long order = SystemClock.uptimeMillis() - priority * mAgingTime;
+		synchronized (this) {
+			if (mergeWithExistingTask(uri, bundle, withForce, startId,
+					priority, order)) {
+				return;
+			}
+		}
+		Task task = newTask(uri, bundle, withForce, startId, priority, order);
+		task.attempt = attempt;
+		synchronized (this) {
+			// other thread could add task while we were computing group
+			if (mergeWithExistingTask(uri, bundle, withForce, startId,
+					priority, order)) {
+				return;
+			}
+			addTask(task);
+			this.notifyAll();
+		}
+		dispatchTaskEvent(TASK_QUEUED, uri, null);
+	}
+
+	/**
+	 * Request download of several uris. Statuses of all uris are read at
+	 * once and all tasks are queued with single lock acquisition.
+	 * 
+	 * @param uris
+	 *            uris to download
+	 * @param bundle
+	 *            data that will be given to
+	 *            {@link #onHandleUri(Uri, Bundle, boolean)} for every uri
+	 * @param withForce
+	 *            should downloading be performed even if the refresh time has
+	 *            not expired
+	 * @param priority
+	 *            priority of tasks
+	 * @see #download(Uri, Bundle, boolean, int, int)
+	 */
+	protected void download(List<Uri> uris, Bundle bundle, boolean withForce,
+			int priority) {
+        if (uris == null) throw new NullPointerException("uris could not be null");
+
+        notifyActive();
+
+		List<AUSyncerStatus> lastStatuses = withForce ? null
+				: getLastStatuses(uris);
+		long order = SystemClock.uptimeMillis() - priority * mAgingTime;
+		ArrayList<Task> tasks = new ArrayList<Task>(uris.size());
+		for (int i = 0; i < uris.size(); i++) {
+			Uri uri = uris.get(i);
+            if (uri == null) throw new NullPointerException("Uri could not be null");
+			if (!withForce && isUpToDate(uri, lastStatuses.get(i))) {
+				continue;
+			}
+			tasks.add(newTask(uri, bundle, withForce, -1, priority, order));
+		}
+		if (tasks.isEmpty()) {
+			return;
+		}
+		ArrayList<Task> added = new ArrayList<Task>(tasks.size());
+		synchronized (this) {
+			for (Task task : tasks) {
+				if (!mergeWithExistingTask(task.uri, bundle, withForce, -1,
+						priority, order)) {
+					addTask(task);
+					added.add(task);
 				}
 			}
+			this.notifyAll();
+		}
+		for (Task task : added) {
+			dispatchTaskEvent(TASK_QUEUED, task.uri, null);
+		}
+	}
+
+	private boolean isUpToDate(Uri uri, AUSyncerStatus lastStatus) {
+		if (!lastStatus.isSuccess() || lastStatus.getLastDownloaded() == -1L) {
+			return false;
 		}
+		long currentTimeMillis = System.currentTimeMillis();
+		return !forceDownload(uri, lastStatus.getStatusTimeMs(),
+				currentTimeMillis);
+	}
+
+	private Task newTask(Uri uri, Bundle bundle, boolean withForce,
+			int startId, int priority, long order) {
         Task task = new Task();
 		task.uri = uri;
 		task.bundle = bundle;
 		task.withForce = withForce;
-		task.startId = startId;
-		synchronized (this) {
-			mQueue.add(task);
-			this.notifyAll();
+		task.priority = priority;
+		if (startId != -1) {
+			task.startIds.add(startId);
+		}
+		task.group = taskGroup(uri, bundle);
+		task.groupLimit = task.group == NO_TASK_GROUP ? Integer.MAX_VALUE
+				: maxConcurrentTasksInGroup(task.group);
+		task.order = order;
+		return task;
+	}
+
+	// call with this
+	private void addTask(Task task) {
+		task.sequence = mSequence++;
+		mTasks.put(task.uri, task);
+		mStatusIndex.setInProgress(task.uri, true);
+		// new request replaces scheduled retry
+		mRetries.remove(task.uri);
+		updateInUse(task.uri);
+		Task abandoned = mAbandoned.get(task.uri);
+		if (abandoned != null) {
+			// uri is not downloaded twice at the same time, so task waits
+			// until cancelled onHandleUri returns
+			task.blocked = true;
+			abandoned.waiting = task;
+		} else {
+			enqueue(task);
+		}
+	}
+
+	// call with this
+	private boolean mergeWithExistingTask(Uri uri, Bundle bundle,
+			boolean withForce, int startId, int priority, long order) {
+		Task task = mTasks.get(uri);
+		if (task == null) {
+			return false;
+		}
+		if (task.running && (withForce || task.followUp != null)) {
+			// running pass could have read data before it was changed, so
+			// forced request is executed again after it
+			mergeWithFollowUp(task, bundle, withForce, startId, priority,
+					order);
+			return true;
+		}
+		if (startId != -1) {
+			task.startIds.add(startId);
+		}
+		if (!task.running) {
+			// queued task is not started yet so it could take newest request
+			// arguments
+			task.withForce |= withForce;
+			if (bundle != null) {
+				task.bundle = bundle;
+			}
+			if (priority > task.priority) {
+				// task keeps time it already waited and gains priority of
+				// request, so it is not moved behind newer tasks
+				order = Math.min(order, task.order - (priority - task.priority)
+						* mAgingTime);
+				task.priority = priority;
+			}
+			if (order < task.order && task.blocked) {
+				task.order = order;
+			} else if (order < task.order) {
+				// queue is ordered when task is added, so it is added again
+				PriorityQueue<Task> queue = task.deferred ? mDeferred : mQueues
+						.get(task.group);
+				queue.remove(task);
+				task.order = order;
+				queue.add(task);
+			}
+		}
+		return true;
+	}
+
+	// call with this
+	private void mergeWithFollowUp(Task task, Bundle bundle,
+			boolean withForce, int startId, int priority, long order) {
+		Task followUp = task.followUp;
+		if (followUp == null) {
+			followUp = new Task();
+			followUp.uri = task.uri;
+			followUp.bundle = task.bundle;
+			followUp.priority = task.priority;
+			// the same uri stays in the same group
+			followUp.group = task.group;
+			followUp.groupLimit = task.groupLimit;
+			followUp.order = order;
+			task.followUp = followUp;
+		}
+		followUp.withForce |= withForce;
+		followUp.priority = Math.max(followUp.priority, priority);
+		if (bundle != null) {
+			followUp.bundle = bundle;
+		}
+		if (startId != -1) {
+			followUp.startIds.add(startId);
+		}
+		if (order < followUp.order) {
+			followUp.order = order;
 		}
 	}
 
+	// call with this
+	private void enqueue(Task task) {
+		PriorityQueue<Task> queue = mQueues.get(task.group);
+		if (queue == null) {
+			queue = new PriorityQueue<Task>(11, TASK_ORDER);
+			mQueues.put(task.group, queue);
+		}
+		queue.add(task);
+	}
+
 	/**
 	 * This method decides if the refresh should be executed when no force
 	 * request was indicated. Default implementation will return true if last
@@ -331,33 +954,556 @@ public abstract class AbsDownloadService extends Service {
 		return -1;
 	}
 
-	protected boolean inProgress(Uri uri) {
-        if (uri == null) throw new NullPointerException("uri could not be null");
-
-		synchronized (this) {
-			for (Task task : mQueue) {
-				if (task.uri.equals(uri))
-					return true;
-			}
-		}
-		return false;
+	/**
+	 * Return maximal time of {@link #onHandleUri(Uri, Bundle, boolean)}
+	 * execution for given uri. Task that runs longer is cancelled like by
+	 * {@link #cancel(Uri)}, its worker takes next task when interrupted
+	 * {@link #onHandleUri(Uri, Bundle, boolean)} returns. Default
+	 * implementation does not limit execution time.
+	 * 
+	 * <p>
+	 * Example implementation
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * protected long taskTimeout(Uri uri, Bundle bundle) {
+	 * 	return 60000;
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * @param uri
+	 *            that was requested to refresh
+	 * @param bundle
+	 *            data that was given
+	 * @return Return <code>x <= 0</code> to not limit execution time or
+	 *         <code>x > 0</code> to set timeout in ms
+	 */
+	protected long taskTimeout(Uri uri, Bundle bundle) {
+		return -1;
 	}
 
-	private MyThread thread = new MyThread(this, "DownloadService");
-
-	// protected with this
-	private ArrayList<Task> mQueue = new ArrayList<AbsDownloadService.Task>();
-	protected int mNumberOfListeners = 0;
-	private DownloadSharedPreference mDownloadSharedPreference;
-	private boolean mClose;
-	private PowerManager.WakeLock mWakeLock;
-    private Handler mStopHandler;
-
-
-	@Override
-	public IBinder onBind(Intent intent) {
-		synchronized (this) {
-			mNumberOfListeners++;
+	/**
+	 * Return how task for given uri should be retried when
+	 * {@link #onHandleUri(Uri, Bundle, boolean)} returns
+	 * {@link AUSyncerStatus#statusNoInternetConnection()} or
+	 * {@link AUSyncerStatus#statusInternalIssue()}. Retries are scheduled
+	 * without holding worker thread or wake lock and number of attempt is
+	 * reported by {@link AUSyncerStatus#getAttempt()}. New request for uri
+	 * replaces scheduled retry. Default implementation does not retry.
+	 * 
+	 * <p>
+	 * Example implementation
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * protected RetryPolicy retryPolicy(Uri uri, Bundle bundle) {
+	 * 	int match = sURIMatcher.match(uri);
+	 * 	if (match == EXAMPLE)
+	 * 		return new RetryPolicy(5, 2000, 60000, 0.5f);
+	 * 	else
+	 * 		return super.retryPolicy(uri, bundle);
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * @param uri
+	 *            that was requested to refresh
+	 * @param bundle
+	 *            data that was given
+	 * @return retry policy, not null
+	 */
+	protected RetryPolicy retryPolicy(Uri uri, Bundle bundle) {
+		return RetryPolicy.NO_RETRY;
+	}
+
+	/**
+	 * Return number of worker threads that execute
+	 * {@link #onHandleUri(Uri, Bundle, boolean)}. This is a global cap of
+	 * concurrently running tasks. Tasks for the same uri are never executed
+	 * concurrently, request for uri that is already queued or running is
+	 * merged into existing task. Forced request for uri that is running is
+	 * executed once more after running task finishes. Default
+	 * implementation returns {@value #DEFAULT_MAX_CONCURRENT_TASKS} so your
+	 * {@link #onHandleUri(Uri, Bundle, boolean)} does not have to be thread
+	 * safe.
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return number of worker threads, at least 1
+	 */
+	protected int maxConcurrentTasks() {
+		return DEFAULT_MAX_CONCURRENT_TASKS;
+	}
+
+	/**
+	 * Return group of given uri. Number of concurrently running tasks in one
+	 * group is limited by {@link #maxConcurrentTasksInGroup(int)}. Default
+	 * implementation returns {@link #NO_TASK_GROUP} so tasks are limited only
+	 * by {@link #maxConcurrentTasks()}.
+	 * 
+	 * <p>
+	 * Example implementation
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * protected int taskGroup(Uri uri, Bundle bundle) {
+	 * 	return sURIMatcher.match(uri);
+	 * }
+	 * 
+	 * &#064;Override
+	 * protected int maxConcurrentTasksInGroup(int group) {
+	 * 	if (group == EXAMPLE)
+	 * 		return 1;
+	 * 	else
+	 * 		return super.maxConcurrentTasksInGroup(group);
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * @param uri
+	 *            that was requested to refresh
+	 * @param bundle
+	 *            data that was given
+	 * @return group of uri or {@link #NO_TASK_GROUP}
+	 */
+	protected int taskGroup(Uri uri, Bundle bundle) {
+		return NO_TASK_GROUP;
+	}
+
+	/**
+	 * Return how many tasks from given group could be executed concurrently.
+	 * Default implementation does not limit groups.
+	 * 
+	 * @param group
+	 *            group returned by {@link #taskGroup(Uri, Bundle)}
+	 * @return maximal number of concurrently running tasks in group
+	 */
+	protected int maxConcurrentTasksInGroup(int group) {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Return how long task have to wait in queue to gain one priority level.
+	 * I.e. {@link #PRIORITY_BACKGROUND} task that waits longer than this time
+	 * will be executed before just requested {@link #PRIORITY_FOREGROUND}
+	 * task. Default implementation returns
+	 * {@value #DEFAULT_PRIORITY_AGING_TIME_MS}ms.
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return aging time in ms
+	 */
+	protected long priorityAgingTime() {
+		return DEFAULT_PRIORITY_AGING_TIME_MS;
+	}
+
+	/**
+	 * Return timeout of wake lock that is held for whole drain of queue -
+	 * from first started task until queue stays empty for
+	 * {@link #batchWakeLockIdleTime()}. While batch wake lock is held
+	 * {@link #taskWakeLockTimeout(Uri, Bundle)} wake locks are not acquired,
+	 * so device does not suspend between back-to-back tasks. After timeout
+	 * batch wake lock is released by system and following tasks of drain
+	 * falls back to {@link #taskWakeLockTimeout(Uri, Bundle)}. Default
+	 * implementation does not use batch wake lock.
+	 * 
+	 * <p>
+	 * Example implementation
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * protected long batchWakeLockTimeout() {
+	 * 	return 5 * 60000;
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}. Do not forget about
+	 * WAKE_LOCK permission.
+	 * </p>
+	 * 
+	 * @return Return <code>x < 0</code> to not use batch wake lock, or
+	 *         <code>0</code> to remove timeout, or <code>x > 0</code> to set
+	 *         overall deadline of drain in ms
+	 * @see #taskWakeLockTimeout(Uri, Bundle)
+	 */
+	protected long batchWakeLockTimeout() {
+		return -1;
+	}
+
+	/**
+	 * Return how long batch wake lock is kept after last task finished when
+	 * no other task is queued. New task that comes within this time continues
+	 * current drain. Default implementation returns
+	 * {@value #DEFAULT_BATCH_WAKE_LOCK_IDLE_TIME_MS}ms.
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return idle gap in ms
+	 * @see #batchWakeLockTimeout()
+	 */
+	protected long batchWakeLockIdleTime() {
+		return DEFAULT_BATCH_WAKE_LOCK_IDLE_TIME_MS;
+	}
+
+	/**
+	 * Called on main thread when batch wake lock is released after drain of
+	 * queue. Could be used for logging or measuring battery usage. Called only
+	 * when {@link #batchWakeLockTimeout()} enables batch wake lock.
+	 * 
+	 * @param tasks
+	 *            number of tasks started during drain
+	 * @param wakeLockHeldTimeMs
+	 *            how long batch wake lock was held in ms
+	 */
+	protected void onQueueDrained(int tasks, long wakeLockHeldTimeMs) {
+	}
+
+	/**
+	 * Return how statuses are written to disk. Statuses are always cached in
+	 * memory and visible immediately by {@link #getLastStatus(Uri)} and
+	 * {@link DownloadHelper}, but by default they are written in background
+	 * in groups collected for {@value #DEFAULT_STATUS_FLUSH_DELAY_MS}ms, so
+	 * worker does not wait for disk before next task. Pending statuses are
+	 * written before service stops itself and in {@link #onDestroy()}, but
+	 * could be lost if process is killed while service is working. When
+	 * {@link #createStatusStore()} returns {@link MappedDownloadStatusStore}
+	 * default implementation writes synchronously instead, so other processes
+	 * see status as soon as task finishes.
+	 * 
+	 * <p>
+	 * Example implementation that writes every status before next task
+	 * starts:
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * protected long statusFlushDelay() {
+	 * 	return -1;
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return Return <code>x < 0</code> to write synchronously, or
+	 *         <code>0</code> to write in background as soon as possible, or
+	 *         <code>x > 0</code> to group writes for given time in ms
+	 * @see CachedDownloadStatusStore
+	 */
+	protected long statusFlushDelay() {
+		if (mSharedStatusStore) {
+			return -1;
+		}
+		return DEFAULT_STATUS_FLUSH_DELAY_MS;
+	}
+
+	/**
+	 * Return how many statuses could wait for write. When group of pending
+	 * statuses reaches this size it is written at once without waiting for
+	 * {@link #statusFlushDelay()}. Default implementation returns
+	 * {@value #DEFAULT_MAX_PENDING_STATUSES}.
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return maximal number of pending statuses
+	 */
+	protected int maxPendingStatuses() {
+		return DEFAULT_MAX_PENDING_STATUSES;
+	}
+
+	/**
+	 * Return how many statuses are kept in memory. The least recently used
+	 * statuses above this number are read from store again when they are
+	 * requested. Default implementation returns
+	 * {@link CachedDownloadStatusStore#DEFAULT_MAX_CACHED_STATUSES}.
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return maximal number of cached statuses
+	 */
+	protected int maxCachedStatuses() {
+		return CachedDownloadStatusStore.DEFAULT_MAX_CACHED_STATUSES;
+	}
+
+	/**
+	 * Return how many recent attempts are remembered per uri. History could
+	 * be read by {@link IDownloadService#getHistory(Uri)} and is saved to
+	 * file together with statuses. Default implementation returns
+	 * <code>0</code> that disables history.
+	 * 
+	 * <p>
+	 * Example implementation
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * protected int historySize() {
+	 * 	return 10;
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return number of entries per uri
+	 * @see #maxHistoryBytes()
+	 */
+	protected int historySize() {
+		return 0;
+	}
+
+	/**
+	 * Return hard limit of memory used by history. Every remembered uri costs
+	 * as much as full history of {@link #historySize()} entries and least
+	 * recently used uris are forgotten when limit is reached. File with
+	 * history is never bigger than this limit. Default implementation
+	 * returns {@value #DEFAULT_MAX_HISTORY_BYTES} bytes.
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return limit in bytes
+	 */
+	protected long maxHistoryBytes() {
+		return DEFAULT_MAX_HISTORY_BYTES;
+	}
+
+	/**
+	 * Return how long status of uri is kept when uri is not requested again.
+	 * Stale statuses are evicted in background thread shortly after service
+	 * starts and then every hour while service is running. Statuses of
+	 * queued, running, deferred or retried uris are never evicted. Default
+	 * implementation does not evict statuses.
+	 * 
+	 * <p>
+	 * Example implementation
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * protected long statusTimeToLive() {
+	 * 	return DateUtils.WEEK_IN_MILLIS;
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * @return Return <code>x <= 0</code> to keep statuses forever or
+	 *         <code>x > 0</code> to set time to live in ms
+	 * @see #maxStatuses()
+	 */
+	protected long statusTimeToLive() {
+		return -1;
+	}
+
+	/**
+	 * Return how many statuses are kept. When there are more statuses the
+	 * least recently refreshed ones are evicted together with
+	 * {@link #statusTimeToLive()} eviction. Default implementation does not
+	 * limit number of statuses.
+	 * 
+	 * @return Return <code>x <= 0</code> to not limit statuses or
+	 *         <code>x > 0</code> to set maximal number of statuses
+	 */
+	protected int maxStatuses() {
+		return -1;
+	}
+
+	/**
+	 * Create store where last statuses are persisted. Default implementation
+	 * returns {@link DownloadSharedPreference} that is good for small number
+	 * of uris. Service that handles thousands of uris should use
+	 * {@link DownloadStatusDatabase}. Service that runs in other process than
+	 * its helpers could use {@link MappedDownloadStatusStore}, helpers read it
+	 * with {@link AbsDownloadHelper#setStatusStore(DownloadStatusStore)}
+	 * before service is connected.
+	 * 
+	 * <p>
+	 * Example implementation
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * protected DownloadStatusStore createStatusStore() {
+	 * 	return new DownloadStatusDatabase(this);
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()} and store is closed
+	 * after {@link #onDestroy()} when every worker returned from
+	 * {@link #onHandleUri(Uri, Bundle, boolean)}.
+	 * </p>
+	 * 
+	 * @return new store
+	 */
+	protected DownloadStatusStore createStatusStore() {
+		return new DownloadSharedPreference(this);
+	}
+
+	/**
+	 * Return true if finished tasks should be announced with
+	 * {@link #ON_PROGRESS_CHANGE} broadcast.
+	 * 
+	 * <p>
+	 * {@link DownloadHelper.DownloadReceiver} registered with
+	 * {@link DownloadHelper#registerDownloadReceiver(Context, DownloadHelper.DownloadReceiver)}
+	 * in process of service receives status directly and ignores broadcast,
+	 * helpers receive status by callback. Broadcast is needed only by
+	 * receivers in other processes or registered in other way.
+	 * </p>
+	 * 
+	 * <p>
+	 * Default implementation returns true. Service that has no such receivers
+	 * should return false, so no system-wide broadcast is sent.
+	 * </p>
+	 * 
+	 * @return true if broadcast should be sent
+	 */
+	protected boolean broadcastStatusChanges() {
+		return true;
+	}
+
+	/**
+	 * Return true if all statuses should be read into memory on background
+	 * thread as soon as service is created. Status requests that arrive
+	 * before statuses are read wait for it instead of reading store on their
+	 * own.
+	 * 
+	 * <p>
+	 * Default implementation returns true only when
+	 * {@link #createStatusStore()} returns {@link DownloadSharedPreference},
+	 * that keeps few statuses. Other stores are read when statuses are
+	 * requested, so service with many statuses does not read all of them on
+	 * every start. Only {@link #maxCachedStatuses()} statuses are preloaded.
+	 * </p>
+	 * 
+	 * <p>
+	 * This method is called once in {@link #onCreate()}.
+	 * </p>
+	 * 
+	 * @return true if statuses should be preloaded
+	 * @see CachedDownloadStatusStore#preload()
+	 */
+	protected boolean preloadStatuses() {
+		return mPreferenceStatusStore;
+	}
+
+	protected boolean inProgress(Uri uri) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+
+		synchronized (this) {
+			return isInProgress(mTasks.get(uri));
+		}
+	}
+
+	private static boolean isInProgress(Task task) {
+		// deferred task waits for connection and its status is already
+		// reported as no internet connection
+		return task != null && !task.deferred;
+	}
+
+	protected boolean[] inProgress(List<Uri> uris) {
+        if (uris == null) throw new NullPointerException("uris could not be null");
+
+		boolean[] ret = new boolean[uris.size()];
+		synchronized (this) {
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = isInProgress(mTasks.get(uris.get(i)));
+			}
+		}
+		return ret;
+	}
+
+	// protected with this
+	private ArrayList<Thread> mThreads = new ArrayList<Thread>();
+	// protected with this
+	private int mWorkerNumber = 0;
+	// protected with this, workers that did not exit yet
+	private int mLiveWorkers = 0;
+	// protected with this, store is closed by the last exiting worker
+	private boolean mCloseStatusStore = false;
+	private PowerManager mPowerManager;
+
+	// protected with this, queued and running tasks by uri
+	private HashMap<Uri, Task> mTasks = new HashMap<Uri, Task>();
+	// protected with this, queued tasks by group, there is no empty queue
+	private HashMap<Integer, PriorityQueue<Task>> mQueues = new HashMap<Integer, PriorityQueue<Task>>();
+	// protected with this
+	private long mSequence = 0;
+	// protected with this, scheduled retries by uri
+	private HashMap<Uri, Retry> mRetries = new HashMap<Uri, Retry>();
+	// uris of mTasks and mRetries, changed with this but read without lock by
+	// eviction, so it sees current state and does not wait for workers
+	private final ConcurrentHashMap<Uri, Boolean> mInUse = new ConcurrentHashMap<Uri, Boolean>();
+	// protected with this, tasks waiting for network connection
+	private PriorityQueue<Task> mDeferred = new PriorityQueue<Task>(11, TASK_ORDER);
+	private boolean mDeferWhileOffline;
+	private PowerManager.WakeLock mBatchWakeLock;
+	private long mBatchWakeLockTimeout;
+	private long mBatchWakeLockIdleTime;
+	// protected with this, -1 when there is no drain
+	private long mDrainStartTime = -1;
+	// protected with this
+	private int mDrainTasks;
+	private volatile boolean mHasInternetConnection;
+	private BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			notifyConnectivityChanged();
+		}
+	};
+	private final Random mRandom = new Random();
+	// protected with this
+	private ArrayList<Task> mRunning = new ArrayList<AbsDownloadService.Task>();
+	// cancelled tasks which onHandleUri did not return yet, they stay in
+	// mRunning so they are counted to worker limits
+	private HashMap<Uri, Task> mAbandoned = new HashMap<Uri, Task>();
+	// protected with this
+	private int mPendingStopStartId = -1;
+	// protected with this, start ids begin with 1
+	private int mLastStartId = 0;
+	protected int mNumberOfListeners = 0;
+	private CachedDownloadStatusStore mStatusStore;
+	// store is read directly by other processes
+	private boolean mSharedStatusStore;
+	private boolean mPreferenceStatusStore;
+	private StatusHistory mHistory;
+	// index of statuses and uris in progress, locked after this
+	private final StatusIndex mStatusIndex = new StatusIndex();
+	private boolean mClose;
+	private long mAgingTime;
+	private final RemoteCallbackList<IDownloadServiceCallback> mCallbacks = new RemoteCallbackList<IDownloadServiceCallback>();
+    private Handler mStopHandler;
+
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		synchronized (this) {
+			mNumberOfListeners++;
 		}
 		return mBinder;
 	}
@@ -371,8 +1517,59 @@ public abstract class AbsDownloadService extends Service {
         }
     }
 
-    @SuppressLint("Wakelock")
+	// call with this
+	private Task pollNextTask() {
+		PriorityQueue<Task> best = null;
+		for (Map.Entry<Integer, PriorityQueue<Task>> entry : mQueues.entrySet()) {
+			PriorityQueue<Task> queue = entry.getValue();
+			Task head = queue.peek();
+			if (best != null && TASK_ORDER.compare(head, best.peek()) >= 0) {
+				continue;
+			}
+			if (head.group != NO_TASK_GROUP
+					&& runningInGroup(head.group) >= head.groupLimit) {
+				continue;
+			}
+			best = queue;
+		}
+		if (best == null) {
+			return null;
+		}
+		Task task = best.poll();
+		if (best.isEmpty()) {
+			mQueues.remove(task.group);
+		}
+		return task;
+	}
+
+	// call with this
+	private int runningInGroup(int group) {
+		int count = 0;
+		for (Task task : mRunning) {
+			if (task.group == group)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Loop of worker thread that executes queued tasks until service is
+	 * destroyed. Called by every one of {@link #maxConcurrentTasks()} worker
+	 * threads, each of them with its own wake lock.
+	 * 
+	 * @throws IllegalStateException
+	 *             when called from thread that is not a worker of service
+	 */
 	protected void run() {
+		Thread thread = Thread.currentThread();
+		if (!(thread instanceof MyThread)) {
+			throw new IllegalStateException("run() could be called only by worker thread");
+		}
+		runWorker(((MyThread) thread).mWakeLock);
+	}
+
+    @SuppressLint("Wakelock")
+	private void runWorker(PowerManager.WakeLock wakeLock) {
 		for (;;) {
 			try {
 				Task task;
@@ -380,22 +1577,43 @@ public abstract class AbsDownloadService extends Service {
 					for (;;) {
 						if (mClose)
 							return;
-						if (mQueue.size() != 0) {
-							task = mQueue.get(0);
+						task = pollNextTask();
+						if (task != null) {
+							task.running = true;
+							task.thread = Thread.currentThread();
+							task.wakeLock = wakeLock;
+							mRunning.add(task);
+							addToDrain();
 							break;
 						}
 						this.wait();
 					}
 				}
-				long timeout = taskWakeLockTimeout(task.uri, task.bundle);
+				boolean noInternetConnection = isNetworkNeeded(task.uri,
+						task.bundle) && !hasInternetConnection();
+				if (noInternetConnection && mDeferWhileOffline) {
+					deferTask(task);
+					continue;
+				}
+				task.startTimeMs = System.currentTimeMillis();
+				dispatchTaskEvent(TASK_STARTED, task.uri, null);
+				long executionTimeout = taskTimeout(task.uri, task.bundle);
+				if (executionTimeout > 0) {
+					mStopHandler.sendMessageDelayed(mStopHandler.obtainMessage(
+							TASK_TIMEOUT_MESSAGE, task), executionTimeout);
+				}
+				long timeout = -1;
+				if (mBatchWakeLock == null || !mBatchWakeLock.isHeld()) {
+					timeout = taskWakeLockTimeout(task.uri, task.bundle);
+				}
 				if (timeout == 0) {
-					mWakeLock.acquire();
+					wakeLock.acquire();
 				} else if (timeout > 0) {
-					mWakeLock.acquire(timeout);
+					wakeLock.acquire(timeout);
 				}
 				AUSyncerStatus status;
 				try {
-					if (isNetworkNeeded(task.uri, task.bundle) && !hasInternetConnection()) {
+					if (noInternetConnection) {
 						status = AUSyncerStatus.statusNoInternetConnection();
 					} else {
 						status = onHandleUri(task.uri, task.bundle, task.withForce);
@@ -403,37 +1621,538 @@ public abstract class AbsDownloadService extends Service {
                     if (status == null) throw new NullPointerException(
                             "you have to return not null status");
 				} finally {
-					if (timeout >= 0 && mWakeLock.isHeld()) {
-						try {
-							mWakeLock.release();
-						} catch (Throwable e) {
-							// No one knows why runtime exception is thrown when
-							// lock is released after timeout - this can occurs
-							// randomly. And this is not an error. Just ignore
-							// this situation.
-						}
+					if (timeout >= 0) {
+						releaseWakeLock(wakeLock);
 					}
 				}
 	
-				setLastStatus(task.uri, status);
-				Intent broadcastIntent = new Intent(ON_PROGRESS_CHANGE);
-				broadcastIntent
-						.putExtra(ON_PROGRESS_CHANGE_EXTRA_URI, task.uri);
-				broadcastIntent.putExtra(ON_PROGRESS_CHANGEEXTRA_IS_STATUS,
-						status);
-				this.sendBroadcast(broadcastIntent);
-				
+				int stopStartId = -1;
 				synchronized (this) {
-					mQueue.remove(0);
+					if (task.cancelled) {
+						// task was already finished by cancel(), its result
+						// is ignored
+						stopStartId = releaseCancelled(task);
+					} else {
+						task.finished = true;
+					}
 				}
-				if (task.startId != -1) {
-					stopSelf(task.startId);
+				if (task.cancelled) {
+					if (stopStartId != -1) {
+						stopSelfDurably(stopStartId);
+					}
+					continue;
 				}
+				finishTask(task, status);
 			} catch (InterruptedException ignored) {
 			}
 		}
 	}
 
+	private static void releaseWakeLock(PowerManager.WakeLock wakeLock) {
+		if (!wakeLock.isHeld()) {
+			return;
+		}
+		try {
+			wakeLock.release();
+		} catch (Throwable e) {
+			// No one knows why runtime exception is thrown when
+			// lock is released after timeout - this can occurs
+			// randomly. And this is not an error. Just ignore
+			// this situation.
+		}
+	}
+
+	private void finishTask(Task task, AUSyncerStatus status) {
+		mStopHandler.removeMessages(TASK_TIMEOUT_MESSAGE, task);
+		status = status.withAttempt(task.attempt);
+		setLastStatus(task.uri, status);
+		addHistoryEntry(task, status);
+
+		Retry retry = null;
+		long retryDelay = 0;
+		if (!task.cancelled
+				&& (status.isNoInternetConnection() || status.isInternalIssue())) {
+			RetryPolicy policy = retryPolicy(task.uri, task.bundle);
+			if (policy.shouldRetry(task.attempt)) {
+				retry = new Retry();
+				retry.uri = task.uri;
+				retry.bundle = task.bundle;
+				retry.withForce = task.withForce;
+				retry.priority = task.priority;
+				retry.attempt = task.attempt + 1;
+				retryDelay = Math.max(policy.getDelayMs(task.attempt, mRandom),
+						status.getRetryAfterMs());
+			}
+		}
+		
+		int stopStartId;
+		Task followUp = null;
+		synchronized (this) {
+			if (mAbandoned.get(task.uri) != task) {
+				// abandoned task is removed when its onHandleUri returns
+				mRunning.remove(task);
+			}
+			if (mTasks.get(task.uri) == task) {
+				mTasks.remove(task.uri);
+				followUp = task.followUp;
+				if (followUp != null) {
+					// forced request replaces retry
+					addTask(followUp);
+					this.notifyAll();
+				} else {
+					mStatusIndex.setInProgress(task.uri, false);
+					if (retry != null) {
+						mRetries.put(task.uri, retry);
+					}
+				}
+				updateInUse(task.uri);
+			} else if (task.followUp != null) {
+				// cancelled task takes its follow-up with it
+				task.startIds.addAll(task.followUp.startIds);
+			}
+			// Service could be stopped only by the last finished task,
+			// otherwise other workers would be killed in the middle of
+			// their work
+			for (int startId : task.startIds) {
+				if (startId > mPendingStopStartId) {
+					mPendingStopStartId = startId;
+				}
+			}
+			stopStartId = pollStopStartId();
+			scheduleFinishDrainIfIdle();
+			this.notifyAll();
+		}
+		if (retry != null && followUp == null) {
+			// retry is scheduled on main thread, so no worker thread or wake
+			// lock is held while waiting
+			mStopHandler.sendMessageDelayed(
+					mStopHandler.obtainMessage(RETRY_MESSAGE, retry),
+					retryDelay);
+		}
+		// task is not in progress any more when clients are notified
+		reportStatus(task.uri, status);
+		if (followUp != null) {
+			dispatchTaskEvent(TASK_QUEUED, followUp.uri, null);
+		}
+
+		if (stopStartId != -1) {
+			stopSelfDurably(stopStartId);
+		}
+	}
+
+	private void reportStatus(Uri uri, AUSyncerStatus status) {
+		// receivers of this process get the same status object without
+		// parcelling
+		DownloadHelper.dispatchLocalStatus(uri, status);
+		if (broadcastStatusChanges()) {
+			Intent broadcastIntent = new Intent(ON_PROGRESS_CHANGE);
+			broadcastIntent.putExtra(ON_PROGRESS_CHANGE_EXTRA_URI, uri);
+			broadcastIntent.putExtra(ON_PROGRESS_CHANGEEXTRA_IS_STATUS, status);
+			broadcastIntent.putExtra(ON_PROGRESS_CHANGE_EXTRA_SENDER_PID,
+					Process.myPid());
+			this.sendBroadcast(broadcastIntent);
+		}
+		dispatchTaskEvent(TASK_FINISHED, uri, status);
+	}
+
+	private void deferTask(Task task) {
+		AUSyncerStatus status = AUSyncerStatus.statusNoInternetConnection()
+				.withAttempt(task.attempt);
+		int stopStartId = -1;
+		synchronized (this) {
+			if (task.cancelled) {
+				// task was already finished by cancel()
+				stopStartId = releaseCancelled(task);
+			} else {
+				mRunning.remove(task);
+				task.running = false;
+				task.thread = null;
+				task.wakeLock = null;
+				task.deferred = true;
+				mStatusIndex.setInProgress(task.uri, false);
+				mDeferred.add(task);
+				scheduleFinishDrainIfIdle();
+				this.notifyAll();
+			}
+		}
+		if (task.cancelled) {
+			if (stopStartId != -1) {
+				stopSelfDurably(stopStartId);
+			}
+			return;
+		}
+		// clients see that task is not in progress and why
+		setLastStatus(task.uri, status);
+		addHistoryEntry(task, status);
+		reportStatus(task.uri, status);
+		if (mHasInternetConnection) {
+			// connection came back while we were deferring
+			requeueDeferredTasks();
+		}
+	}
+
+	private void requeueDeferredTasks() {
+		ArrayList<Uri> requeued;
+		synchronized (this) {
+			if (mDeferred.isEmpty()) {
+				return;
+			}
+			requeued = new ArrayList<Uri>(mDeferred.size());
+			for (Task task = mDeferred.poll(); task != null; task = mDeferred
+					.poll()) {
+				task.deferred = false;
+				mStatusIndex.setInProgress(task.uri, true);
+				enqueue(task);
+				requeued.add(task.uri);
+			}
+			this.notifyAll();
+		}
+		for (Uri uri : requeued) {
+			dispatchTaskEvent(TASK_QUEUED, uri, null);
+		}
+	}
+
+	// call with this
+	private void addToDrain() {
+		if (mBatchWakeLock == null) {
+			return;
+		}
+		mStopHandler.removeMessages(DRAIN_IDLE_MESSAGE);
+		if (mDrainStartTime < 0) {
+			mDrainStartTime = SystemClock.uptimeMillis();
+			mDrainTasks = 0;
+			if (mBatchWakeLockTimeout == 0) {
+				mBatchWakeLock.acquire();
+			} else {
+				mBatchWakeLock.acquire(mBatchWakeLockTimeout);
+			}
+		}
+		mDrainTasks++;
+	}
+
+	// call with this
+	private void scheduleFinishDrainIfIdle() {
+		if (mDrainStartTime < 0 || !mQueues.isEmpty() || !mRunning.isEmpty()) {
+			return;
+		}
+		mStopHandler.removeMessages(DRAIN_IDLE_MESSAGE);
+		mStopHandler.sendMessageDelayed(
+				mStopHandler.obtainMessage(DRAIN_IDLE_MESSAGE),
+				mBatchWakeLockIdleTime);
+	}
+
+	private void finishDrain(boolean force) {
+		int tasks;
+		long heldTime;
+		synchronized (this) {
+			if (mDrainStartTime < 0) {
+				return;
+			}
+			if (!force && (!mQueues.isEmpty() || !mRunning.isEmpty())) {
+				// drain was continued by new task
+				return;
+			}
+			heldTime = SystemClock.uptimeMillis() - mDrainStartTime;
+			if (mBatchWakeLockTimeout > 0 && heldTime > mBatchWakeLockTimeout) {
+				// wake lock was already released by system
+				heldTime = mBatchWakeLockTimeout;
+			}
+			tasks = mDrainTasks;
+			mDrainStartTime = -1;
+			releaseWakeLock(mBatchWakeLock);
+		}
+		onQueueDrained(tasks, heldTime);
+	}
+
+	// call with this
+	private boolean isIdle() {
+		return mQueues.isEmpty() && mRunning.isEmpty() && mRetries.isEmpty()
+				&& mDeferred.isEmpty();
+	}
+
+	// call with this
+	private int pollStopStartId() {
+		if (!isIdle()) {
+			return -1;
+		}
+		int stopStartId = mPendingStopStartId;
+		mPendingStopStartId = -1;
+		return stopStartId;
+	}
+
+	private void retry(Retry retry) {
+		synchronized (this) {
+			if (mRetries.get(retry.uri) != retry) {
+				// retry was replaced by new request or cancelled
+				return;
+			}
+			mRetries.remove(retry.uri);
+			updateInUse(retry.uri);
+		}
+		download(retry.uri, retry.bundle, retry.withForce, -1, retry.priority,
+				retry.attempt);
+		stopSelfIfIdle();
+	}
+
+	private void stopSelfDurably(final int startId) {
+		// disk work is done off the caller thread, that could be main thread
+		mStatusStore.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				// flush barrier - statuses of finished tasks have to be on
+				// disk before process could be killed
+				mStatusStore.flush();
+				saveHistory();
+				stopSelf(startId);
+			}
+		});
+	}
+
+	// call with this
+	private void updateInUse(Uri uri) {
+		if (mTasks.containsKey(uri) || mRetries.containsKey(uri)) {
+			mInUse.put(uri, Boolean.TRUE);
+		} else {
+			mInUse.remove(uri);
+		}
+	}
+
+	private void startEviction() {
+		final long timeToLive = statusTimeToLive();
+		final int maxStatuses = maxStatuses();
+		if (timeToLive <= 0 && maxStatuses <= 0) {
+			return;
+		}
+		// stores check live set of requested uris right before every removal
+		final Collection<Uri> keep = Collections.unmodifiableSet(mInUse
+				.keySet());
+		mStatusStore.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				long minStatusTimeMs = timeToLive <= 0 ? -1 : System
+						.currentTimeMillis() - timeToLive;
+				if (mStatusStore.evict(minStatusTimeMs, maxStatuses, keep) > 0) {
+					mStatusIndex.invalidateStatuses();
+				}
+			}
+		});
+		mStopHandler.sendEmptyMessageDelayed(EVICT_MESSAGE,
+				EVICTION_INTERVAL_MILLIS);
+	}
+
+	private File getHistoryFile() {
+		return new File(getFilesDir(), HISTORY_FILE_NAME);
+	}
+
+	private void saveHistory() {
+		if (mHistory != null) {
+			mHistory.save(getHistoryFile());
+		}
+	}
+
+	private void stopSelfIfInactive() {
+		boolean idle;
+		int stopStartId;
+		synchronized (this) {
+			idle = isIdle();
+			if (idle) {
+				mPendingStopStartId = -1;
+			}
+			stopStartId = mLastStartId;
+		}
+		if (!idle) {
+			// tasks are still waiting, check again later
+			notifyActive();
+			return;
+		}
+		// request that arrives before service is stopped keeps it running
+		stopSelfDurably(stopStartId);
+	}
+
+	private void stopSelfIfIdle() {
+		int stopStartId;
+		synchronized (this) {
+			stopStartId = pollStopStartId();
+		}
+		if (stopStartId != -1) {
+			stopSelfDurably(stopStartId);
+		}
+	}
+
+	/**
+	 * Cancel queued or running task for given uri. Queued task is removed from
+	 * queue. Thread of running task is interrupted, your
+	 * {@link #onHandleUri(Uri, Bundle, boolean)} should stop work when thread
+	 * is interrupted. Until it returns its worker is still counted to
+	 * {@link #maxConcurrentTasks()} and new request for the same uri waits for
+	 * it. Result of cancelled task is ignored and
+	 * {@link AUSyncerStatus#statusCancelled()} is reported instead. Scheduled
+	 * retry of given uri is also cancelled.
+	 * 
+	 * @param uri
+	 *            uri to cancel
+	 * @return <code>true</code> if task was cancelled, <code>false</code> if
+	 *         there was no task to cancel
+	 */
+	protected boolean cancel(Uri uri) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+
+		Task task;
+		boolean retryCancelled;
+		synchronized (this) {
+			retryCancelled = mRetries.remove(uri) != null;
+			updateInUse(uri);
+			task = mTasks.get(uri);
+		}
+		if (task == null) {
+			if (retryCancelled) {
+				stopSelfIfIdle();
+			}
+			return retryCancelled;
+		}
+		return cancelTask(task);
+	}
+
+	private boolean cancelTask(Task task) {
+		if (!markCancelled(task)) {
+			return false;
+		}
+		finishTask(task, AUSyncerStatus.statusCancelled());
+		return true;
+	}
+
+	// Remove task from queue or interrupt it. Returns false if task was
+	// already finished or cancelled.
+	private boolean markCancelled(Task task) {
+		synchronized (this) {
+			if (task.cancelled || task.finished || mTasks.get(task.uri) != task) {
+				return false;
+			}
+			task.cancelled = true;
+			mTasks.remove(task.uri);
+			updateInUse(task.uri);
+			mStatusIndex.setInProgress(task.uri, false);
+			if (task.running) {
+				// Worker is not replaced, interrupted thread is still counted
+				// to worker limits and blocks its uri until onHandleUri
+				// returns
+				mAbandoned.put(task.uri, task);
+				task.thread.interrupt();
+				releaseWakeLock(task.wakeLock);
+			} else if (task.blocked) {
+				mAbandoned.get(task.uri).waiting = null;
+			} else if (task.deferred) {
+				mDeferred.remove(task);
+			} else {
+				PriorityQueue<Task> queue = mQueues.get(task.group);
+				queue.remove(task);
+				if (queue.isEmpty()) {
+					mQueues.remove(task.group);
+				}
+			}
+			return true;
+		}
+	}
+
+	// call with this, from worker of cancelled task after its onHandleUri
+	// returned
+	private int releaseCancelled(Task task) {
+		// onHandleUri could ignore interruption, next task of this worker
+		// should not see it
+		Thread.interrupted();
+		mRunning.remove(task);
+		mAbandoned.remove(task.uri);
+		task.running = false;
+		task.thread = null;
+		task.wakeLock = null;
+		Task waiting = task.waiting;
+		if (waiting != null) {
+			task.waiting = null;
+			waiting.blocked = false;
+			enqueue(waiting);
+		}
+		scheduleFinishDrainIfIdle();
+		this.notifyAll();
+		return pollStopStartId();
+	}
+
+	// call with this
+	private void startWorker() {
+		// Every worker have its own not reference counted wake lock so
+		// finished task does not release wake lock of running one
+		PowerManager.WakeLock wakeLock = mPowerManager.newWakeLock(
+				PowerManager.PARTIAL_WAKE_LOCK, "Downloading data");
+		wakeLock.setReferenceCounted(false);
+		MyThread thread = new MyThread(this, "DownloadService-"
+				+ mWorkerNumber++, wakeLock);
+		mThreads.add(thread);
+		mLiveWorkers++;
+		thread.start();
+	}
+
+	private void onWorkerExit() {
+		boolean closeStatusStore;
+		synchronized (this) {
+			mLiveWorkers--;
+			closeStatusStore = mCloseStatusStore && mLiveWorkers == 0;
+		}
+		if (closeStatusStore) {
+			closeStatusStore();
+		}
+	}
+
+	private void closeStatusStore() {
+		// history is saved and store is closed on store thread, after work
+		// that was already posted to it
+		final CachedDownloadStatusStore statusStore = mStatusStore;
+		statusStore.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				saveHistory();
+				statusStore.close();
+			}
+		});
+	}
+
+	private void dispatchTaskEvent(int event, Uri uri, AUSyncerStatus status) {
+		synchronized (mCallbacks) {
+			int count = mCallbacks.beginBroadcast();
+			try {
+				for (int i = 0; i < count; i++) {
+					CallbackFilter filter = (CallbackFilter) mCallbacks
+							.getBroadcastCookie(i);
+					if (!filter.matches(uri)) {
+						continue;
+					}
+					IDownloadServiceCallback callback = mCallbacks
+							.getBroadcastItem(i);
+					try {
+						switch (event) {
+						case TASK_QUEUED:
+							callback.onTaskQueued(uri);
+							break;
+						case TASK_STARTED:
+							callback.onTaskStarted(uri);
+							break;
+						case TASK_FINISHED:
+							callback.onTaskFinished(uri, status);
+							break;
+						default:
+							throw new RuntimeException("no event : " + event);
+						}
+					} catch (RemoteException ignored) {
+						// RemoteCallbackList will remove dead callback
+					}
+				}
+			} finally {
+				mCallbacks.finishBroadcast();
+			}
+		}
+	}
+
 	protected abstract AUSyncerStatus onHandleUri(Uri uri, Bundle bundle,
 			boolean withForce);
 
@@ -448,6 +2167,9 @@ public abstract class AbsDownloadService extends Service {
 	
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
+		synchronized (this) {
+			mLastStartId = startId;
+		}
 		if (intent == null) {
 			return START_STICKY;
 		}
@@ -457,29 +2179,64 @@ public abstract class AbsDownloadService extends Service {
 		}
 		Bundle bundle = intent.getBundleExtra(EXTRA_BUNDLE);
 		boolean withForce = intent.getBooleanExtra(EXTRA_WITH_FORCE, false);
-		download(uri, bundle, withForce, startId);
+		int priority = intent.getIntExtra(EXTRA_PRIORITY, DEFAULT_PRIORITY);
+		download(uri, bundle, withForce, startId, priority);
 		return START_STICKY;
 	}
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
-		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
         mStopHandler = new StopHandler();
-		mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-				"Downloading data");
-		mWakeLock.setReferenceCounted(false);
 
-		mDownloadSharedPreference = new DownloadSharedPreference(this);
+		DownloadStatusStore statusStore = createStatusStore();
+		mSharedStatusStore = statusStore instanceof MappedDownloadStatusStore;
+		mPreferenceStatusStore = statusStore instanceof DownloadSharedPreference;
+		mStatusStore = new CachedDownloadStatusStore(statusStore,
+				statusFlushDelay(), Math.max(1, maxPendingStatuses()),
+				Math.max(1, maxCachedStatuses()));
+		if (preloadStatuses()) {
+			mStatusStore.preload();
+		}
+		mStopHandler.sendEmptyMessageDelayed(EVICT_MESSAGE, EVICTION_DELAY_MILLIS);
+		int historySize = historySize();
+		if (historySize > 0) {
+			mHistory = new StatusHistory(historySize, maxHistoryBytes());
+			// entries added before history is read are kept as newest
+			mStatusStore.runInBackground(new Runnable() {
+
+				@Override
+				public void run() {
+					mHistory.load(getHistoryFile());
+				}
+			});
+		}
 		mClose = false;
-		thread.start();
+		mAgingTime = priorityAgingTime();
+		mDeferWhileOffline = deferTasksWhileOffline();
+		// network state is cached and updated on connectivity changes
+		mHasInternetConnection = isConnected();
+		registerReceiver(mConnectivityReceiver, new IntentFilter(
+				ConnectivityManager.CONNECTIVITY_ACTION));
+		mBatchWakeLockTimeout = batchWakeLockTimeout();
+		mBatchWakeLockIdleTime = Math.max(0, batchWakeLockIdleTime());
+		if (mBatchWakeLockTimeout >= 0) {
+			mBatchWakeLock = mPowerManager.newWakeLock(
+					PowerManager.PARTIAL_WAKE_LOCK, "Downloading data batch");
+			mBatchWakeLock.setReferenceCounted(false);
+		}
+		int workers = Math.max(1, maxConcurrentTasks());
+		synchronized (this) {
+			for (int i = 0; i < workers; i++) {
+				startWorker();
+			}
+		}
 	}
 	
 	private boolean hasInternetConnection() {
-		ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-		NetworkInfo netInfo = cm.getActiveNetworkInfo();
-        return netInfo != null && netInfo.isConnected();
-    }
+		return mHasInternetConnection;
+	}
 
     private void notifyActive(){
         mStopHandler.removeMessages(STOP_SELF_MESSAGE);
@@ -493,6 +2250,24 @@ public abstract class AbsDownloadService extends Service {
 			mClose = true;
 			this.notifyAll();
 		}
+		unregisterReceiver(mConnectivityReceiver);
+		mStopHandler.removeMessages(STOP_SELF_MESSAGE);
+		mStopHandler.removeMessages(TASK_TIMEOUT_MESSAGE);
+		mStopHandler.removeMessages(RETRY_MESSAGE);
+		mStopHandler.removeMessages(DRAIN_IDLE_MESSAGE);
+		mStopHandler.removeMessages(EVICT_MESSAGE);
+		finishDrain(true);
+		boolean closeStatusStore;
+		synchronized (this) {
+			// worker in the middle of onHandleUri still writes its status,
+			// so store is closed when it exits
+			mCloseStatusStore = true;
+			closeStatusStore = mLiveWorkers == 0;
+		}
+		if (closeStatusStore) {
+			closeStatusStore();
+		}
+		mCallbacks.kill();
 		super.onDestroy();
 	}
 }
@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * In-memory cache of ready-made {@link AUSyncerStatus} objects in front of
+ * other {@link DownloadStatusStore}.
+ *
+ * <p>
+ * Reads are served from memory after first access of uri. Writes are visible
+ * immediately and are written to underlying store:
+ * <ul>
+ * <li>synchronously on caller thread when flush delay is <code>x < 0</code>,</li>
+ * <li>on background thread as soon as possible when flush delay is
+ * <code>0</code>,</li>
+ * <li>on background thread in groups collected for flush delay when it is
+ * <code>x > 0</code>, or earlier when maximal number of pending statuses is
+ * reached.</li>
+ * </ul>
+ * Every group is written to underlying store with single
+ * {@link DownloadStatusStore#setLastStatuses(Map)} call, so it is saved
+ * atomically.
+ * Pending writes are lost if process is killed before flush, so
+ * {@link #close()} has to be called when store is not needed any more.
+ * </p>
+ *
+ * <p>
+ * Other work with underlying store that should not be done on main thread
+ * could be run on the same background thread with
+ * {@link #runInBackground(Runnable)}.
+ * </p>
+ *
+ * <p>
+ * Cache keeps at most given number of statuses and drops the least recently
+ * used ones, statuses that are not written yet stay readable until they are
+ * written. Uris that were never downloaded are cached only while cache is
+ * not full.
+ * </p>
+ *
+ * <p>
+ * {@link #preload()} reads all statuses into memory on background thread.
+ * Reads that arrive before it finishes wait for it instead of reading
+ * underlying store on their own, and reads of unknown uris after it finishes
+ * do not touch underlying store at all as long as all statuses fit in cache.
+ * </p>
+ *
+ * <pre class="prettyprint">
+ * DownloadStatusStore store = new CachedDownloadStatusStore(
+ * 		new DownloadSharedPreference(context), 1000);
+ * </pre>
+ *
+ * @see AbsDownloadService#statusFlushDelay()
+ */
+public class CachedDownloadStatusStore implements DownloadStatusStore {
+
+	public static final int DEFAULT_MAX_CACHED_STATUSES = 1000;
+
+	private final DownloadStatusStore mStore;
+	private final long mFlushDelayMs;
+	private final int mMaxPendingStatuses;
+	private final int mMaxCachedStatuses;
+	private final HandlerThread mFlushThread;
+	private final Handler mFlushHandler;
+	// serializes writes to underlying store so older group could not
+	// overwrite newer one
+	private final Object mFlushLock = new Object();
+
+	// protected with this, in order of access
+	private final LinkedHashMap<Uri, AUSyncerStatus> mCache;
+	// protected with this, statuses that are not written yet
+	private LinkedHashMap<Uri, AUSyncerStatus> mDirty = new LinkedHashMap<Uri, AUSyncerStatus>();
+	// protected with this, group that is being written or null
+	private Map<Uri, AUSyncerStatus> mWriting = null;
+	// protected with this
+	private boolean mFlushScheduled = false;
+	// protected with this
+	private boolean mClosed = false;
+	// protected with this, every saved status is in cache
+	private boolean mComplete = false;
+	// protected with this, number of statuses dropped from cache
+	private int mDropped = 0;
+	// protected with this, null when preload was not started
+	private CountDownLatch mPreloaded = null;
+
+	private final Runnable mFlushRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Create cache without limit of pending statuses
+	 *
+	 * @param store
+	 *            underlying store
+	 * @param flushDelayMs
+	 *            <code>x < 0</code> to write synchronously, <code>0</code> to
+	 *            write in background as soon as possible, or
+	 *            <code>x > 0</code> to group writes for given time in ms
+	 */
+	public CachedDownloadStatusStore(DownloadStatusStore store,
+			long flushDelayMs) {
+		this(store, flushDelayMs, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create cache
+	 *
+	 * @param store
+	 *            underlying store
+	 * @param flushDelayMs
+	 *            <code>x < 0</code> to write synchronously, <code>0</code> to
+	 *            write in background as soon as possible, or
+	 *            <code>x > 0</code> to group writes for given time in ms
+	 * @param maxPendingStatuses
+	 *            number of pending statuses that causes group to be written
+	 *            before flush delay passes
+	 */
+	public CachedDownloadStatusStore(DownloadStatusStore store,
+			long flushDelayMs, int maxPendingStatuses) {
+		this(store, flushDelayMs, maxPendingStatuses,
+				DEFAULT_MAX_CACHED_STATUSES);
+	}
+
+	/**
+	 * Create cache
+	 *
+	 * @param store
+	 *            underlying store
+	 * @param flushDelayMs
+	 *            <code>x < 0</code> to write synchronously, <code>0</code> to
+	 *            write in background as soon as possible, or
+	 *            <code>x > 0</code> to group writes for given time in ms
+	 * @param maxPendingStatuses
+	 *            number of pending statuses that causes group to be written
+	 *            before flush delay passes
+	 * @param maxCachedStatuses
+	 *            number of statuses kept in memory
+	 */
+	public CachedDownloadStatusStore(DownloadStatusStore store,
+			long flushDelayMs, int maxPendingStatuses, int maxCachedStatuses) {
+        if (store == null) throw new NullPointerException("store could not be null");
+		if (maxPendingStatuses < 1)
+			throw new IllegalArgumentException(
+					"maxPendingStatuses should be at least 1");
+		if (maxCachedStatuses < 1)
+			throw new IllegalArgumentException(
+					"maxCachedStatuses should be at least 1");
+
+		mStore = store;
+		mFlushDelayMs = flushDelayMs;
+		mMaxPendingStatuses = maxPendingStatuses;
+		mMaxCachedStatuses = maxCachedStatuses;
+		mCache = new LinkedHashMap<Uri, AUSyncerStatus>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Uri, AUSyncerStatus> eldest) {
+				if (size() <= mMaxCachedStatuses) {
+					return false;
+				}
+				// dropped status has to be read from underlying store again
+				mComplete = false;
+				mDropped++;
+				return true;
+			}
+		};
+		// thread is also used by runInBackground when writes are synchronous
+		mFlushThread = new HandlerThread("DownloadStatusStore",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		mFlushThread.start();
+		mFlushHandler = new Handler(mFlushThread.getLooper());
+	}
+
+	/**
+	 * Run task on background thread of store. Tasks and background writes
+	 * are run one by one in order they were posted. Tasks posted after
+	 * {@link #close()} are not run.
+	 *
+	 * @param task
+	 *            task to run
+	 */
+	public void runInBackground(Runnable task) {
+        if (task == null) throw new NullPointerException("task could not be null");
+
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mFlushHandler.post(task);
+		}
+	}
+
+	/**
+	 * Start reading all statuses into memory on background thread. Does
+	 * nothing if it was already started.
+	 */
+	public void preload() {
+		final CountDownLatch preloaded;
+		synchronized (this) {
+			if (mPreloaded != null || mClosed) {
+				return;
+			}
+			preloaded = new CountDownLatch(1);
+			mPreloaded = preloaded;
+		}
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					int dropped;
+					synchronized (CachedDownloadStatusStore.this) {
+						dropped = mDropped;
+					}
+					Map<Uri, AUSyncerStatus> statuses = mStore
+							.getAllLastStatuses();
+					synchronized (CachedDownloadStatusStore.this) {
+						// status written and dropped during read is missing
+						boolean complete = dropped == mDropped;
+						for (Map.Entry<Uri, AUSyncerStatus> entry : statuses
+								.entrySet()) {
+							// statuses set during preload are newer
+							if (getCached(entry.getKey()) != null) {
+								continue;
+							}
+							if (mCache.size() >= mMaxCachedStatuses) {
+								// other statuses are read when requested
+								complete = false;
+								break;
+							}
+							mCache.put(entry.getKey(), entry.getValue());
+						}
+						mComplete = complete;
+					}
+				} finally {
+					preloaded.countDown();
+				}
+			}
+		}, "DownloadStatusStore preload");
+		thread.start();
+	}
+
+	private void awaitPreload() {
+		CountDownLatch preloaded;
+		synchronized (this) {
+			preloaded = mPreloaded;
+		}
+		if (preloaded == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				preloaded.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public AUSyncerStatus getLastStatus(Uri uri) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+
+		synchronized (this) {
+			AUSyncerStatus status = getCached(uri);
+			if (status != null) {
+				return status;
+			}
+		}
+		awaitPreload();
+		synchronized (this) {
+			AUSyncerStatus status = getCached(uri);
+			if (status != null) {
+				return status;
+			}
+			if (mComplete) {
+				return AUSyncerStatus.statusNeverDownloaded();
+			}
+		}
+		AUSyncerStatus status = mStore.getLastStatus(uri);
+		synchronized (this) {
+			return cacheStatus(uri, status);
+		}
+	}
+
+	// call with this
+	private AUSyncerStatus getCached(Uri uri) {
+		AUSyncerStatus status = mCache.get(uri);
+		if (status != null) {
+			return status;
+		}
+		// pending statuses could be already dropped from cache
+		status = mDirty.get(uri);
+		if (status == null && mWriting != null) {
+			status = mWriting.get(uri);
+		}
+		return status;
+	}
+
+	// call with this
+	private AUSyncerStatus cacheStatus(Uri uri, AUSyncerStatus status) {
+		// status could be set while we were reading
+		AUSyncerStatus newer = getCached(uri);
+		if (newer != null) {
+			return newer;
+		}
+		if (status == AUSyncerStatus.statusNeverDownloaded()
+				&& mCache.size() >= mMaxCachedStatuses) {
+			// misses do not push saved statuses out of full cache
+			return status;
+		}
+		mCache.put(uri, status);
+		return status;
+	}
+
+	@Override
+	public List<AUSyncerStatus> getLastStatuses(List<Uri> uris) {
+        if (uris == null) throw new NullPointerException("uris could not be null");
+
+		AUSyncerStatus[] statuses = new AUSyncerStatus[uris.size()];
+		if (readCached(uris, statuses).isEmpty()) {
+			return Arrays.asList(statuses);
+		}
+		awaitPreload();
+		List<Uri> misses = readCached(uris, statuses);
+		if (misses.isEmpty()) {
+			return Arrays.asList(statuses);
+		}
+		// all misses are read with single call, so store could read them in
+		// bulk
+		List<AUSyncerStatus> read = mStore.getLastStatuses(misses);
+		HashMap<Uri, AUSyncerStatus> found = new HashMap<Uri, AUSyncerStatus>(
+				misses.size());
+		synchronized (this) {
+			for (int i = 0; i < misses.size(); i++) {
+				Uri uri = misses.get(i);
+				found.put(uri, cacheStatus(uri, read.get(i)));
+			}
+		}
+		for (int i = 0; i < statuses.length; i++) {
+			if (statuses[i] == null) {
+				statuses[i] = found.get(uris.get(i));
+			}
+		}
+		return Arrays.asList(statuses);
+	}
+
+	/**
+	 * Fill statuses that are known without reading underlying store
+	 *
+	 * @return uris that have to be read, without duplicates
+	 */
+	private synchronized List<Uri> readCached(List<Uri> uris,
+			AUSyncerStatus[] statuses) {
+		LinkedHashSet<Uri> misses = new LinkedHashSet<Uri>();
+		for (int i = 0; i < statuses.length; i++) {
+			if (statuses[i] != null) {
+				continue;
+			}
+			Uri uri = uris.get(i);
+			if (uri == null) throw new NullPointerException("uri could not be null");
+			AUSyncerStatus status = getCached(uri);
+			if (status != null) {
+				statuses[i] = status;
+			} else if (mComplete) {
+				statuses[i] = AUSyncerStatus.statusNeverDownloaded();
+			} else {
+				misses.add(uri);
+			}
+		}
+		return new ArrayList<Uri>(misses);
+	}
+
+	@Override
+	public Map<Uri, AUSyncerStatus> getAllLastStatuses() {
+		awaitPreload();
+		synchronized (this) {
+			if (mComplete) {
+				HashMap<Uri, AUSyncerStatus> statuses = new HashMap<Uri, AUSyncerStatus>(
+						mCache.size());
+				for (Map.Entry<Uri, AUSyncerStatus> entry : mCache.entrySet()) {
+					// misses are cached as the shared never downloaded status
+					if (entry.getValue() != AUSyncerStatus.statusNeverDownloaded()) {
+						statuses.put(entry.getKey(), entry.getValue());
+					}
+				}
+				return statuses;
+			}
+		}
+		// flush could not write group in the middle of reading
+		synchronized (mFlushLock) {
+			Map<Uri, AUSyncerStatus> statuses = mStore.getAllLastStatuses();
+			synchronized (this) {
+				// pending statuses are newer than saved ones
+				statuses.putAll(mDirty);
+			}
+			return statuses;
+		}
+	}
+
+	@Override
+	public void setLastStatus(Uri uri, AUSyncerStatus status) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+        if (status == null) throw new NullPointerException("status could not be null");
+
+		setLastStatuses(Collections.singletonMap(uri, status));
+	}
+
+	@Override
+	public void setLastStatuses(Map<Uri, AUSyncerStatus> statuses) {
+        if (statuses == null) throw new NullPointerException("statuses could not be null");
+
+		boolean writeNow;
+		synchronized (this) {
+			for (Map.Entry<Uri, AUSyncerStatus> entry : statuses.entrySet()) {
+				AUSyncerStatus status = withPreviousLastDownloaded(
+						entry.getKey(), entry.getValue());
+				// pending status stays readable even if it is dropped from
+				// cache before it is written
+				mDirty.put(entry.getKey(), status);
+				mCache.put(entry.getKey(), status);
+			}
+			writeNow = mFlushDelayMs < 0 || mClosed;
+			if (!writeNow) {
+				if (mDirty.size() >= mMaxPendingStatuses) {
+					// group is full so it is written without waiting
+					mFlushScheduled = true;
+					mFlushHandler.removeCallbacks(mFlushRunnable);
+					mFlushHandler.post(mFlushRunnable);
+				} else if (!mFlushScheduled) {
+					// first write of group decides when group is flushed, so
+					// constant stream of writes could not postpone it forever
+					mFlushScheduled = true;
+					mFlushHandler.postDelayed(mFlushRunnable, mFlushDelayMs);
+				}
+			}
+		}
+		if (writeNow) {
+			synchronized (mFlushLock) {
+				writePending();
+			}
+		}
+	}
+
+	// call with this
+	private AUSyncerStatus withPreviousLastDownloaded(Uri uri,
+			AUSyncerStatus status) {
+		if (status.getLastDownloaded() != -1L) {
+			return status;
+		}
+		// underlying store keeps previous time of last download when status
+		// does not have one, so cached status has to do the same
+		AUSyncerStatus previous = getCached(uri);
+		if (previous == null) {
+			previous = mComplete ? AUSyncerStatus.statusNeverDownloaded()
+					: mStore.getLastStatus(uri);
+		}
+		return status.withLastDownloaded(previous.getLastDownloaded());
+	}
+
+	@Override
+	public void flush() {
+		synchronized (mFlushLock) {
+			synchronized (this) {
+				mFlushScheduled = false;
+			}
+			if (writePending()) {
+				mStore.flush();
+			}
+		}
+	}
+
+	/**
+	 * Write pending statuses to underlying store as one group, call with
+	 * mFlushLock
+	 *
+	 * @return true if anything was written
+	 */
+	private boolean writePending() {
+		LinkedHashMap<Uri, AUSyncerStatus> dirty;
+		synchronized (this) {
+			if (mDirty.isEmpty()) {
+				return false;
+			}
+			dirty = mDirty;
+			mDirty = new LinkedHashMap<Uri, AUSyncerStatus>();
+			// group stays readable until underlying store has it
+			mWriting = dirty;
+		}
+		try {
+			mStore.setLastStatuses(dirty);
+		} finally {
+			synchronized (this) {
+				mWriting = null;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int evict(long minStatusTimeMs, int maxStatuses, Collection<Uri> keep) {
+        if (keep == null) throw new NullPointerException("keep could not be null");
+
+		synchronized (mFlushLock) {
+			flush();
+			int evicted = mStore.evict(minStatusTimeMs, maxStatuses, keep);
+			if (evicted > 0) {
+				synchronized (this) {
+					// evicted statuses would be read again as never downloaded,
+					// statuses set in the meantime are still pending
+					HashMap<Uri, AUSyncerStatus> retained = new HashMap<Uri, AUSyncerStatus>();
+					for (Uri uri : keep) {
+						AUSyncerStatus status = getCached(uri);
+						if (status != null) {
+							retained.put(uri, status);
+						}
+					}
+					retained.putAll(mDirty);
+					mCache.clear();
+					mCache.putAll(retained);
+					// other saved statuses have to be read again
+					mComplete = false;
+				}
+			}
+			return evicted;
+		}
+	}
+
+	/**
+	 * Flush pending statuses and stop background thread. Underlying store is
+	 * closed too. Could be called from task run by
+	 * {@link #runInBackground(Runnable)}, tasks posted after it are dropped.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+		}
+		// underlying store could not be closed in the middle of preload
+		awaitPreload();
+		mFlushHandler.removeCallbacks(mFlushRunnable);
+		flush();
+		mFlushThread.quit();
+		synchronized (mFlushLock) {
+			mStore.close();
+		}
+	}
+}
@@ -16,23 +16,22 @@
 
 package com.appunite.syncer;
 
-import android.annotation.SuppressLint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import android.app.Activity;
-import android.app.Service;
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.ServiceConnection;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
+import android.os.Process;
 import android.os.RemoteException;
 
 /**
@@ -59,12 +58,16 @@ import android.os.RemoteException;
  * </ul>
  * </p>
  * 
+ * <p>
+ * Connection with service is handled by {@link AbsDownloadHelper}, that is
+ * shared with {@link MultiDownloadHelper}.
+ * </p>
+ * 
  * @author Jacek Marchwicki <jacek.marchwicki@gmail.com>
  * 
  */
 @SuppressWarnings("UnusedDeclaration")
-@SuppressLint("HandlerLeak")
-public class DownloadHelper implements ServiceConnection {
+public class DownloadHelper extends AbsDownloadHelper {
 	
 	public static abstract class DownloadReceiver extends BroadcastReceiver {
 		
@@ -74,6 +77,12 @@ public class DownloadHelper implements ServiceConnection {
 					.getAction())) {
 				throw new IllegalStateException("We could capture only ON_PROGRESS_CHANGE");
 			}
+			if (intent.getIntExtra(
+					AbsDownloadService.ON_PROGRESS_CHANGE_EXTRA_SENDER_PID, -1) == Process
+					.myPid() && isRegisteredLocally(this)) {
+				// status was already delivered without broadcast
+				return;
+			}
 			Uri uri = intent
 					.getParcelableExtra(AbsDownloadService.ON_PROGRESS_CHANGE_EXTRA_URI);
 			if (uri == null) throw new NullPointerException("uri could not be null");
@@ -111,64 +120,21 @@ public class DownloadHelper implements ServiceConnection {
 		protected abstract void onReceive(Uri uri, AUSyncerStatus status);
 	}
 
-	private boolean mHaveLocalData = false;
-	private boolean mLocalDataIsEmpty = true;
+	// receivers of this process, protected with itself
+	private static final ArrayList<DownloadReceiver> sLocalReceivers = new ArrayList<DownloadReceiver>();
+	private static final Handler sMainHandler = new Handler(
+			Looper.getMainLooper());
 
-	private DownloadHelperStatus mDownloadHelperStatus;
-	
-	private AUSyncerStatus getLastStatus() {
-		try {
-			return mDownloadService.getLastStatus(mUri);
-		} catch (RemoteException e) {
-			return AUSyncerStatus.statusNeverDownloaded();
-		}
+	private static class ServiceState {
+		boolean inProgress;
+		AUSyncerStatus lastStatus;
 	}
 
-	private boolean isInProgress() {
-		if (mDownloadService == null)
-			return true;
-		try {
-			return mDownloadService.inProgress(mUri);
-		} catch (RemoteException e) {
-			reconnect();
-			return true;
-		}
-	}
+	// state pushed by service, accessed only from main thread
+	private boolean mInProgress = true;
+	private AUSyncerStatus mLastStatus = null;
 
-	private final Context mContext;
-
-	private IDownloadService mDownloadService = null;
-	private Uri mUri = null;
-	private Bundle mBundle = null;
-	private boolean mWithForce;
-	private final String mServiceActionName;
-	private DownloadReceiver mReceiver = new DownloadReceiver() {
-		
-		@Override
-		protected void onReceive(Uri uri, AUSyncerStatus status) {
-			if (ifUriMatch(mUri, uri)) {
-				setProgressStatus();
-			}
-		}
-	};
-	private boolean mIsActive = false;
-	private MyHandler mMyHandler;
-	private boolean mRequestDownload;
-
-	private class MyHandler extends Handler {
-
-		private static final int MSG_REFRESH_PROGRESS = 0;
-
-		public MyHandler(Looper looper) {
-			super(looper);
-		}
-
-		@Override
-		public void handleMessage(Message msg) {
-			setProgressStatus();
-		}
-
-	}
+	private final Uri mUri;
 
 	/**
 	 * Create DownloadHelper
@@ -188,19 +154,10 @@ public class DownloadHelper implements ServiceConnection {
 	 */
 	public DownloadHelper(Context context, String serviceActionName,
 			DownloadHelperStatus downloadHelperStatus, Uri uri) {
-
-        if (context == null) throw new NullPointerException("Context could not be null");
-        if (serviceActionName == null) throw new NullPointerException(
-                "serviceActionName could not be null");
-        if (downloadHelperStatus == null) throw new NullPointerException(
-                "downloadHelperStatus could not be null");
+		super(context, serviceActionName, downloadHelperStatus);
         if (uri == null) throw new NullPointerException("uri could not be null");
 
-		this.mContext = context;
-		this.mServiceActionName = serviceActionName;
-		mDownloadHelperStatus = downloadHelperStatus;
 		this.mUri = uri;
-		mMyHandler = new MyHandler(context.getMainLooper());
 	}
 
 	/**
@@ -226,6 +183,34 @@ public class DownloadHelper implements ServiceConnection {
 	 */
 	public static void startAsyncDownload(Context context, String serviceActionName,
 			Uri uri, Bundle bundle, boolean withForce) {
+		startAsyncDownload(context, serviceActionName, uri, bundle, withForce,
+				AbsDownloadService.PRIORITY_BACKGROUND);
+	}
+
+	/**
+	 * Request download data asynchronously with given priority
+	 * 
+	 * @param context
+	 *            context of application
+	 * @param serviceActionName
+	 *            action name that will start your implementation of
+	 *            {@link AbsDownloadService}, i.e.
+	 *            <code>DownloadService.ACTION_SYNC</code>
+	 * @param uri
+	 *            uri that you want to invoke. i.e. <code>Uri.withAppendedPath(
+	 *            DownloadService.AUTHORITY_URI, DownloadService.CONTENT_PATH)</code>
+	 * @param bundle
+	 *            data that should be delivered to subclass of
+	 *            {@link AbsDownloadService}.
+	 * @param withForce
+	 *            should downloading be performed even if the refresh time has
+	 *            not expired
+	 * @param priority
+	 *            priority of task i.e.
+	 *            {@link AbsDownloadService#PRIORITY_BACKGROUND}
+	 */
+	public static void startAsyncDownload(Context context, String serviceActionName,
+			Uri uri, Bundle bundle, boolean withForce, int priority) {
         if (context == null) throw new NullPointerException("Context could not be null");
         if (serviceActionName == null) throw new NullPointerException(
                 "serviceActionName could not be null");
@@ -235,6 +220,7 @@ public class DownloadHelper implements ServiceConnection {
 		service.putExtra(AbsDownloadService.EXTRA_URI, uri);
 		service.putExtra(AbsDownloadService.EXTRA_BUNDLE, bundle);
 		service.putExtra(AbsDownloadService.EXTRA_WITH_FORCE, withForce);
+		service.putExtra(AbsDownloadService.EXTRA_PRIORITY, priority);
 		context.startService(service);
 	}
 
@@ -252,6 +238,10 @@ public class DownloadHelper implements ServiceConnection {
         if (downloadReceiver == null) throw new NullPointerException(
                 "downloadReceiver could not be null");
 
+		synchronized (sLocalReceivers) {
+			sLocalReceivers.add(downloadReceiver);
+		}
+		// broadcast is still needed when service runs in other process
 		context.registerReceiver(downloadReceiver, new IntentFilter(
 				AbsDownloadService.ON_PROGRESS_CHANGE));
 	}
@@ -270,187 +260,107 @@ public class DownloadHelper implements ServiceConnection {
         if (downloadReceiver == null) throw new NullPointerException(
                 "downloadReceiver could not be null");
 
+		synchronized (sLocalReceivers) {
+			sLocalReceivers.remove(downloadReceiver);
+		}
 		context.unregisterReceiver(downloadReceiver);
 	}
 
-	/**
-	 * Initialize DownloadHelper. Should be called in {@link Activity#onResume}.
-	 */
-	public void onActivityResume() {
-        if (mIsActive) {
-            throw new IllegalStateException("Download helper already resumed");
-        }
-		mIsActive = true;
-		
-		DownloadHelper.registerDownloadReceiver(mContext, mReceiver);
-		reconnect();
-	}
-
-	/**
-	 * Pause DownloadHelper. Should be called in {@link Activity#onPause}.
-	 */
-	public void onActivityPause() {
-        if (!mIsActive) {
-            throw new IllegalStateException("Download helper not resumed");
-        }
-		mIsActive = false;
-		DownloadHelper.unregisterDownloadReceiver(mContext, mReceiver);
-		mContext.unbindService(this);
-		mMyHandler.removeMessages(MyHandler.MSG_REFRESH_PROGRESS);
+	private static boolean isRegisteredLocally(DownloadReceiver downloadReceiver) {
+		synchronized (sLocalReceivers) {
+			return sLocalReceivers.contains(downloadReceiver);
+		}
 	}
 
 	/**
-	 * Informs {@link DownloadHelper} that your data was loaded/unloaded
+	 * Deliver status to receivers of this process on main thread, like
+	 * broadcast would be delivered
 	 * 
-	 * @param haveLocalData
-	 *            <code>true</code> if your data was downloaded,
-	 *            <code>false</code> otherwise
-	 * @param dataIsEmpty
-	 *            <code>true</code> if downloaded data was empty,
-	 *            <code>false</code> otherwise. This value is only read if
-	 *            <code>haveLocalData == true</code>
+	 * @param uri
+	 *            uri that was executed
+	 * @param status
+	 *            status of execution
 	 */
-	public void updateLocalData(boolean haveLocalData, boolean dataIsEmpty) {
-		mHaveLocalData = haveLocalData;
-		mLocalDataIsEmpty = dataIsEmpty;
-		if (mIsActive) {
-			setProgressStatus();
-        }
+	static void dispatchLocalStatus(final Uri uri, final AUSyncerStatus status) {
+		final ArrayList<DownloadReceiver> receivers;
+		synchronized (sLocalReceivers) {
+			if (sLocalReceivers.isEmpty()) {
+				return;
+			}
+			receivers = new ArrayList<DownloadReceiver>(sLocalReceivers);
+		}
+		sMainHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				for (DownloadReceiver receiver : receivers) {
+					// receiver could be unregistered in the meantime
+					if (isRegisteredLocally(receiver)) {
+						receiver.onReceive(uri, status);
+					}
+				}
+			}
+		});
 	}
 
-	/**
-	 * Simple wrapper for
-	 * {@link DownloadHelper#updateLocalData(boolean, boolean)} that can be used
-	 * with cursor.
-	 * 
-	 * <p>
-	 * In Example:
-	 * 
-	 * <pre class="prettyprint">
-	 * &#064;Override
-	 * public void onLoadFinished(Loader&lt;Cursor&gt; loader, Cursor cursor) {
-	 * 	mDownloadHelper.updateLocalData(cursor);
-	 * 	mAdapter.swapCursor(cursor);
-	 * }
-	 * 
-	 * &#064;Override
-	 * public void onLoaderReset(Loader&lt;Cursor&gt; loader) {
-	 * 	mDownloadHelper.updateLocalData(null);
-	 * 	mAdapter.swapCursor(null);
-	 * }
-	 * </pre>
-	 * 
-	 * </p>
-	 * 
-	 * @param cursor
-	 *            <code>cursor</code> if your data was loaded, <code>null</code>
-	 *            otherwise
-	 */
-	public void updateLocalData(Cursor cursor) {
-		boolean haveLocalData = cursor != null;
-		boolean dataIsEmpty = cursor == null || cursor.getCount() == 0;
-		this.updateLocalData(haveLocalData, dataIsEmpty);
+	@Override
+	List<Uri> observedUris() {
+		return Collections.singletonList(mUri);
 	}
-	
-	/**
-	 * Request download user data. Usually should be invoked
-	 * <code>DownloadHelper.startDownloading(null, false)</code> in
-	 * {@link Activity#onResume} and
-	 * <code>DownloadHelper.startDownloading(null, true)</code> while user
-	 * pushes refresh button.
-	 * 
-	 * @param bundle
-	 *            data that should be delivered to subclass of
-	 *            {@link AbsDownloadService}.
-	 * @param withForce
-	 *            should downloading be performed even if the refresh time has
-	 *            not expired
-	 */
-	public void startDownloading(Bundle bundle, boolean withForce) {
-        if (mIsActive) {
-            mBundle = bundle;
-            mWithForce = withForce;
-            mRequestDownload = true;
-            if (mDownloadService != null) {
-                try {
-                    mDownloadService.download(mUri, mBundle, mWithForce);
-                    mRequestDownload = false;
-                } catch (RemoteException e) {
-                    reconnect();
-                }
-                setProgressStatus();
-            }
-        } else {
-            startAsyncDownload(mContext, mServiceActionName, mUri, bundle, withForce);
-        }
+
+	@Override
+	Object readServiceState(IDownloadService service) throws RemoteException {
+		ServiceState state = new ServiceState();
+		state.inProgress = service.inProgress(mUri);
+		state.lastStatus = service.getLastStatus(mUri);
+		return state;
 	}
 
-	private void reconnect() {
-		mDownloadService = null;
-		Intent downloadService = new Intent(mServiceActionName);
-        mContext.startService(downloadService);
-		boolean foundService = mContext.bindService(downloadService, this,
-				Service.BIND_AUTO_CREATE);
-		if (!foundService) {
-			throw new IllegalArgumentException(
-					"Service: "
-							+ mServiceActionName
-							+ " does not found, did you forgot to add it to AndroidManifest file?");
-		}
+	@Override
+	void setServiceState(Object state) {
+		ServiceState serviceState = (ServiceState) state;
+		mInProgress = serviceState.inProgress;
+		mLastStatus = serviceState.lastStatus;
+	}
 
-		setProgressStatus();
+	@Override
+	void setStoredStatuses(List<AUSyncerStatus> statuses) {
+		mLastStatus = statuses.get(0);
 	}
 
 	@Override
-	public void onServiceConnected(ComponentName name, IBinder service) {
-		mDownloadService = IDownloadService.Stub.asInterface(service);
-		if (mRequestDownload) {
-			startDownloading(mBundle, mWithForce);
-        }
-		setProgressStatus();
+	boolean onTaskInProgress(Uri uri) {
+		mInProgress = true;
+		return true;
 	}
 
 	@Override
-	public void onServiceDisconnected(ComponentName name) {
-		mDownloadService = null;
+	boolean onTaskFinished(Uri uri, AUSyncerStatus status) {
+		mInProgress = false;
+		mLastStatus = status;
+		return true;
 	}
 
-	protected void setProgressStatus() {
-		boolean screenProgress;
-		boolean progressIndicator;
-		boolean screenVisible;
-		boolean screenEmpty;
+	@Override
+	boolean isInProgress() {
+		return mInProgress;
+	}
 
-		boolean isBound = mDownloadService != null; 
-		AUSyncerStatus lastStatus;
+	@Override
+	AUSyncerStatus getReportedLastStatus() {
+		return mLastStatus;
+	}
 
-		mMyHandler.removeMessages(MyHandler.MSG_REFRESH_PROGRESS);
-		
-		if (!isBound || !mHaveLocalData) {
-			lastStatus = AUSyncerStatus.statusNeverDownloaded();
-			progressIndicator = true;
-			screenProgress = true;
-			screenVisible = false;
-			screenEmpty = false;
-		} else {
-			boolean isInProgress = isInProgress();
-			
-			lastStatus = getLastStatus();
-			
-			boolean hasDownloadedData = !lastStatus.isNeverDownloaded();
-			
-			progressIndicator = isInProgress;
-			screenProgress = !hasDownloadedData && isInProgress && mLocalDataIsEmpty;
-			screenVisible = !mLocalDataIsEmpty;
-			screenEmpty = hasDownloadedData && mLocalDataIsEmpty;
-			if (lastStatus.isError()) {
-				mMyHandler.sendEmptyMessageDelayed(MyHandler.MSG_REFRESH_PROGRESS,
-						1000);
-			}
-		}
-		
+	@Override
+	void requestDownload(IDownloadService service, Bundle bundle,
+			boolean withForce) throws RemoteException {
+		service.downloadWithPriority(mUri, bundle, withForce,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+	}
 
-		mDownloadHelperStatus.onReportStatus(screenVisible, screenEmpty, screenProgress, progressIndicator, lastStatus);
+	@Override
+	void startAsyncDownload(Bundle bundle, boolean withForce) {
+		startAsyncDownload(mContext, mServiceActionName, mUri, bundle,
+				withForce, AbsDownloadService.PRIORITY_FOREGROUND);
 	}
-	
 }
\ No newline at end of file
@@ -19,7 +19,8 @@ package com.appunite.syncer;
 public interface DownloadHelperStatus {
 
 	/**
-	 * Reports progress/error status
+	 * Reports progress/error status. Called only when any of reported values
+	 * changed since previous call, and once after helper is resumed.
 	 * 
 	 * <p>
 	 * Example use case:
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+/**
+ * Connection to {@link AbsDownloadService} shared by all helpers of process
+ * that use the same service action.
+ * 
+ * <p>
+ * Every client acquires connection when it starts using service and
+ * releases it when it stops. Service is bound while connection is acquired
+ * by at least one client, and stays bound for release delay after the last
+ * client releases it, so quick pause and resume of activities does not
+ * rebuild binder connection:
+ * 
+ * <pre class="prettyprint">
+ * DownloadServiceConnection connection = DownloadServiceConnection.obtain(
+ * 		context, DownloadService.ACTION_SYNC);
+ * connection.setReleaseDelay(10000);
+ * connection.acquire(this);
+ * connection.execute(new DownloadServiceConnection.ServiceRequest() {
+ * 	&#064;Override
+ * 	public void run(IDownloadService service) throws RemoteException {
+ * 		service.download(uri, null, false);
+ * 	}
+ * });
+ * </pre>
+ * 
+ * </p>
+ * 
+ * <p>
+ * Connection should be used only from main thread. Clients are notified
+ * with {@link ServiceConnection} methods. Requests and other calls that
+ * could wait for service, like reading statuses, are made with
+ * {@link #runInBackground(Runnable)}, so main thread never waits for
+ * service.
+ * </p>
+ * 
+ * @see DownloadHelper
+ * @see MultiDownloadHelper
+ */
+public class DownloadServiceConnection implements ServiceConnection {
+
+	public static final long DEFAULT_RELEASE_DELAY_MS = 5000;
+
+	/**
+	 * Request executed on background thread when service is connected
+	 */
+	public interface ServiceRequest {
+
+		/**
+		 * Execute request
+		 * 
+		 * @param service
+		 *            connected service
+		 * @throws RemoteException
+		 *             when service died, request is executed again after
+		 *             reconnection
+		 */
+		void run(IDownloadService service) throws RemoteException;
+	}
+
+	// accessed only from main thread
+	private static final HashMap<Context, HashMap<String, DownloadServiceConnection>> sConnections = new HashMap<Context, HashMap<String, DownloadServiceConnection>>();
+
+	// calls of helpers, one thread so calls are made in order they were posted
+	private static HandlerThread sBackgroundThread = null;
+	private static Handler sBackgroundHandler = null;
+
+	private final Context mContext;
+	private final String mServiceActionName;
+	private final Handler mHandler;
+	private long mReleaseDelayMs = DEFAULT_RELEASE_DELAY_MS;
+
+	private final ArrayList<ServiceConnection> mClients = new ArrayList<ServiceConnection>();
+	private final ArrayList<ServiceRequest> mPendingRequests = new ArrayList<ServiceRequest>();
+	private boolean mBound = false;
+	private ComponentName mName = null;
+	private IBinder mBinder = null;
+	private IDownloadService mService = null;
+
+	private final Runnable mUnbindRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			if (mClients.isEmpty()) {
+				unbind();
+			}
+		}
+	};
+
+	/**
+	 * Return connection shared by process
+	 * 
+	 * @param context
+	 *            any context, application context is used if there is one
+	 * @param serviceActionName
+	 *            action name that will start your implementation of
+	 *            {@link AbsDownloadService}, i.e.
+	 *            <code>DownloadService.ACTION_SYNC</code>
+	 * @return shared connection
+	 */
+	public static DownloadServiceConnection obtain(Context context,
+			String serviceActionName) {
+        if (context == null) throw new NullPointerException("Context could not be null");
+        if (serviceActionName == null) throw new NullPointerException(
+                "serviceActionName could not be null");
+
+		Context applicationContext = context.getApplicationContext();
+		if (applicationContext != null) {
+			context = applicationContext;
+		}
+		HashMap<String, DownloadServiceConnection> connections = sConnections
+				.get(context);
+		if (connections == null) {
+			connections = new HashMap<String, DownloadServiceConnection>();
+			sConnections.put(context, connections);
+		}
+		DownloadServiceConnection connection = connections
+				.get(serviceActionName);
+		if (connection == null) {
+			connection = new DownloadServiceConnection(context,
+					serviceActionName);
+			connections.put(serviceActionName, connection);
+		}
+		return connection;
+	}
+
+	/**
+	 * Run task on background thread shared by helpers of process. Tasks are
+	 * run one by one in order they were posted, so i.e. callback is never
+	 * unregistered before it was registered.
+	 * 
+	 * @param task
+	 *            task to run
+	 */
+	static void runInBackground(Runnable task) {
+        if (task == null) throw new NullPointerException("task could not be null");
+
+		synchronized (DownloadServiceConnection.class) {
+			if (sBackgroundHandler == null) {
+				sBackgroundThread = new HandlerThread("DownloadServiceConnection");
+				sBackgroundThread.start();
+				sBackgroundHandler = new Handler(sBackgroundThread.getLooper());
+			}
+		}
+		sBackgroundHandler.post(task);
+	}
+
+	private DownloadServiceConnection(Context context, String serviceActionName) {
+		mContext = context;
+		mServiceActionName = serviceActionName;
+		mHandler = new Handler(context.getMainLooper());
+	}
+
+	/**
+	 * Set time for which service stays bound after the last client released
+	 * connection. Connection is kept by process after service is unbound, so
+	 * delay is used until it is changed again.
+	 * 
+	 * @param releaseDelayMs
+	 *            delay in ms, <code>0</code> to unbind immediately
+	 */
+	public void setReleaseDelay(long releaseDelayMs) {
+		if (releaseDelayMs < 0)
+			throw new IllegalArgumentException("releaseDelayMs could not be negative");
+
+		mReleaseDelayMs = releaseDelayMs;
+	}
+
+	/**
+	 * Start using connection. If service is already connected client is
+	 * notified immediately.
+	 * 
+	 * @param client
+	 *            client notified about connection changes
+	 * @throws IllegalArgumentException
+	 *             when service could not be found
+	 */
+	public void acquire(ServiceConnection client) {
+        if (client == null) throw new NullPointerException("client could not be null");
+		if (mClients.contains(client)) {
+			throw new IllegalStateException("Client already acquired connection");
+		}
+
+		mHandler.removeCallbacks(mUnbindRunnable);
+		if (!mBound) {
+			bind();
+		}
+		mClients.add(client);
+		if (mBinder != null) {
+			client.onServiceConnected(mName, mBinder);
+		}
+	}
+
+	/**
+	 * Stop using connection. Service is unbound after release delay if there
+	 * is no other client.
+	 * 
+	 * @param client
+	 *            client given to {@link #acquire(ServiceConnection)}
+	 */
+	public void release(ServiceConnection client) {
+        if (client == null) throw new NullPointerException("client could not be null");
+		if (!mClients.remove(client)) {
+			throw new IllegalStateException("Client did not acquire connection");
+		}
+
+		if (!mClients.isEmpty()) {
+			return;
+		}
+		if (mReleaseDelayMs == 0) {
+			unbind();
+		} else {
+			mHandler.postDelayed(mUnbindRunnable, mReleaseDelayMs);
+		}
+	}
+
+	/**
+	 * Return connected service
+	 * 
+	 * @return service or null if service is not connected
+	 */
+	public IDownloadService getService() {
+		return mService;
+	}
+
+	/**
+	 * Execute request on background thread immediately if service is
+	 * connected, otherwise when it connects. Requests are executed in order
+	 * they were posted and after clients are notified about connection.
+	 * When request fails connection is rebuilt on main thread and request is
+	 * executed again.
+	 * 
+	 * @param request
+	 *            request to execute
+	 * @throws IllegalStateException
+	 *             when connection is not acquired
+	 */
+	public void execute(ServiceRequest request) {
+        if (request == null) throw new NullPointerException("request could not be null");
+		if (!mBound) {
+			throw new IllegalStateException("Connection is not acquired");
+		}
+
+		mPendingRequests.add(request);
+		if (mService != null) {
+			executePendingRequests();
+		}
+	}
+
+	/**
+	 * Bind service again, i.e. when call to service failed. Clients are
+	 * notified about disconnection and connection.
+	 */
+	public void reconnect() {
+		if (!mBound) {
+			return;
+		}
+		mContext.unbindService(this);
+		mBound = false;
+		onServiceDisconnected(mName);
+		bind();
+	}
+
+	private void bind() {
+		Intent downloadService = new Intent(mServiceActionName);
+		mContext.startService(downloadService);
+		boolean foundService = mContext.bindService(downloadService, this,
+				Service.BIND_AUTO_CREATE);
+		if (!foundService) {
+			throw new IllegalArgumentException(
+					"Service: "
+							+ mServiceActionName
+							+ " does not found, did you forgot to add it to AndroidManifest file?");
+		}
+		mBound = true;
+	}
+
+	private void unbind() {
+		if (mBound) {
+			mContext.unbindService(this);
+			mBound = false;
+		}
+		mName = null;
+		mBinder = null;
+		mService = null;
+		mPendingRequests.clear();
+		// connection stays in sConnections, so next obtain returns it with
+		// release delay that was set
+	}
+
+	private void executePendingRequests() {
+		final IDownloadService service = mService;
+		while (service != null && !mPendingRequests.isEmpty()) {
+			final ServiceRequest request = mPendingRequests.remove(0);
+			runInBackground(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						request.run(service);
+					} catch (RemoteException e) {
+						mHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								onRequestFailed(service, request);
+							}
+						});
+					}
+				}
+			});
+		}
+	}
+
+	private void onRequestFailed(IDownloadService service,
+			ServiceRequest request) {
+		if (!mBound) {
+			// connection was released, so request is dropped like pending ones
+			return;
+		}
+		// request stays pending until service is connected again
+		mPendingRequests.add(request);
+		if (service == mService) {
+			reconnect();
+		} else if (mService != null) {
+			// service was already reconnected by other failed request
+			executePendingRequests();
+		}
+	}
+
+	@Override
+	public void onServiceConnected(ComponentName name, IBinder service) {
+		mName = name;
+		mBinder = service;
+		mService = IDownloadService.Stub.asInterface(service);
+		for (ServiceConnection client : new ArrayList<ServiceConnection>(
+				mClients)) {
+			client.onServiceConnected(name, service);
+		}
+		executePendingRequests();
+	}
+
+	@Override
+	public void onServiceDisconnected(ComponentName name) {
+		mBinder = null;
+		mService = null;
+		for (ServiceConnection client : new ArrayList<ServiceConnection>(
+				mClients)) {
+			client.onServiceDisconnected(name);
+		}
+	}
+}
@@ -17,8 +17,12 @@
 package com.appunite.syncer;
 
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import com.appunite.ausyncer.BuildConfig;
 
@@ -28,11 +32,15 @@ import android.content.SharedPreferences.Editor;
 import android.net.Uri;
 import android.util.Log;
 
-public class DownloadSharedPreference {
+public class DownloadSharedPreference implements DownloadStatusStore {
+	private static final String PREFIX_STATUS = "_status";
+	// legacy layout with four or five keys per uri, it is read as it is and
+	// migrated when status of uri is written or by getAllLastStatuses()
 	private static final String PREFIX_LAST_MESSAGE_OBJ = "_last_error_obj";
 	private static final String PREFIX_LAST_MESSAGE = "_last_error_message";
 	private static final String PREFIX_LAST_TIME = "_last_error_time";
 	private static final String PREFIX_LAST_DOWNLOADED = "_last_downloaded";
+	private static final String PREFIX_LAST_ATTEMPT = "_last_attempt";
 	private static final String DOWNLOAD_PREFERENCES_NAME = "download_preferences";
 	
 	private static final String TAG = DownloadSharedPreference.class.getCanonicalName();
@@ -46,34 +54,100 @@ public class DownloadSharedPreference {
                 DOWNLOAD_PREFERENCES_NAME, Context.MODE_MULTI_PROCESS);
 	}
 
+	@Override
 	public AUSyncerStatus getLastStatus(Uri uri) {
         if (uri == null) throw new NullPointerException("uri could not be null");
 
+		AUSyncerStatus status = readStatus(uriToPreferenceKey(uri));
+		if (status != null) {
+			return status;
+		}
+		// reads do not write, legacy keys are migrated by writes
+		status = readLegacyStatus(uri);
+		if (status == null) {
+			return AUSyncerStatus.statusNeverDownloaded();
+		}
+		return status;
+	}
+
+	private AUSyncerStatus readStatus(String key) {
+		String record = mSharedPreferences.getString(key + PREFIX_STATUS, null);
+		if (record == null) {
+			return null;
+		}
+		try {
+			return AUSyncerStatusCodec.decodeFromString(record);
+		} catch (IllegalArgumentException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, "Wrong value saved in preferences", e);
+			}
+			return AUSyncerStatus.statusNeverDownloaded();
+		}
+	}
+
+	private AUSyncerStatus readLegacyStatus(Uri uri) {
 		String preferenceKeyMessage = uriToPreferenceKey(uri) + PREFIX_LAST_MESSAGE;
 		String preferenceKeyTime = uriToPreferenceKey(uri) + PREFIX_LAST_TIME;
 		String preferenceKeyMessageObject = uriToPreferenceKey(uri) + PREFIX_LAST_MESSAGE_OBJ;
 		String preferenceKeyLastDownloaded = uriToPreferenceKey(uri) + PREFIX_LAST_DOWNLOADED;
+		String preferenceKeyAttempt = uriToPreferenceKey(uri) + PREFIX_LAST_ATTEMPT;
 		
 		if (!mSharedPreferences.contains(preferenceKeyMessage)) {
-			return AUSyncerStatus.statusNeverDownloaded();
+			return null;
 		}
 		int message = mSharedPreferences.getInt(preferenceKeyMessage, -1);
 		long statusTimeMs = mSharedPreferences.getLong(preferenceKeyTime, -1);
 		String messageObjectStr = mSharedPreferences.getString(preferenceKeyMessageObject, null);
 		long lastDownloaded = mSharedPreferences.getLong(preferenceKeyLastDownloaded, -1L);
-		JSONObject messageObject = null;
-		if (messageObjectStr != null) {
-			try {
-				messageObject = new JSONObject(messageObjectStr);
-			} catch (JSONException e) {
-				if (BuildConfig.DEBUG) {
-					Log.e(TAG, "Wrong value saved in preferences", e);
-				}
-				return AUSyncerStatus.statusNeverDownloaded();
+		int attempt = mSharedPreferences.getInt(preferenceKeyAttempt, 1);
+		return new AUSyncerStatus(message, statusTimeMs, lastDownloaded,
+				messageObjectStr, attempt);
+	}
+
+	@Override
+	public List<AUSyncerStatus> getLastStatuses(List<Uri> uris) {
+        if (uris == null) throw new NullPointerException("uris could not be null");
+
+		List<AUSyncerStatus> statuses = new ArrayList<AUSyncerStatus>(uris.size());
+		for (Uri uri : uris) {
+			statuses.add(getLastStatus(uri));
+		}
+		return statuses;
+	}
+
+	@Override
+	public Map<Uri, AUSyncerStatus> getAllLastStatuses() {
+		// statuses still saved in legacy layout are migrated with single commit
+		HashMap<Uri, AUSyncerStatus> statuses = new HashMap<Uri, AUSyncerStatus>();
+		ArrayList<Uri> legacy = new ArrayList<Uri>();
+		for (String key : mSharedPreferences.getAll().keySet()) {
+			if (key.endsWith(PREFIX_STATUS)) {
+				Uri uri = Uri.parse(key.substring(0,
+						key.length() - PREFIX_STATUS.length()));
+				statuses.put(uri, readStatus(uriToPreferenceKey(uri)));
+			} else if (key.endsWith(PREFIX_LAST_MESSAGE)) {
+				legacy.add(Uri.parse(key.substring(0,
+						key.length() - PREFIX_LAST_MESSAGE.length())));
 			}
 		}
-		return new AUSyncerStatus(message, statusTimeMs, lastDownloaded,
-				messageObject);
+		if (legacy.isEmpty()) {
+			return statuses;
+		}
+		Editor editor = mSharedPreferences.edit();
+		for (Uri uri : legacy) {
+			String key = uriToPreferenceKey(uri);
+			AUSyncerStatus status = statuses.get(uri);
+			if (status == null) {
+				status = readLegacyStatus(uri);
+				statuses.put(uri, status);
+				editor.putString(key + PREFIX_STATUS,
+						AUSyncerStatusCodec.encodeToString(status));
+			}
+			// record in current layout wins over legacy keys
+			removeLegacyKeys(editor, key);
+		}
+		editor.commit();
+		return statuses;
 	}
 
 	private String uriToPreferenceKey(Uri uri) {
@@ -81,31 +155,110 @@ public class DownloadSharedPreference {
 		return uri.toString();
 	}
 
+	@Override
 	public void setLastStatus(Uri uri, AUSyncerStatus status) {
         if (uri == null) throw new NullPointerException("uri could not be null");
         if (status == null) throw new NullPointerException("status could not be null");
 
-		String preferenceKeyMessage = uriToPreferenceKey(uri) + PREFIX_LAST_MESSAGE;
-		String preferenceKeyTime = uriToPreferenceKey(uri) + PREFIX_LAST_TIME;
-		String preferenceKeyMessageObject = uriToPreferenceKey(uri) + PREFIX_LAST_MESSAGE_OBJ;
-		String preferenceKeyLastDownloaded = uriToPreferenceKey(uri) + PREFIX_LAST_DOWNLOADED;
-		
 		Editor editor = mSharedPreferences.edit();
-		editor.putInt(preferenceKeyMessage, status.getMessage());
-		editor.putLong(preferenceKeyTime, status.getStatusTimeMs());
-		long lastDownloaded = status.getLastDownloaded();
-		if (lastDownloaded != -1L) {
-			editor.putLong(preferenceKeyLastDownloaded, lastDownloaded);
-		}
-		JSONObject object = status.getMsgObjectOrNull();
-		if (object == null) {
-			editor.remove(preferenceKeyMessageObject);
-		} else {
-			editor.putString(preferenceKeyMessageObject, object.toString());
+		putLastStatus(editor, uri, status);
+		editor.commit();
+	}
+
+	@Override
+	public void setLastStatuses(Map<Uri, AUSyncerStatus> statuses) {
+        if (statuses == null) throw new NullPointerException("statuses could not be null");
+
+		// all statuses are written with single commit
+		Editor editor = mSharedPreferences.edit();
+		for (Map.Entry<Uri, AUSyncerStatus> entry : statuses.entrySet()) {
+			putLastStatus(editor, entry.getKey(), entry.getValue());
 		}
 		editor.commit();
 	}
 
+	@Override
+	public void flush() {
+		// every change is already committed
+	}
+
+	@Override
+	public void close() {
+		// shared preferences are managed by context
+	}
+
+	@Override
+	public int evict(long minStatusTimeMs, int maxStatuses, Collection<Uri> keep) {
+        if (keep == null) throw new NullPointerException("keep could not be null");
+
+		HashSet<String> keepKeys = new HashSet<String>(keep.size());
+		for (Uri uri : keep) {
+			keepKeys.add(uriToPreferenceKey(uri));
+		}
+		HashMap<String, Long> statusTimes = new HashMap<String, Long>();
+		for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+			String key = entry.getKey();
+			if (key.endsWith(PREFIX_STATUS)) {
+				String uriKey = key.substring(0, key.length() - PREFIX_STATUS.length());
+				AUSyncerStatus status = readStatus(uriKey);
+				statusTimes.put(uriKey, status == null ? 0L : status.getStatusTimeMs());
+			} else if (key.endsWith(PREFIX_LAST_TIME)) {
+				String uriKey = key.substring(0, key.length() - PREFIX_LAST_TIME.length());
+				if (!statusTimes.containsKey(uriKey)) {
+					statusTimes.put(uriKey, (Long) entry.getValue());
+				}
+			}
+		}
+		List<String> evicted = StatusEviction.choose(statusTimes, keepKeys,
+				minStatusTimeMs, maxStatuses);
+		int removed = 0;
+		Editor editor = mSharedPreferences.edit();
+		for (String key : evicted) {
+			if (keep.contains(Uri.parse(key))) {
+				// uri was requested again during eviction
+				continue;
+			}
+			editor.remove(key + PREFIX_STATUS);
+			removeLegacyKeys(editor, key);
+			removed++;
+		}
+		if (removed == 0) {
+			return 0;
+		}
+		editor.commit();
+		return removed;
+	}
+
+	private void putLastStatus(Editor editor, Uri uri, AUSyncerStatus status) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+        if (status == null) throw new NullPointerException("status could not be null");
+
+		String key = uriToPreferenceKey(uri);
+		if (status.getLastDownloaded() == -1L) {
+			// keep time of last successful download
+			AUSyncerStatus previous = readStatus(key);
+			if (previous == null) {
+				previous = readLegacyStatus(uri);
+			}
+			if (previous != null) {
+				status = status.withLastDownloaded(previous.getLastDownloaded());
+			}
+		}
+		editor.putString(key + PREFIX_STATUS,
+				AUSyncerStatusCodec.encodeToString(status));
+		if (mSharedPreferences.contains(key + PREFIX_LAST_MESSAGE)) {
+			removeLegacyKeys(editor, key);
+		}
+	}
+
+	private static void removeLegacyKeys(Editor editor, String key) {
+		editor.remove(key + PREFIX_LAST_MESSAGE);
+		editor.remove(key + PREFIX_LAST_TIME);
+		editor.remove(key + PREFIX_LAST_MESSAGE_OBJ);
+		editor.remove(key + PREFIX_LAST_DOWNLOADED);
+		editor.remove(key + PREFIX_LAST_ATTEMPT);
+	}
+
 	@SuppressWarnings("UnusedDeclaration")
     public void clear() {
 		Editor editor = mSharedPreferences.edit();
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+/**
+ * {@link DownloadStatusStore} that keeps statuses in SQLite table with uri as
+ * primary key. Unlike {@link DownloadSharedPreference} saving status does not
+ * rewrite statuses of other uris, so it should be used when service handles
+ * many uris.
+ *
+ * <pre class="prettyprint">
+ * &#064;Override
+ * protected DownloadStatusStore createStatusStore() {
+ * 	return new DownloadStatusDatabase(this);
+ * }
+ * </pre>
+ *
+ * @see AbsDownloadService#createStatusStore()
+ */
+public class DownloadStatusDatabase implements DownloadStatusStore {
+	private static final String DATABASE_NAME = "download_statuses.db";
+	private static final int DATABASE_VERSION = 2;
+
+	private static final String TABLE = "statuses";
+	private static final String COLUMN_URI = "uri";
+	private static final String COLUMN_MESSAGE = "message";
+	private static final String COLUMN_TIME = "status_time";
+	private static final String COLUMN_LAST_DOWNLOADED = "last_downloaded";
+	private static final String COLUMN_MESSAGE_OBJ = "message_obj";
+	private static final String COLUMN_ATTEMPT = "attempt";
+	private static final String COLUMN_HTTP_CODE = "http_code";
+	private static final String COLUMN_RETRY_AFTER = "retry_after";
+	private static final String[] PROJECTION = new String[] { COLUMN_URI,
+			COLUMN_MESSAGE, COLUMN_TIME, COLUMN_LAST_DOWNLOADED,
+			COLUMN_MESSAGE_OBJ, COLUMN_ATTEMPT, COLUMN_HTTP_CODE,
+			COLUMN_RETRY_AFTER };
+
+	// last downloaded time is kept when new status does not have one
+	private static final String SQL_SET_STATUS = "INSERT OR REPLACE INTO "
+			+ TABLE + " (" + COLUMN_URI + ", " + COLUMN_MESSAGE + ", "
+			+ COLUMN_TIME + ", " + COLUMN_LAST_DOWNLOADED + ", "
+			+ COLUMN_MESSAGE_OBJ + ", " + COLUMN_ATTEMPT + ", "
+			+ COLUMN_HTTP_CODE + ", " + COLUMN_RETRY_AFTER
+			+ ") VALUES (?, ?, ?, COALESCE(?, (SELECT "
+			+ COLUMN_LAST_DOWNLOADED + " FROM " + TABLE + " WHERE "
+			+ COLUMN_URI + " = ?)), ?, ?, ?, ?)";
+
+	// SQLite limits number of arguments of single query to 999
+	private static final int MAX_QUERY_ARGUMENTS = 500;
+
+	private static class OpenHelper extends SQLiteOpenHelper {
+
+		public OpenHelper(Context context) {
+			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE + " (" + COLUMN_URI
+					+ " TEXT PRIMARY KEY NOT NULL, " + COLUMN_MESSAGE
+					+ " INTEGER NOT NULL, " + COLUMN_TIME
+					+ " INTEGER NOT NULL, " + COLUMN_LAST_DOWNLOADED
+					+ " INTEGER, " + COLUMN_MESSAGE_OBJ + " TEXT, "
+					+ COLUMN_ATTEMPT + " INTEGER NOT NULL DEFAULT 1, "
+					+ COLUMN_HTTP_CODE + " INTEGER NOT NULL DEFAULT -1, "
+					+ COLUMN_RETRY_AFTER + " INTEGER NOT NULL DEFAULT -1)");
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion,
+				int newVersion) {
+			if (oldVersion < 2) {
+				db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN "
+						+ COLUMN_HTTP_CODE + " INTEGER NOT NULL DEFAULT -1");
+				db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN "
+						+ COLUMN_RETRY_AFTER + " INTEGER NOT NULL DEFAULT -1");
+			}
+		}
+	}
+
+	private final OpenHelper mOpenHelper;
+
+	public DownloadStatusDatabase(Context context) {
+        if (context == null) throw new NullPointerException("context could not be null");
+
+		mOpenHelper = new OpenHelper(context);
+	}
+
+	@Override
+	public AUSyncerStatus getLastStatus(Uri uri) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		Cursor cursor = db.query(TABLE, PROJECTION, COLUMN_URI + " = ?",
+				new String[] { uri.toString() }, null, null, null);
+		try {
+			if (!cursor.moveToNext()) {
+				return AUSyncerStatus.statusNeverDownloaded();
+			}
+			return statusFromCursor(cursor);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public List<AUSyncerStatus> getLastStatuses(List<Uri> uris) {
+        if (uris == null) throw new NullPointerException("uris could not be null");
+
+		HashMap<String, AUSyncerStatus> found = new HashMap<String, AUSyncerStatus>(
+				uris.size());
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		for (int start = 0; start < uris.size(); start += MAX_QUERY_ARGUMENTS) {
+			int end = Math.min(uris.size(), start + MAX_QUERY_ARGUMENTS);
+			String[] args = new String[end - start];
+			StringBuilder selection = new StringBuilder(COLUMN_URI)
+					.append(" IN (");
+			for (int i = start; i < end; i++) {
+				args[i - start] = uris.get(i).toString();
+				selection.append(i == start ? "?" : ", ?");
+			}
+			selection.append(")");
+			Cursor cursor = db.query(TABLE, PROJECTION, selection.toString(),
+					args, null, null, null);
+			try {
+				while (cursor.moveToNext()) {
+					found.put(cursor.getString(0), statusFromCursor(cursor));
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		List<AUSyncerStatus> statuses = new ArrayList<AUSyncerStatus>(uris.size());
+		for (Uri uri : uris) {
+			AUSyncerStatus status = found.get(uri.toString());
+			statuses.add(status == null ? AUSyncerStatus.statusNeverDownloaded()
+					: status);
+		}
+		return statuses;
+	}
+
+	@Override
+	public Map<Uri, AUSyncerStatus> getAllLastStatuses() {
+		HashMap<Uri, AUSyncerStatus> statuses = new HashMap<Uri, AUSyncerStatus>();
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		Cursor cursor = db.query(TABLE, PROJECTION, null, null, null, null,
+				null);
+		try {
+			while (cursor.moveToNext()) {
+				statuses.put(Uri.parse(cursor.getString(0)),
+						statusFromCursor(cursor));
+			}
+		} finally {
+			cursor.close();
+		}
+		return statuses;
+	}
+
+	private AUSyncerStatus statusFromCursor(Cursor cursor) {
+		int message = cursor.getInt(1);
+		long statusTimeMs = cursor.getLong(2);
+		long lastDownloaded = cursor.isNull(3) ? -1L : cursor.getLong(3);
+		String messageObjectStr = cursor.isNull(4) ? null : cursor.getString(4);
+		int attempt = cursor.getInt(5);
+		int httpCode = cursor.getInt(6);
+		long retryAfterMs = cursor.getLong(7);
+		return new AUSyncerStatus(message, statusTimeMs, lastDownloaded,
+				messageObjectStr, attempt, httpCode, retryAfterMs);
+	}
+
+	@Override
+	public void setLastStatus(Uri uri, AUSyncerStatus status) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+        if (status == null) throw new NullPointerException("status could not be null");
+
+		HashMap<Uri, AUSyncerStatus> statuses = new HashMap<Uri, AUSyncerStatus>(1);
+		statuses.put(uri, status);
+		setLastStatuses(statuses);
+	}
+
+	@Override
+	public void setLastStatuses(Map<Uri, AUSyncerStatus> statuses) {
+        if (statuses == null) throw new NullPointerException("statuses could not be null");
+
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		// all statuses are written in single transaction
+		db.beginTransaction();
+		try {
+			SQLiteStatement statement = db.compileStatement(SQL_SET_STATUS);
+			try {
+				for (Map.Entry<Uri, AUSyncerStatus> entry : statuses
+						.entrySet()) {
+					bindStatus(statement, entry.getKey(), entry.getValue());
+					statement.execute();
+				}
+			} finally {
+				statement.close();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private static void bindStatus(SQLiteStatement statement, Uri uri,
+			AUSyncerStatus status) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+        if (status == null) throw new NullPointerException("status could not be null");
+
+		String key = uri.toString();
+		statement.clearBindings();
+		statement.bindString(1, key);
+		statement.bindLong(2, status.getMessage());
+		statement.bindLong(3, status.getStatusTimeMs());
+		long lastDownloaded = status.getLastDownloaded();
+		if (lastDownloaded == -1L) {
+			statement.bindNull(4);
+		} else {
+			statement.bindLong(4, lastDownloaded);
+		}
+		statement.bindString(5, key);
+		String messageObjectStr = status.getMsgObjectStringOrNull();
+		if (messageObjectStr == null) {
+			statement.bindNull(6);
+		} else {
+			statement.bindString(6, messageObjectStr);
+		}
+		statement.bindLong(7, status.getAttempt());
+		statement.bindLong(8, status.getHttpCode());
+		statement.bindLong(9, status.getRetryAfterMs());
+	}
+
+	@Override
+	public void flush() {
+		// every transaction is already committed
+	}
+
+	@Override
+	public int evict(long minStatusTimeMs, int maxStatuses, Collection<Uri> keep) {
+        if (keep == null) throw new NullPointerException("keep could not be null");
+
+		HashSet<String> keepKeys = new HashSet<String>(keep.size());
+		for (Uri uri : keep) {
+			keepKeys.add(uri.toString());
+		}
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			HashMap<String, Long> statusTimes = new HashMap<String, Long>();
+			Cursor cursor = db.query(TABLE, new String[] { COLUMN_URI,
+					COLUMN_TIME }, null, null, null, null, null);
+			try {
+				while (cursor.moveToNext()) {
+					statusTimes.put(cursor.getString(0), cursor.getLong(1));
+				}
+			} finally {
+				cursor.close();
+			}
+			List<String> evicted = StatusEviction.choose(statusTimes,
+					keepKeys, minStatusTimeMs, maxStatuses);
+			SQLiteStatement statement = db.compileStatement("DELETE FROM "
+					+ TABLE + " WHERE " + COLUMN_URI + " = ?");
+			int removed = 0;
+			try {
+				for (String key : evicted) {
+					if (keep.contains(Uri.parse(key))) {
+						// uri was requested again during eviction
+						continue;
+					}
+					statement.bindString(1, key);
+					statement.execute();
+					removed++;
+				}
+			} finally {
+				statement.close();
+			}
+			db.setTransactionSuccessful();
+			return removed;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	@Override
+	public void close() {
+		mOpenHelper.close();
+	}
+
+	@SuppressWarnings("UnusedDeclaration")
+	public void clear() {
+		mOpenHelper.getWritableDatabase().delete(TABLE, null, null);
+	}
+}
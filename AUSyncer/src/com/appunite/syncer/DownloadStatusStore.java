@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import android.net.Uri;
+
+/**
+ * Storage of last {@link AUSyncerStatus} of every uri used by
+ * {@link AbsDownloadService}.
+ * 
+ * @see DownloadSharedPreference
+ * @see CachedDownloadStatusStore
+ */
+public interface DownloadStatusStore {
+
+	/**
+	 * Return last status of uri
+	 * 
+	 * @param uri
+	 *            uri of data
+	 * @return last status or {@link AUSyncerStatus#statusNeverDownloaded()}
+	 */
+	AUSyncerStatus getLastStatus(Uri uri);
+
+	/**
+	 * Return last statuses of uris
+	 * 
+	 * @param uris
+	 *            uris of data
+	 * @return last statuses in order of uris
+	 */
+	List<AUSyncerStatus> getLastStatuses(List<Uri> uris);
+
+	/**
+	 * Return all saved statuses. Could be slow so it should not be called on
+	 * main thread.
+	 * 
+	 * @return last statuses by uri
+	 */
+	Map<Uri, AUSyncerStatus> getAllLastStatuses();
+
+	/**
+	 * Save last status of uri
+	 * 
+	 * @param uri
+	 *            uri of data
+	 * @param status
+	 *            new status
+	 */
+	void setLastStatus(Uri uri, AUSyncerStatus status);
+
+	/**
+	 * Save last statuses of many uris at once
+	 * 
+	 * @param statuses
+	 *            new statuses by uri
+	 */
+	void setLastStatuses(Map<Uri, AUSyncerStatus> statuses);
+
+	/**
+	 * Write all pending statuses to persistent storage and wait for it.
+	 */
+	void flush();
+
+	/**
+	 * Remove statuses that are older than given time and then the oldest
+	 * statuses above given count. Age of status is its
+	 * {@link AUSyncerStatus#getStatusTimeMs()}, so statuses that are not
+	 * refreshed are removed first.
+	 * 
+	 * @param minStatusTimeMs
+	 *            statuses older than this time are removed, or
+	 *            <code>x <= 0</code> to not limit age
+	 * @param maxStatuses
+	 *            maximal number of statuses that are kept, or
+	 *            <code>x <= 0</code> to not limit count
+	 * @param keep
+	 *            uris which statuses could not be removed, it could be live
+	 *            view that changes during eviction, so it is checked again
+	 *            right before every removal
+	 * @return number of removed statuses
+	 */
+	int evict(long minStatusTimeMs, int maxStatuses, Collection<Uri> keep);
+
+	/**
+	 * Release resources of store. Store could not be used after close.
+	 */
+	void close();
+}
@@ -0,0 +1,725 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.appunite.ausyncer.BuildConfig;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * {@link DownloadStatusStore} that could be used by many processes at once,
+ * i.e. service in <code>:sync</code> process writes statuses and activity in
+ * main process reads them without binder calls.
+ *
+ * <p>
+ * Statuses are kept in memory-mapped file as open-addressing hash table of
+ * fixed-size slots. Every slot has sequence counter that is odd while slot is
+ * written and checksum of its content. Reader copies slot and retries when
+ * sequence changed in the meantime or checksum does not match, so it never
+ * sees half-written status. Reader visits only slots on probe path of uri
+ * and never rereads whole file. Writers are serialized by file lock. Table
+ * has its own sequence counter in the same way, so reader retries when table
+ * was rehashed during read.
+ * </p>
+ *
+ * <p>
+ * File lock is held by whole process, so there is one store per file in
+ * process. {@link #open(Context)} returns already opened store and every
+ * call has to be paired with {@link #close()}.
+ * </p>
+ *
+ * <p>
+ * Table is rehashed when three quarters of its slots are used or removed.
+ * Rehash clears removed slots and doubles capacity until table is at most
+ * half full, so statuses of new uris are never dropped and lookups of unknown
+ * uris stay short. Other processes map grown file again on their next read.
+ * {@link AbsDownloadService#maxStatuses()} keeps file small. Message object
+ * that does not fit in slot is not saved.
+ * </p>
+ *
+ * <p>
+ * Service writes statuses to this store synchronously by default, see
+ * {@link AbsDownloadService#statusFlushDelay()}.
+ * </p>
+ *
+ * <pre class="prettyprint">
+ * &#064;Override
+ * protected DownloadStatusStore createStatusStore() {
+ * 	return MappedDownloadStatusStore.open(this);
+ * }
+ * </pre>
+ *
+ * @see AbsDownloadService#createStatusStore()
+ */
+public class MappedDownloadStatusStore implements DownloadStatusStore {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final String FILE_NAME = "download_statuses.map";
+	private static final int MAGIC = 0x41555353;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+	private static final int SLOT_SIZE = 512;
+
+	// header layout
+	private static final int HEADER_CAPACITY = 8;
+	private static final int HEADER_SEQUENCE = 16;
+	private static final int HEADER_USED = 20;
+
+	// percent of used and removed slots that causes rehash
+	private static final int MAX_LOAD_PERCENT = 75;
+
+	// slot layout
+	private static final int SLOT_SEQUENCE = 0;
+	private static final int SLOT_CHECKSUM = 4;
+	private static final int SLOT_KEY_LENGTH = 8;
+	private static final int SLOT_RECORD_LENGTH = 10;
+	private static final int SLOT_DATA = 12;
+	private static final int MAX_DATA_LENGTH = SLOT_SIZE - SLOT_DATA;
+
+	private static final short KEY_EMPTY = 0;
+	private static final short KEY_REMOVED = -1;
+
+	private static final int MAX_READ_RETRIES = 100;
+	private static final String CHARSET = "UTF-8";
+	private static final String TAG = MappedDownloadStatusStore.class.getCanonicalName();
+
+	private static class Slot {
+		short keyLength;
+		byte[] key;
+		byte[] record;
+	}
+
+	private static class Table {
+		final MappedByteBuffer buffer;
+		final int capacity;
+
+		Table(MappedByteBuffer buffer, int capacity) {
+			this.buffer = buffer;
+			this.capacity = capacity;
+		}
+	}
+
+	// stores opened by this process by canonical path, protected with itself
+	private static final HashMap<String, MappedDownloadStatusStore> sOpened = new HashMap<String, MappedDownloadStatusStore>();
+
+	private final String mPath;
+	// protected with sOpened
+	private int mReferences = 1;
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	// mapping of whole file, replaced with this when file grows
+	private volatile Table mTable;
+
+	/**
+	 * Open store in default file with initial {@link #DEFAULT_CAPACITY}
+	 *
+	 * @param context
+	 *            context of application
+	 * @return store shared by whole process
+	 */
+	public static MappedDownloadStatusStore open(Context context) {
+        if (context == null) throw new NullPointerException("context could not be null");
+
+		return open(new File(context.getFilesDir(), FILE_NAME),
+				DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Open store. Capacity of existing file is not changed. Store that is
+	 * already opened in this process is returned with its capacity.
+	 *
+	 * @param file
+	 *            file shared by processes
+	 * @param capacity
+	 *            initial number of slots of new file
+	 * @return store shared by whole process
+	 */
+	public static MappedDownloadStatusStore open(File file, int capacity) {
+        if (file == null) throw new NullPointerException("file could not be null");
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity should be at least 1");
+
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open " + file, e);
+		}
+		synchronized (sOpened) {
+			MappedDownloadStatusStore store = sOpened.get(path);
+			if (store != null) {
+				store.mReferences++;
+				return store;
+			}
+			store = new MappedDownloadStatusStore(file, path, capacity);
+			sOpened.put(path, store);
+			return store;
+		}
+	}
+
+	private MappedDownloadStatusStore(File file, String path, int capacity) {
+		mPath = path;
+		try {
+			mFile = new RandomAccessFile(file, "rw");
+			mChannel = mFile.getChannel();
+			FileLock lock = mChannel.lock();
+			int fileCapacity;
+			try {
+				fileCapacity = initialize(capacity);
+			} finally {
+				lock.release();
+			}
+			mTable = map(fileCapacity);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open " + file, e);
+		}
+	}
+
+	private int initialize(int capacity) throws IOException {
+		if (mFile.length() >= HEADER_SIZE) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			mChannel.read(header, 0);
+			header.flip();
+			int magic = header.getInt();
+			int version = header.getInt();
+			int fileCapacity = header.getInt();
+			int slotSize = header.getInt();
+			if (magic == MAGIC && version == VERSION && slotSize == SLOT_SIZE
+					&& fileCapacity > 0
+					&& mFile.length() >= HEADER_SIZE + (long) fileCapacity * SLOT_SIZE) {
+				return fileCapacity;
+			}
+		}
+		// new or unknown file, every slot is empty after resize
+		mFile.setLength(0);
+		mFile.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(capacity).putInt(SLOT_SIZE)
+				.putInt(0).putInt(0);
+		header.flip();
+		mChannel.write(header, 0);
+		return capacity;
+	}
+
+	private Table map(int capacity) throws IOException {
+		return new Table(mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + (long) capacity * SLOT_SIZE), capacity);
+	}
+
+	/**
+	 * Current mapping of file, file is mapped again when other process made
+	 * it bigger
+	 */
+	private Table table() {
+		Table table = mTable;
+		if (table.buffer.getInt(HEADER_CAPACITY) == table.capacity) {
+			return table;
+		}
+		synchronized (this) {
+			table = mTable;
+			int capacity = table.buffer.getInt(HEADER_CAPACITY);
+			if (capacity == table.capacity) {
+				return table;
+			}
+			try {
+				// file is resized before its capacity is changed
+				table = map(capacity);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not map " + mPath, e);
+			}
+			mTable = table;
+			return table;
+		}
+	}
+
+	/**
+	 * Wait until no writer rehashes table
+	 *
+	 * @return sequence of table that has to be the same after read
+	 */
+	private int awaitTable() {
+		for (;;) {
+			for (int retry = 0; retry < MAX_READ_RETRIES; retry++) {
+				int sequence = mTable.buffer.getInt(HEADER_SEQUENCE);
+				if ((sequence & 1) == 0) {
+					return sequence;
+				}
+				Thread.yield();
+			}
+			// rehash takes long or its writer died, wait for it with lock
+			synchronized (this) {
+				FileLock lock = lock();
+				try {
+					lockedTable();
+				} finally {
+					release(lock);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Current table repaired if writer died during rehash, call with this and
+	 * file lock
+	 */
+	private Table lockedTable() {
+		Table table = table();
+		if ((table.buffer.getInt(HEADER_SEQUENCE) & 1) != 0) {
+			table = rehash(table, 0);
+		}
+		return table;
+	}
+
+	@Override
+	public AUSyncerStatus getLastStatus(Uri uri) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+
+		byte[] key = toBytes(uri.toString());
+		for (;;) {
+			int sequence = awaitTable();
+			Table table = table();
+			ByteBuffer buffer = table.buffer.duplicate();
+			int slot = findSlot(table, buffer, key);
+			Slot content = slot < 0 ? null : readSlot(buffer, slot);
+			if (buffer.getInt(HEADER_SEQUENCE) != sequence) {
+				// table was rehashed in the meantime
+				continue;
+			}
+			if (content == null || content.record == null
+					|| !Arrays.equals(content.key, key)) {
+				// slot was replaced in the meantime
+				return AUSyncerStatus.statusNeverDownloaded();
+			}
+			return decode(content.record);
+		}
+	}
+
+	@Override
+	public List<AUSyncerStatus> getLastStatuses(List<Uri> uris) {
+        if (uris == null) throw new NullPointerException("uris could not be null");
+
+		List<AUSyncerStatus> statuses = new ArrayList<AUSyncerStatus>(uris.size());
+		for (Uri uri : uris) {
+			statuses.add(getLastStatus(uri));
+		}
+		return statuses;
+	}
+
+	@Override
+	public Map<Uri, AUSyncerStatus> getAllLastStatuses() {
+		for (;;) {
+			int sequence = awaitTable();
+			Table table = table();
+			ByteBuffer buffer = table.buffer.duplicate();
+			HashMap<Uri, AUSyncerStatus> statuses = new HashMap<Uri, AUSyncerStatus>();
+			for (int slot = 0; slot < table.capacity; slot++) {
+				Slot content = readSlot(buffer, slot);
+				if (content != null && content.record != null) {
+					statuses.put(Uri.parse(fromBytes(content.key)),
+							decode(content.record));
+				}
+			}
+			if (buffer.getInt(HEADER_SEQUENCE) == sequence) {
+				return statuses;
+			}
+		}
+	}
+
+	@Override
+	public void setLastStatus(Uri uri, AUSyncerStatus status) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+        if (status == null) throw new NullPointerException("status could not be null");
+
+		setLastStatuses(Collections.singletonMap(uri, status));
+	}
+
+	@Override
+	public synchronized void setLastStatuses(Map<Uri, AUSyncerStatus> statuses) {
+        if (statuses == null) throw new NullPointerException("statuses could not be null");
+
+		FileLock lock = lock();
+		try {
+			Table table = lockedTable();
+			for (Map.Entry<Uri, AUSyncerStatus> entry : statuses.entrySet()) {
+				table = putStatus(table, entry.getKey(), entry.getValue());
+			}
+		} finally {
+			release(lock);
+		}
+	}
+
+	/**
+	 * Write status to table, call with this and file lock
+	 *
+	 * @return table after write, it could be rehashed
+	 */
+	private Table putStatus(Table table, Uri uri, AUSyncerStatus status) {
+		ByteBuffer buffer = table.buffer.duplicate();
+		byte[] key = toBytes(uri.toString());
+		int slot = findSlot(table, buffer, key);
+		if (status.getLastDownloaded() == -1L && slot >= 0) {
+			// keep time of last successful download
+			Slot previous = readSlot(buffer, slot);
+			if (previous != null && previous.record != null) {
+				status = status.withLastDownloaded(decode(previous.record)
+						.getLastDownloaded());
+			}
+		}
+		byte[] record = AUSyncerStatusCodec.encode(status);
+		if (key.length + record.length > MAX_DATA_LENGTH) {
+			record = AUSyncerStatusCodec.encode(new AUSyncerStatus(
+					status.getMessage(), status.getStatusTimeMs(),
+					status.getLastDownloaded(), null, status.getAttempt(),
+					status.getHttpCode(), status.getRetryAfterMs()));
+		}
+		if (key.length + record.length > MAX_DATA_LENGTH) {
+			if (BuildConfig.DEBUG) {
+				Log.w(TAG, "Uri is too long to save its status: " + uri);
+			}
+			return table;
+		}
+		if (slot < 0) {
+			slot = findFreeSlot(table, buffer, key);
+			boolean empty = slot >= 0
+					&& buffer.getShort(slotOffset(slot) + SLOT_KEY_LENGTH) == KEY_EMPTY;
+			int used = buffer.getInt(HEADER_USED);
+			if (slot < 0
+					|| (empty && (used + 1) * 100 > table.capacity
+							* MAX_LOAD_PERCENT)) {
+				// keep empty slots, so probing of unknown uris stops early
+				table = rehash(table, 1);
+				buffer = table.buffer.duplicate();
+				slot = findFreeSlot(table, buffer, key);
+				empty = true;
+				used = buffer.getInt(HEADER_USED);
+			}
+			if (empty) {
+				// counted before write, so crash could only cause early rehash
+				buffer.putInt(HEADER_USED, used + 1);
+			}
+		}
+		writeSlot(buffer, slot, (short) key.length, key, record);
+		return table;
+	}
+
+	/**
+	 * Write statuses again to cleared table, call with this and file lock
+	 *
+	 * @param reserved
+	 *            number of statuses that will be added after rehash
+	 * @return table after rehash, it is at most half full
+	 */
+	private Table rehash(Table table, int reserved) {
+		ByteBuffer buffer = table.buffer.duplicate();
+		List<Slot> statuses = new ArrayList<Slot>();
+		for (int slot = 0; slot < table.capacity; slot++) {
+			Slot content = readSlot(buffer, slot);
+			if (content != null && content.record != null) {
+				statuses.add(content);
+			}
+		}
+		int capacity = table.capacity;
+		while ((statuses.size() + reserved) * 2 > capacity) {
+			capacity *= 2;
+		}
+
+		// odd sequence tells readers that table is being rehashed
+		int sequence = buffer.getInt(HEADER_SEQUENCE) | 1;
+		buffer.putInt(HEADER_SEQUENCE, sequence);
+		if (capacity != table.capacity) {
+			try {
+				mFile.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+				table = map(capacity);
+			} catch (IOException e) {
+				// nothing was changed yet
+				buffer.putInt(HEADER_SEQUENCE, sequence + 1);
+				throw new RuntimeException("Could not resize " + mPath, e);
+			}
+			buffer = table.buffer.duplicate();
+			buffer.putInt(HEADER_CAPACITY, capacity);
+			mTable = table;
+		}
+		byte[] empty = new byte[0];
+		for (int slot = 0; slot < capacity; slot++) {
+			writeSlot(buffer, slot, KEY_EMPTY, empty, empty);
+		}
+		for (Slot content : statuses) {
+			writeSlot(buffer, findFreeSlot(table, buffer, content.key),
+					content.keyLength, content.key, content.record);
+		}
+		buffer.putInt(HEADER_USED, statuses.size());
+		buffer.putInt(HEADER_SEQUENCE, sequence + 1);
+		return table;
+	}
+
+	@Override
+	public void flush() {
+		mTable.buffer.force();
+	}
+
+	@Override
+	public synchronized int evict(long minStatusTimeMs, int maxStatuses,
+			Collection<Uri> keep) {
+        if (keep == null) throw new NullPointerException("keep could not be null");
+
+		HashSet<String> keepKeys = new HashSet<String>(keep.size());
+		for (Uri uri : keep) {
+			keepKeys.add(uri.toString());
+		}
+		FileLock lock = lock();
+		try {
+			Table table = lockedTable();
+			ByteBuffer buffer = table.buffer.duplicate();
+			HashMap<String, Long> statusTimes = new HashMap<String, Long>();
+			HashMap<String, Integer> slots = new HashMap<String, Integer>();
+			for (int slot = 0; slot < table.capacity; slot++) {
+				Slot content = readSlot(buffer, slot);
+				if (content != null && content.record != null) {
+					String key = fromBytes(content.key);
+					statusTimes.put(key, decode(content.record)
+							.getStatusTimeMs());
+					slots.put(key, slot);
+				}
+			}
+			List<String> evicted = StatusEviction.choose(statusTimes,
+					keepKeys, minStatusTimeMs, maxStatuses);
+			int removed = 0;
+			for (String key : evicted) {
+				if (keep.contains(Uri.parse(key))) {
+					// uri was requested again during eviction
+					continue;
+				}
+				// removed slot does not break probing of other keys, it is
+				// cleared by next rehash
+				writeSlot(buffer, slots.get(key), KEY_REMOVED, new byte[0],
+						new byte[0]);
+				removed++;
+			}
+			return removed;
+		} finally {
+			release(lock);
+		}
+	}
+
+	/**
+	 * Release store opened by {@link #open(File, int)}. File is closed when
+	 * every opener closed it.
+	 */
+	@Override
+	public void close() {
+		synchronized (sOpened) {
+			if (mReferences == 0) {
+				return;
+			}
+			mReferences--;
+			if (mReferences > 0) {
+				return;
+			}
+			sOpened.remove(mPath);
+		}
+		closeFile();
+	}
+
+	private synchronized void closeFile() {
+		mTable.buffer.force();
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, "Could not close file", e);
+			}
+		}
+	}
+
+	private static int findSlot(Table table, ByteBuffer buffer, byte[] key) {
+		int start = startSlot(table, key);
+		for (int i = 0; i < table.capacity; i++) {
+			int slot = (start + i) % table.capacity;
+			Slot content = readSlot(buffer, slot);
+			if (content == null) {
+				continue;
+			}
+			if (content.keyLength == KEY_EMPTY) {
+				return -1;
+			}
+			if (content.keyLength != KEY_REMOVED
+					&& Arrays.equals(content.key, key)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	// call with file lock
+	private static int findFreeSlot(Table table, ByteBuffer buffer, byte[] key) {
+		int start = startSlot(table, key);
+		for (int i = 0; i < table.capacity; i++) {
+			int slot = (start + i) % table.capacity;
+			short keyLength = buffer.getShort(slotOffset(slot) + SLOT_KEY_LENGTH);
+			if (keyLength == KEY_EMPTY || keyLength == KEY_REMOVED) {
+				return slot;
+			}
+		}
+		// table is full
+		return -1;
+	}
+
+	private static int startSlot(Table table, byte[] key) {
+		return (Arrays.hashCode(key) & Integer.MAX_VALUE) % table.capacity;
+	}
+
+	private static int slotOffset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * Read consistent copy of slot
+	 *
+	 * @return content of slot or null if it could not be read
+	 */
+	private static Slot readSlot(ByteBuffer buffer, int slot) {
+		int offset = slotOffset(slot);
+		for (int retry = 0; retry < MAX_READ_RETRIES; retry++) {
+			int sequence = buffer.getInt(offset + SLOT_SEQUENCE);
+			if ((sequence & 1) != 0) {
+				// writer is in the middle of update
+				Thread.yield();
+				continue;
+			}
+			int checksum = buffer.getInt(offset + SLOT_CHECKSUM);
+			short keyLength = buffer.getShort(offset + SLOT_KEY_LENGTH);
+			short recordLength = buffer.getShort(offset + SLOT_RECORD_LENGTH);
+			Slot content = new Slot();
+			content.keyLength = keyLength;
+			if (keyLength > 0 && recordLength > 0
+					&& keyLength + recordLength <= MAX_DATA_LENGTH) {
+				content.key = new byte[keyLength];
+				content.record = new byte[recordLength];
+				ByteBuffer data = buffer.duplicate();
+				data.position(offset + SLOT_DATA);
+				data.get(content.key);
+				data.get(content.record);
+			}
+			if (sequence != buffer.getInt(offset + SLOT_SEQUENCE)) {
+				continue;
+			}
+			if (content.record != null
+					&& checksum != checksum(keyLength, content.key,
+							content.record)) {
+				// torn read that sequence did not catch
+				continue;
+			}
+			if (keyLength > 0 && content.record == null) {
+				// lengths were read in the middle of update
+				continue;
+			}
+			return content;
+		}
+		return null;
+	}
+
+	// call with file lock
+	private static void writeSlot(ByteBuffer buffer, int slot,
+			short keyLength, byte[] key, byte[] record) {
+		int offset = slotOffset(slot);
+		int sequence = buffer.getInt(offset + SLOT_SEQUENCE);
+		// odd sequence tells readers that slot is being written
+		buffer.putInt(offset + SLOT_SEQUENCE, sequence | 1);
+		buffer.putInt(offset + SLOT_CHECKSUM, checksum(keyLength, key, record));
+		buffer.putShort(offset + SLOT_KEY_LENGTH, keyLength);
+		buffer.putShort(offset + SLOT_RECORD_LENGTH, (short) record.length);
+		ByteBuffer data = buffer.duplicate();
+		data.position(offset + SLOT_DATA);
+		data.put(key);
+		data.put(record);
+		buffer.putInt(offset + SLOT_SEQUENCE, (sequence | 1) + 1);
+	}
+
+	private static int checksum(short keyLength, byte[] key, byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(keyLength);
+		crc.update(key);
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+
+	private AUSyncerStatus decode(byte[] record) {
+		try {
+			return AUSyncerStatusCodec.decode(record);
+		} catch (IllegalArgumentException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, "Wrong value saved in file", e);
+			}
+			return AUSyncerStatus.statusNeverDownloaded();
+		}
+	}
+
+	private FileLock lock() {
+		try {
+			return mChannel.lock();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not lock file", e);
+		}
+	}
+
+	private static void release(FileLock lock) {
+		try {
+			lock.release();
+		} catch (IOException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, "Could not release file lock", e);
+			}
+		}
+	}
+
+	private static byte[] toBytes(String str) {
+		try {
+			return str.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String fromBytes(byte[] bytes) {
+		try {
+			return new String(bytes, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+/**
+ * MultiDownloadHelper works like {@link DownloadHelper} but observes set of
+ * uris, i.e. list and its detail panes displayed on one screen. All uris
+ * share one service connection and one callback, state of all of them is
+ * read with single call and all of them are refreshed with single call.
+ * 
+ * <p>
+ * Observer receives combined status of all uris, so screen could be handled
+ * the same way as with {@link DownloadHelper}, and status of every uri
+ * separately:
+ * 
+ * <pre class="prettyprint">
+ * mDownloadHelper = new MultiDownloadHelper(this, DownloadService.ACTION_SYNC,
+ * 		this, Arrays.asList(LIST_URI, DETAILS_URI));
+ * </pre>
+ * 
+ * </p>
+ * 
+ * <p>
+ * Combined status is computed by
+ * {@link #combineStatuses(Collection)}, it could be overridden.
+ * </p>
+ * 
+ * <p>
+ * Connection with service is handled by {@link AbsDownloadHelper} like in
+ * {@link DownloadHelper}.
+ * </p>
+ * 
+ * @see MultiDownloadHelperStatus
+ */
+@SuppressWarnings("UnusedDeclaration")
+public class MultiDownloadHelper extends AbsDownloadHelper {
+
+	private static class UriState {
+		boolean inProgress = true;
+		AUSyncerStatus lastStatus = null;
+		// values last reported with onReportUriStatus
+		final ReportedStatus reported = new ReportedStatus();
+	}
+
+	private static class ServiceState {
+		boolean[] inProgress;
+		List<AUSyncerStatus> lastStatuses;
+	}
+
+	private final MultiDownloadHelperStatus mDownloadHelperStatus;
+
+	private final List<Uri> mUris;
+	// state pushed by service, accessed only from main thread
+	private final LinkedHashMap<Uri, UriState> mStates = new LinkedHashMap<Uri, UriState>();
+
+	/**
+	 * Create MultiDownloadHelper
+	 * 
+	 * @param context
+	 *            activity/fragment context
+	 * @param serviceActionName
+	 *            action name that will start your implementation of
+	 *            {@link AbsDownloadService}, i.e.
+	 *            <code>DownloadService.ACTION_SYNC</code>
+	 * @param downloadHelperStatus
+	 *            an status observer
+	 * @param uris
+	 *            uris that you want to observe, at least one
+	 */
+	public MultiDownloadHelper(Context context, String serviceActionName,
+			MultiDownloadHelperStatus downloadHelperStatus, List<Uri> uris) {
+		super(context, serviceActionName, downloadHelperStatus);
+        if (uris == null) throw new NullPointerException("uris could not be null");
+		if (uris.isEmpty())
+			throw new IllegalArgumentException("uris could not be empty");
+
+		mDownloadHelperStatus = downloadHelperStatus;
+		for (Uri uri : uris) {
+	        if (uri == null) throw new NullPointerException("uri could not be null");
+			mStates.put(uri, new UriState());
+		}
+		mUris = Collections.unmodifiableList(new ArrayList<Uri>(mStates
+				.keySet()));
+	}
+
+	/**
+	 * Return observed uris
+	 * 
+	 * @return uris without duplicates
+	 */
+	public List<Uri> getUris() {
+		return mUris;
+	}
+
+	@Override
+	void onResume() {
+		// panes could be changed while helper was paused
+		for (UriState state : mStates.values()) {
+			state.reported.reset();
+		}
+	}
+
+	@Override
+	List<Uri> observedUris() {
+		return mUris;
+	}
+
+	@Override
+	Object readServiceState(IDownloadService service) throws RemoteException {
+		ServiceState state = new ServiceState();
+		state.inProgress = service.inProgressAll(mUris);
+		state.lastStatuses = service.getLastStatuses(mUris);
+		return state;
+	}
+
+	@Override
+	void setServiceState(Object state) {
+		ServiceState serviceState = (ServiceState) state;
+		for (int i = 0; i < mUris.size(); i++) {
+			UriState uriState = mStates.get(mUris.get(i));
+			uriState.inProgress = serviceState.inProgress[i];
+			uriState.lastStatus = serviceState.lastStatuses.get(i);
+		}
+		for (Map.Entry<Uri, UriState> entry : mStates.entrySet()) {
+			reportUriStatus(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	void setStoredStatuses(List<AUSyncerStatus> statuses) {
+		for (int i = 0; i < mUris.size(); i++) {
+			Uri uri = mUris.get(i);
+			UriState uriState = mStates.get(uri);
+			uriState.lastStatus = statuses.get(i);
+			reportUriStatus(uri, uriState);
+		}
+	}
+
+	@Override
+	boolean onTaskInProgress(Uri uri) {
+		UriState state = mStates.get(uri);
+		if (state == null) {
+			return false;
+		}
+		state.inProgress = true;
+		reportUriStatus(uri, state);
+		return true;
+	}
+
+	@Override
+	boolean onTaskFinished(Uri uri, AUSyncerStatus status) {
+		UriState state = mStates.get(uri);
+		if (state == null) {
+			return false;
+		}
+		state.inProgress = false;
+		state.lastStatus = status;
+		reportUriStatus(uri, state);
+		return true;
+	}
+
+	@Override
+	boolean isInProgress() {
+		boolean inProgress = false;
+		for (UriState state : mStates.values()) {
+			inProgress |= state.inProgress;
+		}
+		return inProgress;
+	}
+
+	@Override
+	AUSyncerStatus getReportedLastStatus() {
+		List<AUSyncerStatus> statuses = new ArrayList<AUSyncerStatus>(
+				mStates.size());
+		for (UriState state : mStates.values()) {
+			statuses.add(state.lastStatus == null ? AUSyncerStatus
+					.statusNeverDownloaded() : state.lastStatus);
+		}
+		return combineStatuses(statuses);
+	}
+
+	@Override
+	void requestDownload(IDownloadService service, Bundle bundle,
+			boolean withForce) throws RemoteException {
+		service.downloadAll(mUris, bundle, withForce,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+	}
+
+	@Override
+	void startAsyncDownload(Bundle bundle, boolean withForce) {
+		for (Uri uri : mUris) {
+			DownloadHelper.startAsyncDownload(mContext, mServiceActionName,
+					uri, bundle, withForce,
+					AbsDownloadService.PRIORITY_FOREGROUND);
+		}
+	}
+
+	private void reportUriStatus(Uri uri, UriState state) {
+		AUSyncerStatus lastStatus = state.lastStatus == null ? AUSyncerStatus
+				.statusNeverDownloaded() : state.lastStatus;
+		if (!state.reported.update(state.inProgress, lastStatus)) {
+			// uri was already reported with the same values
+			return;
+		}
+		mDownloadHelperStatus.onReportUriStatus(uri, state.inProgress,
+				lastStatus);
+	}
+
+	/**
+	 * Combine statuses of all observed uris into one reported status.
+	 * 
+	 * <p>
+	 * Default implementation returns the most recent error if there is any,
+	 * otherwise {@link AUSyncerStatus#statusNeverDownloaded()} if any uri
+	 * was never downloaded, otherwise the least recent success.
+	 * </p>
+	 * 
+	 * @param statuses
+	 *            last statuses of all uris, never null
+	 * @return combined status
+	 */
+	protected AUSyncerStatus combineStatuses(Collection<AUSyncerStatus> statuses) {
+		AUSyncerStatus error = null;
+		AUSyncerStatus success = null;
+		boolean neverDownloaded = false;
+		for (AUSyncerStatus status : statuses) {
+			if (status.isError()) {
+				if (error == null
+						|| status.getStatusTimeMs() > error.getStatusTimeMs()) {
+					error = status;
+				}
+			} else if (status.isNeverDownloaded()) {
+				neverDownloaded = true;
+			} else if (success == null
+					|| status.getLastDownloaded() < success.getLastDownloaded()) {
+				success = status;
+			}
+		}
+		if (error != null) {
+			return error;
+		}
+		if (neverDownloaded || success == null) {
+			return AUSyncerStatus.statusNeverDownloaded();
+		}
+		return success;
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import android.net.Uri;
+
+/**
+ * Observer of {@link MultiDownloadHelper}. Combined status of all uris is
+ * reported with
+ * {@link #onReportStatus(boolean, boolean, boolean, boolean, AUSyncerStatus)}
+ * the same way as by {@link DownloadHelper}.
+ */
+public interface MultiDownloadHelperStatus extends DownloadHelperStatus {
+
+	/**
+	 * Reports status of single uri. Called for every uri when helper
+	 * connects to service and later for uri which state was changed.
+	 * 
+	 * <p>
+	 * Example use case:
+	 * 
+	 * <pre class="prettyprint">
+	 * &#064;Override
+	 * public void onReportUriStatus(Uri uri, boolean inProgress,
+	 * 		AUSyncerStatus lastStatus) {
+	 * 	DetailPane pane = mPanes.get(uri);
+	 * 	pane.setProgressVisible(inProgress);
+	 * 	pane.setErrorVisible(lastStatus.isError());
+	 * }
+	 * </pre>
+	 * 
+	 * </p>
+	 * 
+	 * @param uri
+	 *            observed uri
+	 * @param inProgress
+	 *            true if uri is being downloaded
+	 * @param lastStatus
+	 *            status of last download of uri
+	 */
+	void onReportUriStatus(Uri uri, boolean inProgress,
+			AUSyncerStatus lastStatus);
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+/**
+ * Values last reported to {@link DownloadHelperStatus}, so helper reports
+ * only changes.
+ */
+final class ReportedStatus {
+
+	private boolean mReported = false;
+	private boolean mScreenVisible;
+	private boolean mScreenEmpty;
+	private boolean mScreenProgress;
+	private boolean mProgressIndicator;
+	private AUSyncerStatus mLastStatus;
+
+	/**
+	 * Remember values if they differ from the last reported ones
+	 * 
+	 * @return true if values changed and should be reported
+	 */
+	boolean update(boolean screenVisible, boolean screenEmpty,
+			boolean screenProgress, boolean progressIndicator,
+			AUSyncerStatus lastStatus) {
+		if (mReported && mScreenVisible == screenVisible
+				&& mScreenEmpty == screenEmpty
+				&& mScreenProgress == screenProgress
+				&& mProgressIndicator == progressIndicator
+				&& lastStatus.sameValues(mLastStatus)) {
+			return false;
+		}
+		mReported = true;
+		mScreenVisible = screenVisible;
+		mScreenEmpty = screenEmpty;
+		mScreenProgress = screenProgress;
+		mProgressIndicator = progressIndicator;
+		mLastStatus = lastStatus;
+		return true;
+	}
+
+	/**
+	 * Remember values of single uri if they differ from the last reported
+	 * ones
+	 * 
+	 * @return true if values changed and should be reported
+	 */
+	boolean update(boolean inProgress, AUSyncerStatus lastStatus) {
+		return update(false, false, false, inProgress, lastStatus);
+	}
+
+	/**
+	 * Forget reported values, so next values are reported
+	 */
+	void reset() {
+		mReported = false;
+		mLastStatus = null;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.Random;
+
+/**
+ * RetryPolicy describes how {@link AbsDownloadService} should retry task that
+ * failed with {@link AUSyncerStatus#statusNoInternetConnection()} or
+ * {@link AUSyncerStatus#statusInternalIssue()}.
+ * 
+ * <p>
+ * Delay before retry number <code>n</code> is
+ * <code>min(maxDelayMs, baseDelayMs * 2^(n - 1))</code> shortened by random
+ * part of <code>jitter</code> fraction, so clients that failed at the same
+ * time do not retry at the same time.
+ * </p>
+ * 
+ * <pre class="prettyprint">
+ * &#064;Override
+ * protected RetryPolicy retryPolicy(Uri uri, Bundle bundle) {
+ * 	return new RetryPolicy(5, 2000, 60000, 0.5f);
+ * }
+ * </pre>
+ * 
+ * @see AbsDownloadService#retryPolicy(android.net.Uri, android.os.Bundle)
+ */
+public class RetryPolicy {
+
+	/**
+	 * Policy that does not retry failed tasks
+	 */
+	public static final RetryPolicy NO_RETRY = new RetryPolicy(1, 0, 0, 0.0f);
+
+	private final int mMaxAttempts;
+	private final long mBaseDelayMs;
+	private final long mMaxDelayMs;
+	private final float mJitter;
+
+	/**
+	 * Create retry policy
+	 * 
+	 * @param maxAttempts
+	 *            maximal number of attempts including first one, at least 1
+	 * @param baseDelayMs
+	 *            delay before first retry in ms
+	 * @param maxDelayMs
+	 *            maximal delay between retries in ms
+	 * @param jitter
+	 *            fraction of delay that is randomized, from 0 to 1
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs,
+			float jitter) {
+		if (maxAttempts < 1) throw new IllegalArgumentException(
+				"maxAttempts should be at least 1");
+		if (baseDelayMs < 0) throw new IllegalArgumentException(
+				"baseDelayMs could not be negative");
+		if (maxDelayMs < baseDelayMs) throw new IllegalArgumentException(
+				"maxDelayMs could not be lower than baseDelayMs");
+		if (jitter < 0.0f || jitter > 1.0f) throw new IllegalArgumentException(
+				"jitter should be between 0 and 1");
+
+		mMaxAttempts = maxAttempts;
+		mBaseDelayMs = baseDelayMs;
+		mMaxDelayMs = maxDelayMs;
+		mJitter = jitter;
+	}
+
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	public long getBaseDelayMs() {
+		return mBaseDelayMs;
+	}
+
+	public long getMaxDelayMs() {
+		return mMaxDelayMs;
+	}
+
+	public float getJitter() {
+		return mJitter;
+	}
+
+	/**
+	 * Check if task should be retried after failed attempt
+	 * 
+	 * @param attempt
+	 *            number of failed attempt starting from 1
+	 * @return true if task should be retried
+	 */
+	public boolean shouldRetry(int attempt) {
+		return attempt < mMaxAttempts;
+	}
+
+	/**
+	 * Return delay before next attempt
+	 * 
+	 * @param attempt
+	 *            number of failed attempt starting from 1
+	 * @param random
+	 *            source of jitter
+	 * @return delay in ms
+	 */
+	public long getDelayMs(int attempt, Random random) {
+		long delay = mBaseDelayMs;
+		for (int i = 1; i < attempt && delay < mMaxDelayMs; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, mMaxDelayMs);
+		return delay - (long) (delay * mJitter * random.nextFloat());
+	}
+}
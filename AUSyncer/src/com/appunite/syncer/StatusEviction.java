@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Eviction policy shared by {@link DownloadStatusStore} implementations.
+ * 
+ * @see DownloadStatusStore#evict(long, int, java.util.Collection)
+ */
+final class StatusEviction {
+
+	private static final Comparator<Map.Entry<String, Long>> OLDEST_FIRST = new Comparator<Map.Entry<String, Long>>() {
+
+		@Override
+		public int compare(Map.Entry<String, Long> lhs,
+				Map.Entry<String, Long> rhs) {
+			return lhs.getValue().compareTo(rhs.getValue());
+		}
+	};
+
+	private StatusEviction() {
+	}
+
+	/**
+	 * Choose keys that should be evicted
+	 * 
+	 * @param statusTimes
+	 *            time of status by key of all stored statuses
+	 * @param keep
+	 *            keys that could not be evicted
+	 * @param minStatusTimeMs
+	 *            statuses older than this time are evicted, or
+	 *            <code>x <= 0</code> to not limit age
+	 * @param maxStatuses
+	 *            maximal number of statuses that are kept, or
+	 *            <code>x <= 0</code> to not limit count
+	 * @return keys to evict
+	 */
+	static List<String> choose(Map<String, Long> statusTimes, Set<String> keep,
+			long minStatusTimeMs, int maxStatuses) {
+        if (statusTimes == null) throw new NullPointerException("statusTimes could not be null");
+        if (keep == null) throw new NullPointerException("keep could not be null");
+
+		List<Map.Entry<String, Long>> candidates = new ArrayList<Map.Entry<String, Long>>(
+				statusTimes.size());
+		for (Map.Entry<String, Long> entry : statusTimes.entrySet()) {
+			if (!keep.contains(entry.getKey())) {
+				candidates.add(entry);
+			}
+		}
+		int kept = statusTimes.size() - candidates.size();
+		Collections.sort(candidates, OLDEST_FIRST);
+
+		List<String> evicted = new ArrayList<String>();
+		int remaining = candidates.size();
+		for (Map.Entry<String, Long> entry : candidates) {
+			boolean tooOld = minStatusTimeMs > 0
+					&& entry.getValue() < minStatusTimeMs;
+			boolean tooMany = maxStatuses > 0
+					&& kept + remaining > maxStatuses;
+			if (!tooOld && !tooMany) {
+				// candidates are sorted so newer ones are not evicted either
+				break;
+			}
+			evicted.add(entry.getKey());
+			remaining--;
+		}
+		return evicted;
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.appunite.ausyncer.BuildConfig;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Fixed-size ring buffers of recent {@link AUSyncerHistoryEntry} per uri.
+ *
+ * <p>
+ * Every tracked uri costs the same estimated number of bytes, whether its
+ * ring is full or not. When adding new uri would exceed limit, least recently
+ * used uris are dropped. File written by {@link #save(File)} contains only
+ * tracked entries, so it is never bigger than memory limit.
+ * </p>
+ */
+final class StatusHistory {
+
+	private static final int FILE_VERSION = 1;
+	// estimated memory of uri key, map entry and ring object
+	private static final int URI_OVERHEAD_BYTES = 96;
+	// estimated memory of entry object with its reference in ring
+	private static final int ENTRY_BYTES = 40;
+
+	private static final String TAG = StatusHistory.class.getCanonicalName();
+
+	private static class Ring {
+		final AUSyncerHistoryEntry[] entries;
+		final long bytes;
+		int next = 0;
+		int count = 0;
+
+		Ring(int size, long bytes) {
+			this.entries = new AUSyncerHistoryEntry[size];
+			this.bytes = bytes;
+		}
+
+		void add(AUSyncerHistoryEntry entry) {
+			entries[next] = entry;
+			next = (next + 1) % entries.length;
+			if (count < entries.length) {
+				count++;
+			}
+		}
+
+		AUSyncerHistoryEntry get(int age) {
+			int index = (next - 1 - age + entries.length) % entries.length;
+			return entries[index];
+		}
+	}
+
+	private final int mSize;
+	private final long mMaxBytes;
+
+	// protected with this, in least recently used order
+	private final LinkedHashMap<Uri, Ring> mRings = new LinkedHashMap<Uri, Ring>(
+			16, 0.75f, true);
+	// protected with this
+	private long mBytes = 0;
+	// protected with this
+	private boolean mChanged = false;
+	// only one load or save works with file at once
+	private final Object mFileLock = new Object();
+
+	/**
+	 * Create history
+	 *
+	 * @param size
+	 *            number of entries kept per uri
+	 * @param maxBytes
+	 *            limit of estimated memory of whole history
+	 */
+	StatusHistory(int size, long maxBytes) {
+		if (size < 1)
+			throw new IllegalArgumentException("size should be at least 1");
+
+		mSize = size;
+		mMaxBytes = maxBytes;
+	}
+
+	synchronized void add(Uri uri, AUSyncerHistoryEntry entry) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+        if (entry == null) throw new NullPointerException("entry could not be null");
+
+		Ring ring = mRings.get(uri);
+		if (ring == null) {
+			long bytes = URI_OVERHEAD_BYTES + 2 * uri.toString().length()
+					+ (long) ENTRY_BYTES * mSize;
+			if (bytes > mMaxBytes) {
+				// uri alone does not fit in limit
+				return;
+			}
+			Iterator<Ring> iterator = mRings.values().iterator();
+			while (mBytes + bytes > mMaxBytes) {
+				mBytes -= iterator.next().bytes;
+				iterator.remove();
+			}
+			ring = new Ring(mSize, bytes);
+			mRings.put(uri, ring);
+			mBytes += bytes;
+		}
+		ring.add(entry);
+		mChanged = true;
+	}
+
+	/**
+	 * Return recent entries of uri
+	 *
+	 * @param uri
+	 *            uri of data
+	 * @return entries starting from the newest one
+	 */
+	synchronized List<AUSyncerHistoryEntry> get(Uri uri) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+
+		Ring ring = mRings.get(uri);
+		if (ring == null) {
+			return new ArrayList<AUSyncerHistoryEntry>(0);
+		}
+		List<AUSyncerHistoryEntry> entries = new ArrayList<AUSyncerHistoryEntry>(
+				ring.count);
+		for (int age = 0; age < ring.count; age++) {
+			entries.add(ring.get(age));
+		}
+		return entries;
+	}
+
+	/**
+	 * Save history to file if it changed since last load or save. File is
+	 * written without blocking {@link #add(Uri, AUSyncerHistoryEntry)}.
+	 *
+	 * @param file
+	 *            target file
+	 */
+	void save(File file) {
+        if (file == null) throw new NullPointerException("file could not be null");
+
+		synchronized (mFileLock) {
+			LinkedHashMap<Uri, List<AUSyncerHistoryEntry>> snapshot;
+			synchronized (this) {
+				if (!mChanged) {
+					return;
+				}
+				snapshot = new LinkedHashMap<Uri, List<AUSyncerHistoryEntry>>(
+						mRings.size());
+				for (Map.Entry<Uri, Ring> item : mRings.entrySet()) {
+					Ring ring = item.getValue();
+					// from the oldest, so load could simply add them
+					List<AUSyncerHistoryEntry> entries = new ArrayList<AUSyncerHistoryEntry>(
+							ring.count);
+					for (int age = ring.count - 1; age >= 0; age--) {
+						entries.add(ring.get(age));
+					}
+					snapshot.put(item.getKey(), entries);
+				}
+				mChanged = false;
+			}
+			if (!write(file, snapshot)) {
+				synchronized (this) {
+					mChanged = true;
+				}
+			}
+		}
+	}
+
+	private static boolean write(File file,
+			Map<Uri, List<AUSyncerHistoryEntry>> history) {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				out.writeInt(FILE_VERSION);
+				out.writeInt(history.size());
+				for (Map.Entry<Uri, List<AUSyncerHistoryEntry>> item : history
+						.entrySet()) {
+					out.writeUTF(item.getKey().toString());
+					out.writeInt(item.getValue().size());
+					for (AUSyncerHistoryEntry entry : item.getValue()) {
+						out.writeInt(entry.getMessage());
+						out.writeInt(entry.getAttempt());
+						out.writeLong(entry.getStartTimeMs());
+						out.writeLong(entry.getEndTimeMs());
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tmpFile);
+			}
+			return true;
+		} catch (IOException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, "Could not save history", e);
+			}
+			//noinspection ResultOfMethodCallIgnored
+			tmpFile.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Load history saved by {@link #save(File)}. Limits of this history are
+	 * applied to loaded entries. File is read without blocking
+	 * {@link #add(Uri, AUSyncerHistoryEntry)}, entries added meanwhile are
+	 * kept as newer than loaded ones.
+	 *
+	 * @param file
+	 *            source file
+	 */
+	void load(File file) {
+        if (file == null) throw new NullPointerException("file could not be null");
+
+		synchronized (mFileLock) {
+			LinkedHashMap<Uri, List<AUSyncerHistoryEntry>> loaded = read(file);
+			if (loaded == null) {
+				return;
+			}
+			synchronized (this) {
+				LinkedHashMap<Uri, Ring> added = new LinkedHashMap<Uri, Ring>(
+						mRings);
+				mRings.clear();
+				mBytes = 0;
+				for (Map.Entry<Uri, List<AUSyncerHistoryEntry>> item : loaded
+						.entrySet()) {
+					for (AUSyncerHistoryEntry entry : item.getValue()) {
+						add(item.getKey(), entry);
+					}
+				}
+				for (Map.Entry<Uri, Ring> item : added.entrySet()) {
+					Ring ring = item.getValue();
+					for (int age = ring.count - 1; age >= 0; age--) {
+						add(item.getKey(), ring.get(age));
+					}
+				}
+				mChanged = !added.isEmpty();
+			}
+		}
+	}
+
+	private static LinkedHashMap<Uri, List<AUSyncerHistoryEntry>> read(
+			File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILE_VERSION) {
+					return null;
+				}
+				int uris = in.readInt();
+				LinkedHashMap<Uri, List<AUSyncerHistoryEntry>> history = new LinkedHashMap<Uri, List<AUSyncerHistoryEntry>>(
+						uris);
+				for (int i = 0; i < uris; i++) {
+					Uri uri = Uri.parse(in.readUTF());
+					int count = in.readInt();
+					List<AUSyncerHistoryEntry> entries = new ArrayList<AUSyncerHistoryEntry>(
+							count);
+					for (int j = 0; j < count; j++) {
+						int message = in.readInt();
+						int attempt = in.readInt();
+						long startTimeMs = in.readLong();
+						long endTimeMs = in.readLong();
+						entries.add(new AUSyncerHistoryEntry(message, attempt,
+								startTimeMs, endTimeMs));
+					}
+					history.put(uri, entries);
+				}
+				return history;
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException ignored) {
+			// there is no history yet
+			return null;
+		} catch (IOException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, "Could not load history", e);
+			}
+			return null;
+		}
+	}
+}
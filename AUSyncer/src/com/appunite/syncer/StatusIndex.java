@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.syncer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.net.Uri;
+
+/**
+ * Trie of uris keyed by <code>scheme://authority</code> and then by path
+ * segments. Uri with query is a child of the same uri without query.
+ *
+ * <p>
+ * Every node keeps counts of its whole subtree, so aggregated status of
+ * prefix is read without visiting descendants. Statuses are indexed only
+ * after {@link #load(Map)}, in-progress uris are indexed always.
+ * </p>
+ */
+final class StatusIndex {
+
+	private static class Node {
+		final Node parent;
+		final String key;
+		final HashMap<String, Node> children = new HashMap<String, Node>(2);
+		Uri uri;
+		AUSyncerStatus status;
+		boolean inProgress;
+		int count;
+		int successCount;
+		int errorCount;
+		int inProgressCount;
+
+		Node(Node parent, String key) {
+			this.parent = parent;
+			this.key = key;
+		}
+
+		boolean isEmpty() {
+			return count == 0 && inProgressCount == 0;
+		}
+	}
+
+	// protected with this
+	private final Node mRoot = new Node(null, null);
+	// protected with this
+	private boolean mLoaded = false;
+
+	synchronized boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * Index all statuses
+	 *
+	 * @param statuses
+	 *            all known statuses by uri
+	 */
+	synchronized void load(Map<Uri, AUSyncerStatus> statuses) {
+        if (statuses == null) throw new NullPointerException("statuses could not be null");
+
+		for (Map.Entry<Uri, AUSyncerStatus> entry : statuses.entrySet()) {
+			updateStatus(entry.getKey(), entry.getValue());
+		}
+		mLoaded = true;
+	}
+
+	/**
+	 * Remove all indexed statuses, they have to be loaded again
+	 */
+	synchronized void invalidateStatuses() {
+		if (!mLoaded) {
+			return;
+		}
+		ArrayList<Uri> uris = new ArrayList<Uri>(mRoot.count);
+		collect(mRoot, false, uris, Integer.MAX_VALUE);
+		for (Uri uri : uris) {
+			updateStatus(uri, null);
+		}
+		mLoaded = false;
+	}
+
+	synchronized void setStatus(Uri uri, AUSyncerStatus status) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+        if (status == null) throw new NullPointerException("status could not be null");
+
+		if (mLoaded) {
+			updateStatus(uri, status);
+		}
+	}
+
+	synchronized void setInProgress(Uri uri, boolean inProgress) {
+        if (uri == null) throw new NullPointerException("uri could not be null");
+
+		Node node = inProgress ? obtainNode(uri) : findNode(uri);
+		if (node == null || node.inProgress == inProgress) {
+			return;
+		}
+		node.inProgress = inProgress;
+		int delta = inProgress ? 1 : -1;
+		for (Node n = node; n != null; n = n.parent) {
+			n.inProgressCount += delta;
+		}
+		removeIfEmpty(node);
+	}
+
+	/**
+	 * Return aggregated status of uri and its descendants
+	 *
+	 * @param prefix
+	 *            root of subtree
+	 * @return aggregated status
+	 */
+	synchronized AUSyncerSubtreeStatus getSubtreeStatus(Uri prefix) {
+        if (prefix == null) throw new NullPointerException("prefix could not be null");
+
+		Node node = findNode(prefix);
+		if (node == null) {
+			return new AUSyncerSubtreeStatus(0, 0, 0, 0);
+		}
+		return new AUSyncerSubtreeStatus(node.count, node.successCount,
+				node.errorCount, node.inProgressCount);
+	}
+
+	/**
+	 * Return uri and its descendants which last status is error
+	 *
+	 * @param prefix
+	 *            root of subtree
+	 * @param limit
+	 *            maximal number of returned uris
+	 * @return failed uris
+	 */
+	synchronized List<Uri> getFailedChildren(Uri prefix, int limit) {
+        if (prefix == null) throw new NullPointerException("prefix could not be null");
+
+		ArrayList<Uri> uris = new ArrayList<Uri>();
+		Node node = findNode(prefix);
+		if (node != null) {
+			collect(node, true, uris, limit);
+		}
+		return uris;
+	}
+
+	// call with this
+	private void collect(Node node, boolean onlyErrors, List<Uri> uris,
+			int limit) {
+		if (uris.size() >= limit) {
+			return;
+		}
+		if (onlyErrors ? node.errorCount == 0 : node.count == 0) {
+			// nothing interesting in this subtree
+			return;
+		}
+		if (node.status != null
+				&& (!onlyErrors || node.status.isError())) {
+			uris.add(node.uri);
+		}
+		for (Node child : node.children.values()) {
+			collect(child, onlyErrors, uris, limit);
+		}
+	}
+
+	// call with this
+	private void updateStatus(Uri uri, AUSyncerStatus status) {
+		Node node = status == null ? findNode(uri) : obtainNode(uri);
+		if (node == null) {
+			return;
+		}
+		int count = (status == null ? 0 : 1) - (node.status == null ? 0 : 1);
+		int successCount = isSuccess(status) - isSuccess(node.status);
+		int errorCount = isError(status) - isError(node.status);
+		node.status = status;
+		for (Node n = node; n != null; n = n.parent) {
+			n.count += count;
+			n.successCount += successCount;
+			n.errorCount += errorCount;
+		}
+		removeIfEmpty(node);
+	}
+
+	private static int isSuccess(AUSyncerStatus status) {
+		return status != null && status.isSuccess() ? 1 : 0;
+	}
+
+	private static int isError(AUSyncerStatus status) {
+		return status != null && status.isError() ? 1 : 0;
+	}
+
+	// call with this
+	private void removeIfEmpty(Node node) {
+		while (node.parent != null && node.isEmpty()
+				&& node.children.isEmpty()) {
+			node.parent.children.remove(node.key);
+			node = node.parent;
+		}
+	}
+
+	// call with this
+	private Node findNode(Uri uri) {
+		Node node = mRoot;
+		for (String key : keys(uri)) {
+			node = node.children.get(key);
+			if (node == null) {
+				return null;
+			}
+		}
+		return node;
+	}
+
+	// call with this
+	private Node obtainNode(Uri uri) {
+		Node node = mRoot;
+		for (String key : keys(uri)) {
+			Node child = node.children.get(key);
+			if (child == null) {
+				child = new Node(node, key);
+				node.children.put(key, child);
+			}
+			node = child;
+		}
+		node.uri = uri;
+		return node;
+	}
+
+	private static List<String> keys(Uri uri) {
+		List<String> segments = uri.getPathSegments();
+		ArrayList<String> keys = new ArrayList<String>(segments.size() + 2);
+		keys.add(uri.getScheme() + "://" + uri.getAuthority());
+		keys.addAll(segments);
+		String query = uri.getQuery();
+		if (query != null) {
+			keys.add("?" + query);
+		}
+		return keys;
+	}
+}
@@ -1,5 +1,9 @@
 package com.appunite.ausyncer.tests;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import android.net.Uri;
 import android.os.Bundle;
 
@@ -9,8 +13,28 @@ import com.appunite.syncer.AbsDownloadService;
 public class DownloadService extends AbsDownloadService {
 
 	public static String ACTION_SYNC = "com.appunite.ausyncer.tests.ACTION_SYNC";
+
+	// uris with this first path segment belong to GROUP
+	public static final String GROUP_PATH = "group";
+	public static final int GROUP = 1;
+
+	// read in onCreate, so they have to be set before service is bound
+	public static volatile int sMaxConcurrentTasks = DEFAULT_MAX_CONCURRENT_TASKS;
+	public static volatile int sMaxConcurrentTasksInGroup = Integer.MAX_VALUE;
+	public static volatile boolean sDeferTasksWhileOffline = false;
+	public static volatile long sBatchWakeLockTimeout = -1;
 	
-	public int numberOfCalls = 0;
+	public volatile int numberOfCalls = 0;
+
+	public volatile boolean networkNeeded = false;
+
+	private volatile boolean mConnected = true;
+
+	// number of tasks of every drain reported by onQueueDrained
+	public final List<Integer> drainedTasks = Collections
+			.synchronizedList(new ArrayList<Integer>());
+
+	public volatile long lastDrainHeldTimeMs = -1;
 
 	public boolean mLastCalledWithForce;
 
@@ -18,25 +42,132 @@ public class DownloadService extends AbsDownloadService {
 
 	public Uri mLastCalledUri;
 
+	public final List<Uri> calledUris = Collections
+			.synchronizedList(new ArrayList<Uri>());
+
 	public int requireConnectionCalls = 0;
 
+	public volatile long handleTimeMs = 100;
+
+	// onHandleUri sleeps whole handleTimeMs even when interrupted
+	public volatile boolean ignoreInterrupts = false;
+
+	private final Object mCallsLock = new Object();
+	// protected with mCallsLock
+	private int mRunning = 0;
+	private int mRunningInGroup = 0;
+	private int mMaxRunning = 0;
+	private int mMaxRunningInGroup = 0;
+
 	@Override
 	protected AUSyncerStatus onHandleUri(Uri uri, Bundle bundle, boolean withForce) {
-		numberOfCalls++;
-		mLastCalledUri = uri;
-		mLastCalledBundle = bundle;
-		mLastCalledWithForce = withForce;
+		boolean inGroup = taskGroup(uri, bundle) == GROUP;
+		synchronized (mCallsLock) {
+			numberOfCalls++;
+			mLastCalledUri = uri;
+			mLastCalledBundle = bundle;
+			mLastCalledWithForce = withForce;
+			calledUris.add(uri);
+			mRunning++;
+			mMaxRunning = Math.max(mMaxRunning, mRunning);
+			if (inGroup) {
+				mRunningInGroup++;
+				mMaxRunningInGroup = Math.max(mMaxRunningInGroup,
+						mRunningInGroup);
+			}
+		}
 		try {
-			Thread.sleep(100);
-		} catch (InterruptedException e) {
+			long end = System.currentTimeMillis() + handleTimeMs;
+			for (long left = handleTimeMs; left > 0; left = end
+					- System.currentTimeMillis()) {
+				try {
+					Thread.sleep(left);
+				} catch (InterruptedException e) {
+					if (!ignoreInterrupts) {
+						break;
+					}
+				}
+			}
+		} finally {
+			synchronized (mCallsLock) {
+				mRunning--;
+				if (inGroup) {
+					mRunningInGroup--;
+				}
+			}
 		}
 		return AUSyncerStatus.statusSuccess();
 	}
+
+	public int getMaxRunning() {
+		synchronized (mCallsLock) {
+			return mMaxRunning;
+		}
+	}
+
+	public int getMaxRunningInGroup() {
+		synchronized (mCallsLock) {
+			return mMaxRunningInGroup;
+		}
+	}
 	
+	@Override
+	protected int historySize() {
+		return 5;
+	}
+
 	@Override
 	protected boolean isNetworkNeeded(Uri uri, Bundle bundle) {
 		requireConnectionCalls += 1;
-		return false;
+		return networkNeeded;
+	}
+
+	@Override
+	protected boolean isConnected() {
+		return mConnected;
+	}
+
+	public void setConnected(boolean connected) {
+		mConnected = connected;
+		notifyConnectivityChanged();
+	}
+
+	@Override
+	protected boolean deferTasksWhileOffline() {
+		return sDeferTasksWhileOffline;
+	}
+
+	@Override
+	protected long batchWakeLockTimeout() {
+		return sBatchWakeLockTimeout;
+	}
+
+	@Override
+	protected void onQueueDrained(int tasks, long wakeLockHeldTimeMs) {
+		lastDrainHeldTimeMs = wakeLockHeldTimeMs;
+		drainedTasks.add(tasks);
+	}
+
+	@Override
+	protected int maxConcurrentTasks() {
+		return sMaxConcurrentTasks;
+	}
+
+	@Override
+	protected int taskGroup(Uri uri, Bundle bundle) {
+		if (uri.getPathSegments().size() > 0
+				&& GROUP_PATH.equals(uri.getPathSegments().get(0))) {
+			return GROUP;
+		}
+		return NO_TASK_GROUP;
+	}
+
+	@Override
+	protected int maxConcurrentTasksInGroup(int group) {
+		if (group == GROUP) {
+			return sMaxConcurrentTasksInGroup;
+		}
+		return super.maxConcurrentTasksInGroup(group);
 	}
 
 }
@@ -0,0 +1,209 @@
+package com.appunite.ausyncer.tests.base;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.appunite.syncer.AUSyncerStatus;
+import com.appunite.syncer.CachedDownloadStatusStore;
+import com.appunite.syncer.DownloadStatusStore;
+
+public class CachedDownloadStatusStoreTest extends AndroidTestCase {
+
+	@Mock
+	private DownloadStatusStore mStore;
+	private Uri AUTHORITY_URI;
+	private Uri AUTHORITY_URI2;
+
+	public CachedDownloadStatusStoreTest() {
+		setName("CachedDownloadStatusStoreTest");
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		MockitoAnnotations.initMocks(this);
+
+		AUTHORITY_URI = Uri.parse("content://com.appunite.syncer.test");
+		AUTHORITY_URI2 = Uri.parse("content://com.appunite.syncer.test2");
+		// like real store, unknown uri is never downloaded
+		when(mStore.getLastStatus(any(Uri.class))).thenReturn(
+				AUSyncerStatus.statusNeverDownloaded());
+	}
+
+	public void testReadsAreCached() {
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		when(mStore.getLastStatus(AUTHORITY_URI)).thenReturn(success);
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, -1);
+
+		assertThat(cache.getLastStatus(AUTHORITY_URI), equalTo(success));
+		assertThat(cache.getLastStatus(AUTHORITY_URI), equalTo(success));
+		verify(mStore, times(1)).getLastStatus(AUTHORITY_URI);
+	}
+
+	public void testSynchronousWrites() {
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, -1);
+
+		cache.setLastStatus(AUTHORITY_URI, success);
+		verify(mStore).setLastStatuses(
+				Collections.singletonMap(AUTHORITY_URI, success));
+		assertThat(cache.getLastStatus(AUTHORITY_URI), equalTo(success));
+		verify(mStore, never()).getLastStatus(AUTHORITY_URI);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testGroupedWrites() {
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		AUSyncerStatus error = AUSyncerStatus.statusInternalIssue();
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, 60000);
+
+		cache.setLastStatus(AUTHORITY_URI, success);
+		cache.setLastStatus(AUTHORITY_URI2, error);
+		assertThat("written status should be visible before flush",
+				cache.getLastStatus(AUTHORITY_URI2), equalTo(error));
+		verify(mStore, never()).setLastStatuses(any(Map.class));
+
+		cache.close();
+		Map<Uri, AUSyncerStatus> expected = new HashMap<Uri, AUSyncerStatus>();
+		expected.put(AUTHORITY_URI, success);
+		expected.put(AUTHORITY_URI2, error);
+		ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+		verify(mStore, times(1)).setLastStatuses(captor.capture());
+		assertThat("both statuses should be written at once",
+				(Map<Uri, AUSyncerStatus>) captor.getValue(), equalTo(expected));
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testFullGroupIsWrittenWithoutDelay() {
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, 60000, 2);
+
+		cache.setLastStatus(AUTHORITY_URI, AUSyncerStatus.statusSuccess());
+		verify(mStore, never()).setLastStatuses(any(Map.class));
+		cache.setLastStatus(AUTHORITY_URI2, AUSyncerStatus.statusSuccess());
+		verify(mStore, timeout(1000).times(1)).setLastStatuses(any(Map.class));
+		cache.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testFlushBarrier() {
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, 60000);
+
+		cache.setLastStatus(AUTHORITY_URI, AUSyncerStatus.statusSuccess());
+		cache.flush();
+		verify(mStore, times(1)).setLastStatuses(any(Map.class));
+		verify(mStore).flush();
+		cache.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testBackgroundFlush() {
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, 0);
+
+		cache.setLastStatus(AUTHORITY_URI, success);
+		verify(mStore, timeout(1000)).setLastStatuses(any(Map.class));
+		cache.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testMissesAreReadInBulk() {
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		AUSyncerStatus error = AUSyncerStatus.statusInternalIssue();
+		when(mStore.getLastStatus(AUTHORITY_URI)).thenReturn(success);
+		when(mStore.getLastStatuses(Arrays.asList(AUTHORITY_URI2)))
+				.thenReturn(Arrays.asList(error));
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, -1);
+		cache.getLastStatus(AUTHORITY_URI);
+
+		List<AUSyncerStatus> statuses = cache.getLastStatuses(Arrays.asList(
+				AUTHORITY_URI, AUTHORITY_URI2, AUTHORITY_URI2));
+		assertThat(statuses, equalTo(Arrays.asList(success, error, error)));
+		// only misses are read, all of them with single call
+		verify(mStore, times(1)).getLastStatuses(any(List.class));
+		verify(mStore, never()).getLastStatus(AUTHORITY_URI2);
+
+		cache.getLastStatuses(Arrays.asList(AUTHORITY_URI2));
+		verify(mStore, times(1)).getLastStatuses(any(List.class));
+		cache.close();
+	}
+
+	public void testLeastRecentlyUsedStatusIsDropped() {
+		Uri third = Uri.withAppendedPath(AUTHORITY_URI, "3");
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		when(mStore.getLastStatus(any(Uri.class))).thenReturn(success);
+		when(mStore.getLastStatus(third)).thenReturn(
+				AUSyncerStatus.statusNeverDownloaded());
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, -1, Integer.MAX_VALUE, 2);
+
+		cache.getLastStatus(AUTHORITY_URI);
+		cache.getLastStatus(AUTHORITY_URI2);
+		cache.getLastStatus(AUTHORITY_URI);
+		// miss does not push saved statuses out of full cache
+		cache.getLastStatus(third);
+		cache.getLastStatus(third);
+		verify(mStore, times(2)).getLastStatus(third);
+		cache.getLastStatus(AUTHORITY_URI2);
+		verify(mStore, times(1)).getLastStatus(AUTHORITY_URI2);
+
+		Uri fourth = Uri.withAppendedPath(AUTHORITY_URI, "4");
+		cache.getLastStatus(fourth);
+		// AUTHORITY_URI was used least recently
+		cache.getLastStatus(AUTHORITY_URI);
+		verify(mStore, times(2)).getLastStatus(AUTHORITY_URI);
+		cache.close();
+	}
+
+	public void testPendingStatusIsReadableAfterDrop() {
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, 60000, Integer.MAX_VALUE, 1);
+
+		cache.setLastStatus(AUTHORITY_URI, success);
+		cache.setLastStatus(AUTHORITY_URI2, AUSyncerStatus.statusSuccess());
+		assertThat(cache.getLastStatus(AUTHORITY_URI), equalTo(success));
+		verify(mStore, never()).getLastStatus(AUTHORITY_URI);
+		cache.close();
+	}
+
+	public void testPreload() {
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		Map<Uri, AUSyncerStatus> saved = new HashMap<Uri, AUSyncerStatus>();
+		saved.put(AUTHORITY_URI, success);
+		when(mStore.getAllLastStatuses()).thenReturn(saved);
+		CachedDownloadStatusStore cache = new CachedDownloadStatusStore(
+				mStore, -1);
+
+		cache.preload();
+		assertThat(cache.getLastStatus(AUTHORITY_URI), equalTo(success));
+		assertTrue("unknown uri should be never downloaded", cache
+				.getLastStatus(AUTHORITY_URI2).isNeverDownloaded());
+		verify(mStore, times(1)).getAllLastStatuses();
+		verify(mStore, never()).getLastStatus(any(Uri.class));
+	}
+}
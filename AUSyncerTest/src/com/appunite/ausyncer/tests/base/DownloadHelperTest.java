@@ -1,20 +1,24 @@
 package com.appunite.ausyncer.tests.base;
 
+import static com.appunite.ausyncer.tests.base.Tests.assertThatWithTimeout;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.argThat;
-import static org.mockito.Matchers.notNull;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import org.hamcrest.BaseMatcher;
-import org.hamcrest.Description;
-import org.hamcrest.Matcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -31,11 +35,16 @@ import android.os.RemoteException;
 import android.test.AndroidTestCase;
 import android.test.mock.MockContext;
 
+import com.appunite.ausyncer.tests.base.Tests.ValueRunnable;
+import com.appunite.syncer.AUSyncerHistoryEntry;
 import com.appunite.syncer.AUSyncerStatus;
+import com.appunite.syncer.AUSyncerSubtreeStatus;
 import com.appunite.syncer.AbsDownloadService;
 import com.appunite.syncer.DownloadHelper;
 import com.appunite.syncer.DownloadHelperStatus;
+import com.appunite.syncer.DownloadStatusStore;
 import com.appunite.syncer.IDownloadService;
+import com.appunite.syncer.IDownloadServiceCallback;
 
 public class DownloadHelperTest extends AndroidTestCase {
 
@@ -45,21 +54,32 @@ public class DownloadHelperTest extends AndroidTestCase {
 
 	public static class DownloadService extends IDownloadService.Stub {
 
-		public Uri mUri = null;
+		// written last, so other fields are visible when it is set
+		public volatile Uri mUri = null;
 		public Bundle mBundle;
 		public boolean mWithForce;
+		public int mPriority;
 		public boolean mInProgress = false;
 		public boolean mIsNetworkNeeded = true;
 		public AUSyncerStatus mLastStatus;
+		public volatile IDownloadServiceCallback mCallback;
+		public volatile List<Uri> mCallbackUris;
 
 		@Override
 		public void download(Uri uri, Bundle bundle, boolean withForce)
 				throws RemoteException {
-			mUri = uri;
 			mBundle = bundle;
 			mWithForce = withForce;
 			mInProgress = true;
 			mIsNetworkNeeded = true;
+			mUri = uri;
+		}
+
+		@Override
+		public void downloadWithPriority(Uri uri, Bundle bundle,
+				boolean withForce, int priority) throws RemoteException {
+			mPriority = priority;
+			download(uri, bundle, withForce);
 		}
 		
 		@Override
@@ -72,6 +92,75 @@ public class DownloadHelperTest extends AndroidTestCase {
 			return mInProgress;
 		}
 
+		@Override
+		public List<AUSyncerStatus> getLastStatuses(List<Uri> uris)
+				throws RemoteException {
+			List<AUSyncerStatus> ret = new ArrayList<AUSyncerStatus>();
+			for (Uri uri : uris) {
+				ret.add(getLastStatus(uri));
+			}
+			return ret;
+		}
+
+		@Override
+		public boolean[] inProgressAll(List<Uri> uris) throws RemoteException {
+			boolean[] ret = new boolean[uris.size()];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = inProgress(uris.get(i));
+			}
+			return ret;
+		}
+
+		@Override
+		public void downloadAll(List<Uri> uris, Bundle bundle,
+				boolean withForce, int priority) throws RemoteException {
+			for (Uri uri : uris) {
+				downloadWithPriority(uri, bundle, withForce, priority);
+			}
+		}
+
+		@Override
+		public boolean cancel(Uri uri) throws RemoteException {
+			boolean inProgress = mInProgress;
+			mInProgress = false;
+			return inProgress;
+		}
+
+		@Override
+		public void registerCallback(IDownloadServiceCallback callback,
+				List<Uri> uris, boolean withDescendants)
+				throws RemoteException {
+			mCallback = callback;
+			mCallbackUris = uris;
+		}
+
+		@Override
+		public void unregisterCallback(IDownloadServiceCallback callback)
+				throws RemoteException {
+			if (callback.asBinder() == mCallback.asBinder()) {
+				mCallback = null;
+				mCallbackUris = null;
+			}
+		}
+
+		@Override
+		public List<AUSyncerHistoryEntry> getHistory(Uri uri)
+				throws RemoteException {
+			return new ArrayList<AUSyncerHistoryEntry>();
+		}
+
+		@Override
+		public AUSyncerSubtreeStatus getSubtreeStatus(Uri prefix)
+				throws RemoteException {
+			return null;
+		}
+
+		@Override
+		public List<Uri> getFailedChildren(Uri prefix, int limit)
+				throws RemoteException {
+			return new ArrayList<Uri>();
+		}
+
 	}
 
 	@Mock
@@ -137,59 +226,44 @@ public class DownloadHelperTest extends AndroidTestCase {
 		mDownloadHelper.onActivityResume();
 	}
 	
-	public void testIfReceiveBroadcasts() {
-		Matcher<IntentFilter> correctIntentFilterMatcher = new BaseMatcher<IntentFilter>() {
+	public void testIfReceiveCallbacks() throws Exception {
+		bind();
 
-			@Override
-			public boolean matches(Object obj) {
-				if (!(obj instanceof IntentFilter))
-					return false;
-				IntentFilter filter = (IntentFilter) obj;
-				if (filter.hasAction(AbsDownloadService.ON_PROGRESS_CHANGE))
-					return true;
-				return false;
-			}
-
-			@Override
-			public void describeTo(Description description) {
-			}
-		};
-		ArgumentCaptor<BroadcastReceiver> receiverCaptor = ArgumentCaptor
-				.forClass(BroadcastReceiver.class);
-		when(
-				mMockContext.registerReceiver(
-						argThat(notNullValue(BroadcastReceiver.class)),
-						argThat(correctIntentFilterMatcher))).thenReturn(null);
-		when(
-				mMockContext.bindService(Mockito.any(Intent.class),
-						Mockito.any(ServiceConnection.class), anyInt()))
-				.thenReturn(true);
-		mDownloadHelper.onActivityResume();
-		verify(mMockContext).registerReceiver(receiverCaptor.capture(),
-				notNull(IntentFilter.class));
-		BroadcastReceiver value = receiverCaptor.getValue();
+		assertThat(mDownloadServiceMock.mCallback, is(notNullValue()));
+		assertThat(mDownloadServiceMock.mCallbackUris,
+				equalTo(Collections.singletonList(AUTORITY_URI)));
 
-		reset(mDownloadHelperStatusMock);
+		mDownloadHelper.updateLocalData(true, false);
+		verify(mDownloadHelperStatusMock).onReportStatus(true, false, false,
+				false, AUSyncerStatus.statusNeverDownloaded());
 
-		sendOnProgressChange(value, AUTORITY_URI);
-		verify(mDownloadHelperStatusMock, times(1)).onReportStatus(false,
-				false, true, true, AUSyncerStatus.statusNeverDownloaded());
+		mDownloadServiceMock.mInProgress = true;
+		sendOnProgressChange(AUTORITY_URI);
+		verify(mDownloadHelperStatusMock, timeout(1000).times(1))
+				.onReportStatus(true, false, false, true,
+						AUSyncerStatus.statusNeverDownloaded());
+		verify(mMockContext, never()).registerReceiver(
+				Mockito.any(BroadcastReceiver.class),
+				Mockito.any(IntentFilter.class));
 	}
 
-	public void testLastError() throws InterruptedException {
-		BroadcastReceiver receiver = bind();
-
-		assertThat(receiver, is(notNullValue()));
+	public void testLastError() throws Exception {
+		bind();
 
 		mDownloadServiceMock.mLastStatus = AUSyncerStatus.statusInternalIssue();
+		sendOnProgressChange(AUTORITY_URI);
+		Thread.sleep(500);
+		// without local data screen looks the same, so it is not reported
+		verifyNoReport();
 		mDownloadHelper.updateLocalData(true, false);
-		verify(mDownloadHelperStatusMock).onReportStatus(Mockito.anyBoolean(),
-				Mockito.anyBoolean(), Mockito.anyBoolean(),
-				Mockito.anyBoolean(), Mockito.notNull(AUSyncerStatus.class));
+		verify(mDownloadHelperStatusMock).onReportStatus(true, false, false,
+				false, AUSyncerStatus.statusInternalIssue());
 		
 		
 		mDownloadHelper.onActivityPause();
-		verify(mMockContext).unregisterReceiver(receiver);
+		waitForCallback(false);
+		assertThat("callback should be unregistered after pause",
+				mDownloadServiceMock.mCallback, is(nullValue()));
 		reset(mDownloadHelperStatusMock);
 		
 		
@@ -197,31 +271,96 @@ public class DownloadHelperTest extends AndroidTestCase {
 		Thread.sleep(2000);
 		
 		// After onActivityPause nothing should be reported
-		verify(mDownloadHelperStatusMock, times(0)).onReportStatus(
+		verifyNoReport();
+	}
+
+	public void testUnchangedStatusIsNotReported() throws Exception {
+		bind();
+
+		mDownloadHelper.updateLocalData(true, false);
+		verify(mDownloadHelperStatusMock).onReportStatus(true, false, false,
+				false, AUSyncerStatus.statusNeverDownloaded());
+		reset(mDownloadHelperStatusMock);
+
+		mDownloadHelper.updateLocalData(true, false);
+		sendOnProgressChange(AUTORITY_URI);
+		Thread.sleep(500);
+		verifyNoReport();
+	}
+
+	public void testThrottledReports() throws Exception {
+		bind();
+		mDownloadHelper.setReportThrottle(500);
+		mDownloadHelper.updateLocalData(true, false);
+		reset(mDownloadHelperStatusMock);
+
+		mDownloadServiceMock.mInProgress = true;
+		sendOnProgressChange(AUTORITY_URI);
+		mDownloadServiceMock.mInProgress = false;
+		mDownloadServiceMock.mLastStatus = AUSyncerStatus.statusSuccess();
+		sendOnProgressChange(AUTORITY_URI);
+
+		// burst is reported once with its final state
+		verify(mDownloadHelperStatusMock, timeout(2000)).onReportStatus(true,
+				false, false, false, AUSyncerStatus.statusSuccess());
+		Thread.sleep(500);
+		verify(mDownloadHelperStatusMock, times(1)).onReportStatus(
+				Mockito.anyBoolean(), Mockito.anyBoolean(),
+				Mockito.anyBoolean(), Mockito.anyBoolean(),
+				Mockito.any(AUSyncerStatus.class));
+	}
+
+	public void testStoredStatusIsReportedBeforeConnection() throws Exception {
+		AUSyncerStatus stored = AUSyncerStatus.statusSuccess();
+		DownloadStatusStore statusStore = Mockito
+				.mock(DownloadStatusStore.class);
+		when(statusStore.getLastStatuses(Collections.singletonList(AUTORITY_URI)))
+				.thenReturn(Collections.singletonList(stored));
+		when(
+				mMockContext.bindService(Mockito.any(Intent.class),
+						argThat(notNullValue(ServiceConnection.class)),
+						anyInt())).thenReturn(true);
+
+		mDownloadHelper.setStatusStore(statusStore);
+		mDownloadHelper.updateLocalData(true, false);
+		mDownloadHelper.onActivityResume();
+
+		// progress of task is not known until service is connected
+		verify(mDownloadHelperStatusMock, timeout(1000)).onReportStatus(true,
+				false, false, true, stored);
+	}
+
+	private void verifyNoReport() {
+		verify(mDownloadHelperStatusMock, never()).onReportStatus(
 				Mockito.anyBoolean(), Mockito.anyBoolean(),
 				Mockito.anyBoolean(), Mockito.anyBoolean(),
 				Mockito.any(AUSyncerStatus.class));
 	}
 
-	public void testSyncStatuses() throws RemoteException {
-		BroadcastReceiver receiver = bind();
+	public void testSyncStatuses() throws Exception {
+		bind();
 
 		assertNull("before startDownloading uri should be null",
 				mDownloadServiceMock.mUri);
 		mDownloadHelper.startDownloading(null, true);
-		assertThat("requested url does not match", mDownloadServiceMock.mUri,
-				equalTo(AUTORITY_URI));
+		// request is made on background thread
+		assertThatWithTimeout(new ValueRunnable<Uri>() {
+			@Override
+			public Uri getValue() {
+				return mDownloadServiceMock.mUri;
+			}
+		}, equalTo(AUTORITY_URI), 1000);
 		assertTrue(mDownloadServiceMock.mWithForce);
-		verify(mDownloadHelperStatusMock).onReportStatus(false, false, true,
-				true, AUSyncerStatus.statusNeverDownloaded());
-		reset(mDownloadHelperStatusMock);
+		assertThat(mDownloadServiceMock.mPriority,
+				equalTo(AbsDownloadService.PRIORITY_FOREGROUND));
+		// screen without local data still shows progress
+		verifyNoReport();
 
 		mDownloadServiceMock.mLastStatus = AUSyncerStatus.statusSuccess();
 		mDownloadServiceMock.mInProgress = false;
-		sendOnProgressChange(receiver, AUTORITY_URI);
-		verify(mDownloadHelperStatusMock).onReportStatus(false, false, true,
-				true, AUSyncerStatus.statusNeverDownloaded());
-		reset(mDownloadHelperStatusMock);
+		sendOnProgressChange(AUTORITY_URI);
+		Thread.sleep(500);
+		verifyNoReport();
 
 		mDownloadHelper.updateLocalData(true, false);
 		verify(mDownloadHelperStatusMock).onReportStatus(true, false, false,
@@ -229,9 +368,9 @@ public class DownloadHelperTest extends AndroidTestCase {
 		reset(mDownloadHelperStatusMock);
 
 		mDownloadServiceMock.mInProgress = true;
-		sendOnProgressChange(receiver, AUTORITY_URI);
-		verify(mDownloadHelperStatusMock).onReportStatus(true, false, false,
-				true, AUSyncerStatus.statusSuccess());
+		sendOnProgressChange(AUTORITY_URI);
+		verify(mDownloadHelperStatusMock, timeout(1000)).onReportStatus(true,
+				false, false, true, AUSyncerStatus.statusSuccess());
 		reset(mDownloadHelperStatusMock);
 
 		mDownloadHelper.updateLocalData(false, false);
@@ -245,19 +384,22 @@ public class DownloadHelperTest extends AndroidTestCase {
 		reset(mDownloadHelperStatusMock);
 
 		mDownloadServiceMock.mInProgress = false;
-		sendOnProgressChange(receiver, AUTORITY_URI);
-		verify(mDownloadHelperStatusMock).onReportStatus(false, true, false,
-				false, AUSyncerStatus.statusSuccess());
+		sendOnProgressChange(AUTORITY_URI);
+		verify(mDownloadHelperStatusMock, timeout(1000)).onReportStatus(false,
+				true, false, false, AUSyncerStatus.statusSuccess());
 		reset(mDownloadHelperStatusMock);
 	}
 
-	private void sendOnProgressChange(BroadcastReceiver receiver, Uri uri) {
-		Intent intent = new Intent(AbsDownloadService.ON_PROGRESS_CHANGE);
-		intent.putExtra(AbsDownloadService.ON_PROGRESS_CHANGE_EXTRA_URI, uri);
-		receiver.onReceive(mMockContext, intent);
+	private void sendOnProgressChange(Uri uri) throws RemoteException {
+		IDownloadServiceCallback callback = mDownloadServiceMock.mCallback;
+		if (mDownloadServiceMock.mInProgress) {
+			callback.onTaskStarted(uri);
+		} else {
+			callback.onTaskFinished(uri, mDownloadServiceMock.mLastStatus);
+		}
 	}
 
-	private BroadcastReceiver bind() {
+	private void bind() {
 
 		when(
 				mMockContext.bindService(Mockito.any(Intent.class),
@@ -277,23 +419,30 @@ public class DownloadHelperTest extends AndroidTestCase {
 		verify(mDownloadHelperStatusMock, times(1)).onReportStatus(false, false,
 				true, true, AUSyncerStatus.statusNeverDownloaded());
 
-		ArgumentCaptor<BroadcastReceiver> broadcastReceiverCaptor = ArgumentCaptor
-				.forClass(BroadcastReceiver.class);
-		verify(mMockContext).registerReceiver(
-				broadcastReceiverCaptor.capture(),
-				Mockito.any(IntentFilter.class));
-		assertNotNull(broadcastReceiverCaptor);
-
 		reset(mDownloadHelperStatusMock);
 
-		// simulate bind service
+		// simulate bind service, screen with local data shows state that was
+		// read after registration of callback
+		mDownloadHelper.updateLocalData(true, false);
 		serviceConnection.onServiceConnected(null, mDownloadServiceMock);
-		verify(mDownloadHelperStatusMock, times(1)).onReportStatus(false, false,
-				true, true, AUSyncerStatus.statusNeverDownloaded());
+		verify(mDownloadHelperStatusMock, timeout(1000)).onReportStatus(true,
+				false, false, false, AUSyncerStatus.statusNeverDownloaded());
+		assertThat(mDownloadServiceMock.mCallback, is(notNullValue()));
 
+		mDownloadHelper.updateLocalData(false, false);
+		verify(mDownloadHelperStatusMock).onReportStatus(false, false, true,
+				true, AUSyncerStatus.statusNeverDownloaded());
 		reset(mDownloadHelperStatusMock);
+	}
 
-		return broadcastReceiverCaptor.getValue();
+	private void waitForCallback(final boolean registered) throws Exception {
+		// helper calls service on background thread
+		assertThatWithTimeout(new ValueRunnable<Boolean>() {
+			@Override
+			public Boolean getValue() {
+				return mDownloadServiceMock.mCallback != null;
+			}
+		}, equalTo(registered), 1000);
 	}
 
 }
@@ -0,0 +1,191 @@
+package com.appunite.ausyncer.tests.base;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContext;
+
+import com.appunite.syncer.DownloadServiceConnection;
+import com.appunite.syncer.IDownloadService;
+
+public class DownloadServiceConnectionTest extends AndroidTestCase {
+
+	private static final String SERVICE_ACTION_NAME = "com.appunite.syncer.ACTION_SYNC";
+
+	private Uri AUTHORITY_URI;
+	private DownloadHelperTest.DownloadService mDownloadServiceMock;
+	@Mock
+	private MockContext mMockContext;
+	@Mock
+	private ServiceConnection mClient1;
+	@Mock
+	private ServiceConnection mClient2;
+
+	public DownloadServiceConnectionTest() {
+		super();
+		setName("DownloadServiceConnectionTest");
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		AUTHORITY_URI = Uri.parse("content://com.appunite.syncer");
+
+		MockitoAnnotations.initMocks(this);
+		mDownloadServiceMock = new DownloadHelperTest.DownloadService();
+		when(mMockContext.getMainLooper()).thenReturn(Looper.getMainLooper());
+		when(
+				mMockContext.bindService(Mockito.any(Intent.class),
+						argThat(notNullValue(ServiceConnection.class)),
+						anyInt())).thenReturn(true);
+		setContext(mMockContext);
+	}
+
+	public void testConnectionIsShared() {
+		DownloadServiceConnection connection = DownloadServiceConnection
+				.obtain(mMockContext, SERVICE_ACTION_NAME);
+		connection.setReleaseDelay(0);
+		assertThat(DownloadServiceConnection.obtain(mMockContext,
+				SERVICE_ACTION_NAME), equalTo(connection));
+
+		connection.acquire(mClient1);
+		connection.acquire(mClient2);
+		verify(mMockContext, times(1)).bindService(Mockito.any(Intent.class),
+				Mockito.any(ServiceConnection.class), Mockito.anyInt());
+
+		connection.onServiceConnected(null, mDownloadServiceMock);
+		verify(mClient1).onServiceConnected(null, mDownloadServiceMock);
+		verify(mClient2).onServiceConnected(null, mDownloadServiceMock);
+
+		connection.release(mClient1);
+		verify(mMockContext, never()).unbindService(
+				Mockito.any(ServiceConnection.class));
+		connection.release(mClient2);
+		verify(mMockContext, times(1)).unbindService(connection);
+	}
+
+	public void testReleaseDelayIsKeptAfterUnbind() {
+		DownloadServiceConnection connection = DownloadServiceConnection
+				.obtain(mMockContext, SERVICE_ACTION_NAME);
+		connection.setReleaseDelay(0);
+		connection.acquire(mClient1);
+		connection.release(mClient1);
+		verify(mMockContext, times(1)).unbindService(connection);
+
+		DownloadServiceConnection obtained = DownloadServiceConnection.obtain(
+				mMockContext, SERVICE_ACTION_NAME);
+		assertThat(obtained, sameInstance(connection));
+		obtained.acquire(mClient1);
+		obtained.release(mClient1);
+		// delay set before the first unbind still applies
+		verify(mMockContext, times(2)).unbindService(connection);
+	}
+
+	public void testLateClientIsNotifiedImmediately() {
+		DownloadServiceConnection connection = DownloadServiceConnection
+				.obtain(mMockContext, SERVICE_ACTION_NAME);
+		connection.acquire(mClient1);
+		connection.onServiceConnected(null, mDownloadServiceMock);
+
+		connection.acquire(mClient2);
+		verify(mClient2).onServiceConnected(null, mDownloadServiceMock);
+		connection.setReleaseDelay(0);
+		connection.release(mClient1);
+		connection.release(mClient2);
+	}
+
+	public void testRequestsWaitForConnection() throws Exception {
+		DownloadServiceConnection connection = DownloadServiceConnection
+				.obtain(mMockContext, SERVICE_ACTION_NAME);
+		connection.acquire(mClient1);
+
+		final Thread callingThread = Thread.currentThread();
+		final AtomicReference<Thread> requestThread = new AtomicReference<Thread>();
+		final CountDownLatch executed = new CountDownLatch(1);
+		connection.execute(new DownloadServiceConnection.ServiceRequest() {
+
+			@Override
+			public void run(IDownloadService service) throws RemoteException {
+				service.download(AUTHORITY_URI, null, true);
+				requestThread.set(Thread.currentThread());
+				executed.countDown();
+			}
+		});
+		assertThat(mDownloadServiceMock.mUri, nullValue());
+
+		ArgumentCaptor<ServiceConnection> serviceConnectionCaptor = ArgumentCaptor
+				.forClass(ServiceConnection.class);
+		verify(mMockContext).bindService(Mockito.any(Intent.class),
+				serviceConnectionCaptor.capture(), Mockito.anyInt());
+		serviceConnectionCaptor.getValue().onServiceConnected(null,
+				mDownloadServiceMock);
+		assertTrue("request should be executed after connection",
+				executed.await(1000, TimeUnit.MILLISECONDS));
+		assertThat(mDownloadServiceMock.mUri, equalTo(AUTHORITY_URI));
+		assertThat("request should not block caller", requestThread.get(),
+				not(sameInstance(callingThread)));
+		connection.setReleaseDelay(0);
+		connection.release(mClient1);
+	}
+
+	public void testFailedRequestIsExecutedAfterReconnection()
+			throws Exception {
+		DownloadServiceConnection connection = DownloadServiceConnection
+				.obtain(mMockContext, SERVICE_ACTION_NAME);
+		connection.acquire(mClient1);
+		connection.onServiceConnected(null, mDownloadServiceMock);
+
+		final AtomicInteger attempts = new AtomicInteger();
+		final CountDownLatch executed = new CountDownLatch(1);
+		connection.execute(new DownloadServiceConnection.ServiceRequest() {
+
+			@Override
+			public void run(IDownloadService service) throws RemoteException {
+				if (attempts.incrementAndGet() == 1) {
+					throw new RemoteException();
+				}
+				executed.countDown();
+			}
+		});
+
+		// service is bound again on main thread
+		verify(mMockContext, timeout(1000)).unbindService(connection);
+		verify(mMockContext, timeout(1000).times(2)).bindService(
+				Mockito.any(Intent.class),
+				Mockito.any(ServiceConnection.class), Mockito.anyInt());
+		assertThat(executed.getCount(), equalTo(1L));
+
+		connection.onServiceConnected(null, mDownloadServiceMock);
+		assertTrue("request should be executed again",
+				executed.await(1000, TimeUnit.MILLISECONDS));
+		assertThat(attempts.get(), equalTo(2));
+		connection.setReleaseDelay(0);
+		connection.release(mClient1);
+	}
+}
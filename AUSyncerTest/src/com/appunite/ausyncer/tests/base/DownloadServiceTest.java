@@ -3,6 +3,14 @@ package com.appunite.ausyncer.tests.base;
 import static com.appunite.ausyncer.tests.base.Tests.assertThatWithTimeout;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
@@ -11,7 +19,11 @@ import android.test.ServiceTestCase;
 
 import com.appunite.ausyncer.tests.DownloadService;
 import com.appunite.ausyncer.tests.base.Tests.ValueRunnable;
+import com.appunite.syncer.AUSyncerHistoryEntry;
 import com.appunite.syncer.AUSyncerStatus;
+import com.appunite.syncer.AUSyncerSubtreeStatus;
+import com.appunite.syncer.AbsDownloadService;
+import com.appunite.syncer.DownloadHelper;
 import com.appunite.syncer.DownloadSharedPreference;
 import com.appunite.syncer.IDownloadService;
 
@@ -37,12 +49,14 @@ public class DownloadServiceTest extends ServiceTestCase<DownloadService> {
 
 		setContext(getSystemContext());
 
-		Intent intent = new Intent(DownloadService.ACTION_SYNC);
-		mInterface = IDownloadService.Stub.asInterface(bindService(intent));
-		mService = getService();
+		// service reads statuses as soon as it is created
 		DownloadSharedPreference downloadSharedPreference = new DownloadSharedPreference(
 				getContext());
 		downloadSharedPreference.clear();
+
+		Intent intent = new Intent(DownloadService.ACTION_SYNC);
+		mInterface = IDownloadService.Stub.asInterface(bindService(intent));
+		mService = getService();
 	}
 
 	public void test1Prepare() {
@@ -161,6 +175,255 @@ public class DownloadServiceTest extends ServiceTestCase<DownloadService> {
 				equalTo(2));
 	}
 	
+	public void testMergingDuplicatedRequests() throws Exception {
+		// single worker is busy, so following requests stay queued
+		Uri blocker = Uri.withAppendedPath(AUTHORITY_URI, "blocker");
+		mInterface.download(blocker, null, true);
+		mInterface.download(AUTHORITY_URI, null, false);
+		mInterface.download(AUTHORITY_URI, null, true);
+		mInterface.download(AUTHORITY_URI, null, true);
+		assertTrue("While downloading in progress should be true",
+				mInterface.inProgress(AUTHORITY_URI));
+		assertThatWithTimeout(new ValueRunnable<Boolean>() {
+			@Override
+			public Boolean getValue() throws RemoteException {
+				return mInterface.inProgress(AUTHORITY_URI);
+			}
+		}, equalTo(false), 1000);
+		Thread.sleep(500);
+		assertThat("requests for the same uri should be merged",
+				mService.numberOfCalls, equalTo(2));
+	}
+
+	public void testPriorityRaisedOnMerge() throws Exception {
+		Uri blocker = Uri.withAppendedPath(AUTHORITY_URI, "blocker");
+		Uri background = Uri.withAppendedPath(AUTHORITY_URI, "background");
+		Uri foreground = Uri.withAppendedPath(AUTHORITY_URI, "foreground");
+		mService.handleTimeMs = 300;
+		mInterface.download(blocker, null, true);
+		mInterface.downloadWithPriority(background, null, true,
+				AbsDownloadService.PRIORITY_BACKGROUND);
+		mInterface.downloadWithPriority(foreground, null, true,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+		// user is now looking at data requested before in background
+		mInterface.downloadWithPriority(background, null, true,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws Exception {
+				return mService.numberOfCalls;
+			}
+		}, equalTo(3), 2000);
+		assertThat(mService.calledUris,
+				equalTo(Arrays.asList(blocker, background, foreground)));
+	}
+
+	public void testForcedRequestWhileRunning() throws Exception {
+		mService.handleTimeMs = 500;
+		mInterface.download(AUTHORITY_URI, null, false);
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws Exception {
+				return mService.numberOfCalls;
+			}
+		}, equalTo(1), 1000);
+
+		// running pass could miss data changed after it started
+		mInterface.download(AUTHORITY_URI, null, true);
+		mInterface.download(AUTHORITY_URI, null, true);
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws Exception {
+				return mService.numberOfCalls;
+			}
+		}, equalTo(2), 2000);
+		assertTrue("follow-up should be forced", mService.mLastCalledWithForce);
+		assertThatWithTimeout(new ValueRunnable<Boolean>() {
+			@Override
+			public Boolean getValue() throws RemoteException {
+				return mInterface.inProgress(AUTHORITY_URI);
+			}
+		}, equalTo(false), 1000);
+		assertThat("forced requests should be merged into one follow-up",
+				mService.numberOfCalls, equalTo(2));
+	}
+
+	public void testBatchCalls() throws Exception {
+		final Uri secondUri = Uri.withAppendedPath(AUTHORITY_URI, "1");
+		final List<Uri> uris = Arrays.asList(AUTHORITY_URI, secondUri);
+
+		mInterface.downloadAll(uris, null, false,
+				AbsDownloadService.PRIORITY_BACKGROUND);
+		boolean[] inProgress = mInterface.inProgressAll(uris);
+		assertThat(inProgress.length, equalTo(2));
+		assertTrue("While downloading in progress should be true",
+				inProgress[0] || inProgress[1]);
+		assertThatWithTimeout(new ValueRunnable<List<AUSyncerStatus>>() {
+			@Override
+			public List<AUSyncerStatus> getValue() throws RemoteException {
+				return mInterface.getLastStatuses(uris);
+			}
+		}, equalTo(Arrays.asList(AUSyncerStatus.statusSuccess(),
+				AUSyncerStatus.statusSuccess())), 1000);
+		assertThat(mService.numberOfCalls, equalTo(2));
+	}
+
+	public void testCancel() throws Exception {
+		assertFalse("There should be nothing to cancel at start point",
+				mInterface.cancel(AUTHORITY_URI));
+
+		mInterface.download(AUTHORITY_URI, null, true);
+		assertTrue("Requested task should be cancelled",
+				mInterface.cancel(AUTHORITY_URI));
+		assertFalse("Cancelled task should not be in progress",
+				mInterface.inProgress(AUTHORITY_URI));
+		assertThat(mInterface.getLastStatus(AUTHORITY_URI),
+				equalTo(AUSyncerStatus.statusCancelled()));
+
+		Thread.sleep(500);
+		assertThat("Result of cancelled task should be ignored",
+				mInterface.getLastStatus(AUTHORITY_URI),
+				equalTo(AUSyncerStatus.statusCancelled()));
+	}
+
+	public void testCancelWhenInterruptIsIgnored() throws Exception {
+		final Uri otherUri = Uri.withAppendedPath(AUTHORITY_URI, "other");
+		mService.ignoreInterrupts = true;
+		mService.handleTimeMs = 500;
+		mInterface.download(AUTHORITY_URI, null, true);
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws Exception {
+				return mService.numberOfCalls;
+			}
+		}, equalTo(1), 1000);
+
+		assertTrue("Running task should be cancelled",
+				mInterface.cancel(AUTHORITY_URI));
+		assertFalse("Cancelled task should not be in progress",
+				mInterface.inProgress(AUTHORITY_URI));
+
+		// cancelled onHandleUri is still running
+		mInterface.download(AUTHORITY_URI, null, true);
+		mInterface.download(otherUri, null, true);
+		Thread.sleep(200);
+		assertThat("worker of cancelled task should not be replaced",
+				mService.numberOfCalls, equalTo(1));
+		assertTrue(mInterface.inProgress(AUTHORITY_URI));
+
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws Exception {
+				return mService.numberOfCalls;
+			}
+		}, equalTo(3), 3000);
+		assertThatWithTimeout(new ValueRunnable<Boolean>() {
+			@Override
+			public Boolean getValue() throws RemoteException {
+				return mInterface.inProgress(AUTHORITY_URI)
+						|| mInterface.inProgress(otherUri);
+			}
+		}, equalTo(false), 2000);
+		assertThat(mService.getMaxRunning(), equalTo(1));
+	}
+
+	public void testLocalStatusDelivery() throws Exception {
+		final List<AUSyncerStatus> received = new ArrayList<AUSyncerStatus>();
+		final CountDownLatch broadcastHandled = new CountDownLatch(1);
+		DownloadHelper.DownloadReceiver receiver = new DownloadHelper.DownloadReceiver() {
+
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				super.onReceive(context, intent);
+				broadcastHandled.countDown();
+			}
+
+			@Override
+			protected void onReceive(Uri uri, AUSyncerStatus status) {
+				synchronized (received) {
+					received.add(status);
+				}
+			}
+		};
+		DownloadHelper.registerDownloadReceiver(getContext(), receiver);
+		try {
+			mInterface.download(AUTHORITY_URI, null, true);
+			assertThatWithTimeout(new ValueRunnable<Integer>() {
+				@Override
+				public Integer getValue() throws Exception {
+					synchronized (received) {
+						return received.size();
+					}
+				}
+			}, equalTo(1), 1000);
+			assertTrue("broadcast should be sent",
+					broadcastHandled.await(1000, TimeUnit.MILLISECONDS));
+			synchronized (received) {
+				assertThat("broadcast should not duplicate local delivery",
+						received.size(), equalTo(1));
+				assertTrue(received.get(0).isSuccess());
+			}
+		} finally {
+			DownloadHelper.unregisterDownloadReceiver(getContext(), receiver);
+		}
+	}
+
+	public void testHistory() throws Exception {
+		final Uri uri = Uri.withAppendedPath(AUTHORITY_URI,
+				"history" + System.currentTimeMillis());
+		assertThat("History should be empty at start point",
+				mInterface.getHistory(uri).size(), equalTo(0));
+
+		mInterface.download(uri, null, true);
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws RemoteException {
+				return mInterface.getHistory(uri).size();
+			}
+		}, equalTo(1), 1000);
+		AUSyncerHistoryEntry entry = mInterface.getHistory(uri).get(0);
+		assertTrue("Task should succeed", entry.isSuccess());
+		assertThat("Duration should include execution time",
+				entry.getDurationMs(), greaterThanOrEqualTo(100L));
+
+		mInterface.download(uri, null, true);
+		mInterface.cancel(uri);
+		List<AUSyncerHistoryEntry> history = mInterface.getHistory(uri);
+		assertThat(history.size(), equalTo(2));
+		assertTrue("Newest entry should be first", history.get(0)
+				.isCancelled());
+	}
+
+	public void testSubtreeStatus() throws Exception {
+		final Uri parent = Uri.withAppendedPath(AUTHORITY_URI, "subtree");
+		final Uri first = Uri.withAppendedPath(parent, "1");
+		final Uri second = Uri.withAppendedPath(parent, "2");
+		assertThat(mInterface.getSubtreeStatus(parent).getCount(), equalTo(0));
+
+		mInterface.downloadAll(Arrays.asList(first, second), null, true,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+		assertThat(mInterface.getSubtreeStatus(parent).getInProgressCount(),
+				equalTo(2));
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws RemoteException {
+				return mInterface.getSubtreeStatus(parent).getSuccessCount();
+			}
+		}, equalTo(2), 1000);
+		AUSyncerSubtreeStatus status = mInterface.getSubtreeStatus(parent);
+		assertThat(status.getCount(), equalTo(2));
+		assertThat(status.getInProgressCount(), equalTo(0));
+		assertThat(mInterface.getSubtreeStatus(first).getCount(), equalTo(1));
+
+		mInterface.download(first, null, true);
+		mInterface.cancel(first);
+		assertThat(mInterface.getSubtreeStatus(parent).getErrorCount(),
+				equalTo(1));
+		assertThat(mInterface.getFailedChildren(parent, 10),
+				equalTo(Arrays.asList(first)));
+	}
+
 	public void testNetworkUriAvailability() throws Exception {
 		mService.requireConnectionCalls = 0;
 		mInterface.download(AUTHORITY_URI, null, true);
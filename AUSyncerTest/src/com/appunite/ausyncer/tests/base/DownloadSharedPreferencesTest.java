@@ -2,6 +2,12 @@ package com.appunite.ausyncer.tests.base;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Collections;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 
@@ -46,4 +52,96 @@ public class DownloadSharedPreferencesTest extends AndroidTestCase {
 		assertThat(mPreference.getLastStatus(AUTHORITY_URI).getStatusTimeMs(), equalTo(statusSuccess.getStatusTimeMs()));
 	}
 
+	public void testErrorKeepsLastDownloaded() {
+		AUSyncerStatus statusSuccess = AUSyncerStatus.statusSuccess();
+		mPreference.setLastStatus(AUTHORITY_URI, statusSuccess);
+		mPreference.setLastStatus(AUTHORITY_URI, AUSyncerStatus.statusInternalIssue("error"));
+		AUSyncerStatus status = mPreference.getLastStatus(AUTHORITY_URI);
+		assertTrue(status.isInternalIssue());
+		assertThat(status.getMsgObjectOrNull().toString(), equalTo(
+				AUSyncerStatus.statusInternalIssue("error").getMsgObjectOrNull().toString()));
+		assertThat(status.getLastDownloaded(), equalTo(statusSuccess.getLastDownloaded()));
+	}
+
+	public void testHttpErrorIsSaved() {
+		mPreference.setLastStatus(AUTHORITY_URI, AUSyncerStatus.statusHttpError(404));
+		AUSyncerStatus status = mPreference.getLastStatus(AUTHORITY_URI);
+		assertTrue(status.isInternalIssue());
+		assertThat(status.getHttpCode(), equalTo(404));
+		assertThat(status.getRetryAfterMs(), equalTo(-1L));
+		assertThat(status.hashCode(), equalTo(AUSyncerStatus.statusInternalIssue().hashCode()));
+	}
+
+	public void testEvictionKeepsProtectedUris() {
+		Uri second = Uri.withAppendedPath(AUTHORITY_URI, "2");
+		Uri third = Uri.withAppendedPath(AUTHORITY_URI, "3");
+		mPreference.setLastStatus(AUTHORITY_URI, AUSyncerStatus.statusSuccess());
+		mPreference.setLastStatus(second, AUSyncerStatus.statusSuccess());
+		mPreference.setLastStatus(third, AUSyncerStatus.statusSuccess());
+
+		int evicted = mPreference.evict(-1, 1,
+				Collections.singletonList(AUTHORITY_URI));
+		assertThat(evicted, equalTo(2));
+		assertTrue(mPreference.getLastStatus(AUTHORITY_URI).isSuccess());
+		assertThat(mPreference.getLastStatus(second),
+				equalTo(AUSyncerStatus.statusNeverDownloaded()));
+		assertThat(mPreference.getLastStatus(third),
+				equalTo(AUSyncerStatus.statusNeverDownloaded()));
+	}
+
+	public void testEvictionByAge() {
+		mPreference.setLastStatus(AUTHORITY_URI, AUSyncerStatus.statusSuccess());
+
+		assertThat(mPreference.evict(1000L, -1,
+				Collections.<Uri>emptyList()), equalTo(0));
+		assertThat(mPreference.evict(System.currentTimeMillis() + 1000L, -1,
+				Collections.<Uri>emptyList()), equalTo(1));
+		assertThat(mPreference.getLastStatus(AUTHORITY_URI),
+				equalTo(AUSyncerStatus.statusNeverDownloaded()));
+	}
+
+	public void testMigrationFromLegacyLayout() {
+		String key = AUTHORITY_URI.toString();
+		SharedPreferences preferences = mContext.getSharedPreferences(
+				"download_preferences", Context.MODE_MULTI_PROCESS);
+		preferences.edit()
+				.putInt(key + "_last_error_message", 3) // internal issue
+				.putLong(key + "_last_error_time", 2000L)
+				.putLong(key + "_last_downloaded", 1000L)
+				.commit();
+
+		AUSyncerStatus status = mPreference.getLastStatus(AUTHORITY_URI);
+		assertTrue(status.isInternalIssue());
+		assertThat(status.getStatusTimeMs(), equalTo(2000L));
+		assertThat(status.getLastDownloaded(), equalTo(1000L));
+		assertTrue("Single read should not write",
+				preferences.contains(key + "_last_error_message"));
+
+		Map<Uri, AUSyncerStatus> all = mPreference.getAllLastStatuses();
+		assertThat(all.get(AUTHORITY_URI), equalTo(status));
+		assertFalse("Legacy keys should be removed after migration",
+				preferences.contains(key + "_last_error_message"));
+		assertThat(mPreference.getLastStatus(AUTHORITY_URI), equalTo(status));
+	}
+
+	public void testLegacyKeysAreRemovedOnWrite() {
+		String key = AUTHORITY_URI.toString();
+		SharedPreferences preferences = mContext.getSharedPreferences(
+				"download_preferences", Context.MODE_MULTI_PROCESS);
+		preferences.edit()
+				.putInt(key + "_last_error_message", 3) // internal issue
+				.putLong(key + "_last_error_time", 2000L)
+				.putLong(key + "_last_downloaded", 1000L)
+				.commit();
+
+		mPreference.setLastStatus(AUTHORITY_URI,
+				AUSyncerStatus.statusNoInternetConnection());
+		assertFalse("Legacy keys should be removed by write",
+				preferences.contains(key + "_last_error_message"));
+		AUSyncerStatus status = mPreference.getLastStatus(AUTHORITY_URI);
+		assertTrue(status.isNoInternetConnection());
+		assertThat("time of last download should be kept",
+				status.getLastDownloaded(), equalTo(1000L));
+	}
+
 }
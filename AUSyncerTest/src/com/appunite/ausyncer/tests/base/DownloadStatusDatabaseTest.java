@@ -0,0 +1,95 @@
+package com.appunite.ausyncer.tests.base;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.appunite.syncer.AUSyncerStatus;
+import com.appunite.syncer.DownloadStatusDatabase;
+
+public class DownloadStatusDatabaseTest extends AndroidTestCase {
+
+	private DownloadStatusDatabase mDatabase;
+	private Uri AUTHORITY_URI;
+	private Uri AUTHORITY_URI2;
+
+	public DownloadStatusDatabaseTest() {
+		setName("DownloadStatusDatabaseTest");
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDatabase = new DownloadStatusDatabase(mContext);
+		mDatabase.clear();
+
+		AUTHORITY_URI = Uri.parse("content://com.appunite.syncer.test");
+		AUTHORITY_URI2 = Uri.parse("content://com.appunite.syncer.test2");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDatabase.close();
+		super.tearDown();
+	}
+
+	public void testForStartingPoint() {
+		assertThat("At start point status should be never downloaded",
+				mDatabase.getLastStatus(AUTHORITY_URI),
+				equalTo(AUSyncerStatus.statusNeverDownloaded()));
+	}
+
+	public void testForSaving() {
+		AUSyncerStatus statusSuccess = AUSyncerStatus.statusSuccess();
+		mDatabase.setLastStatus(AUTHORITY_URI, statusSuccess);
+		assertThat(mDatabase.getLastStatus(AUTHORITY_URI),
+				equalTo(statusSuccess));
+		assertThat(mDatabase.getLastStatus(AUTHORITY_URI).getStatusTimeMs(),
+				equalTo(statusSuccess.getStatusTimeMs()));
+	}
+
+	public void testErrorKeepsLastDownloaded() {
+		AUSyncerStatus statusSuccess = AUSyncerStatus.statusSuccess();
+		mDatabase.setLastStatus(AUTHORITY_URI, statusSuccess);
+		mDatabase.setLastStatus(AUTHORITY_URI,
+				AUSyncerStatus.statusInternalIssue());
+
+		AUSyncerStatus status = mDatabase.getLastStatus(AUTHORITY_URI);
+		assertTrue("Last status should be error", status.isInternalIssue());
+		assertThat("Error should keep time of last download",
+				status.getLastDownloaded(),
+				equalTo(statusSuccess.getLastDownloaded()));
+	}
+
+	public void testHttpErrorIsSaved() {
+		mDatabase.setLastStatus(AUTHORITY_URI,
+				AUSyncerStatus.statusHttpError(503, 30000L));
+
+		AUSyncerStatus status = mDatabase.getLastStatus(AUTHORITY_URI);
+		assertTrue("Http error should be internal issue",
+				status.isInternalIssue());
+		assertThat(status.getHttpCode(), equalTo(503));
+		assertThat(status.getRetryAfterMs(), equalTo(30000L));
+	}
+
+	public void testBulk() {
+		AUSyncerStatus statusSuccess = AUSyncerStatus.statusSuccess();
+		AUSyncerStatus statusError = AUSyncerStatus.statusInternalIssue();
+		Map<Uri, AUSyncerStatus> statuses = new HashMap<Uri, AUSyncerStatus>();
+		statuses.put(AUTHORITY_URI, statusSuccess);
+		statuses.put(AUTHORITY_URI2, statusError);
+		mDatabase.setLastStatuses(statuses);
+
+		Uri unknown = Uri.parse("content://com.appunite.syncer.unknown");
+		List<AUSyncerStatus> read = mDatabase.getLastStatuses(Arrays.asList(
+				AUTHORITY_URI2, unknown, AUTHORITY_URI));
+		assertThat(read, equalTo(Arrays.asList(statusError,
+				AUSyncerStatus.statusNeverDownloaded(), statusSuccess)));
+	}
+}
@@ -0,0 +1,144 @@
+package com.appunite.ausyncer.tests.base;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.File;
+import java.util.Collections;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.appunite.syncer.AUSyncerStatus;
+import com.appunite.syncer.MappedDownloadStatusStore;
+
+public class MappedDownloadStatusStoreTest extends AndroidTestCase {
+
+	private File mFile;
+	private MappedDownloadStatusStore mStore;
+	private Uri AUTHORITY_URI;
+
+	public MappedDownloadStatusStoreTest() {
+		setName("MappedDownloadStatusStoreTest");
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(mContext.getFilesDir(), "test_statuses.map");
+		//noinspection ResultOfMethodCallIgnored
+		mFile.delete();
+		mStore = MappedDownloadStatusStore.open(mFile, 16);
+
+		AUTHORITY_URI = Uri.parse("content://com.appunite.syncer.test");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStore.close();
+		//noinspection ResultOfMethodCallIgnored
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testForStartingPoint() {
+		assertThat("At start point status should be never downloaded",
+				mStore.getLastStatus(AUTHORITY_URI),
+				equalTo(AUSyncerStatus.statusNeverDownloaded()));
+	}
+
+	public void testForSaving() {
+		AUSyncerStatus statusError = AUSyncerStatus.statusInternalIssue("error");
+		mStore.setLastStatus(AUTHORITY_URI, statusError);
+		AUSyncerStatus status = mStore.getLastStatus(AUTHORITY_URI);
+		assertThat(status, equalTo(statusError));
+		assertThat(status.getStatusTimeMs(),
+				equalTo(statusError.getStatusTimeMs()));
+		assertThat(status.getMsgObjectOrNull().toString(),
+				equalTo(statusError.getMsgObjectOrNull().toString()));
+	}
+
+	public void testStoreIsSharedInProcess() {
+		MappedDownloadStatusStore other = MappedDownloadStatusStore.open(
+				mFile, 16);
+		assertThat("file lock is held by process, so store is opened once",
+				other, sameInstance(mStore));
+		AUSyncerStatus statusSuccess = AUSyncerStatus.statusSuccess();
+		other.setLastStatus(AUTHORITY_URI, statusSuccess);
+		other.close();
+
+		// store is still opened by first opener
+		mStore.setLastStatus(Uri.withAppendedPath(AUTHORITY_URI, "1"),
+				AUSyncerStatus.statusSuccess());
+		assertThat(mStore.getLastStatus(AUTHORITY_URI).getStatusTimeMs(),
+				equalTo(statusSuccess.getStatusTimeMs()));
+	}
+
+	public void testReopenedStoreSeesSavedStatuses() {
+		AUSyncerStatus statusSuccess = AUSyncerStatus.statusSuccess();
+		mStore.setLastStatus(AUTHORITY_URI, statusSuccess);
+		mStore.close();
+
+		mStore = MappedDownloadStatusStore.open(mFile, 16);
+		assertThat(mStore.getLastStatus(AUTHORITY_URI).getStatusTimeMs(),
+				equalTo(statusSuccess.getStatusTimeMs()));
+	}
+
+	public void testFullTableGrows() {
+		File file = new File(mContext.getFilesDir(), "test_small.map");
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+		MappedDownloadStatusStore small = MappedDownloadStatusStore.open(file, 2);
+		try {
+			Uri first = Uri.withAppendedPath(AUTHORITY_URI, "1");
+			Uri second = Uri.withAppendedPath(AUTHORITY_URI, "2");
+			Uri third = Uri.withAppendedPath(AUTHORITY_URI, "3");
+			small.setLastStatus(first, AUSyncerStatus.statusSuccess());
+			small.setLastStatus(second, AUSyncerStatus.statusSuccess());
+			small.setLastStatus(third, AUSyncerStatus.statusSuccess());
+
+			assertTrue("status should not be lost when table is full", small
+					.getLastStatus(first).isSuccess());
+			assertTrue(small.getLastStatus(second).isSuccess());
+			assertTrue(small.getLastStatus(third).isSuccess());
+
+			// already stored uri could be updated
+			small.setLastStatus(first, AUSyncerStatus.statusNoInternetConnection());
+			assertTrue(small.getLastStatus(first).isNoInternetConnection());
+		} finally {
+			small.close();
+		}
+		small = MappedDownloadStatusStore.open(file, 2);
+		try {
+			assertThat("grown file should be reopened with its capacity", small
+					.getAllLastStatuses().size(), equalTo(3));
+		} finally {
+			small.close();
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+		}
+	}
+
+	public void testRemovedSlotsAreReused() {
+		long length = mFile.length();
+		for (int i = 0; i < 100; i++) {
+			Uri uri = Uri.withAppendedPath(AUTHORITY_URI, String.valueOf(i));
+			mStore.setLastStatus(uri, AUSyncerStatus.statusSuccess());
+			assertThat(mStore.evict(System.currentTimeMillis() + 1000L, -1,
+					Collections.<Uri> emptyList()), equalTo(1));
+		}
+		assertThat("removed slots should be cleared instead of growing file",
+				mFile.length(), equalTo(length));
+		mStore.setLastStatus(AUTHORITY_URI, AUSyncerStatus.statusSuccess());
+		assertTrue(mStore.getLastStatus(AUTHORITY_URI).isSuccess());
+	}
+
+	public void testEviction() {
+		mStore.setLastStatus(AUTHORITY_URI, AUSyncerStatus.statusSuccess());
+		assertThat(mStore.evict(System.currentTimeMillis() + 1000L, -1,
+				Collections.<Uri> emptyList()), equalTo(1));
+		assertThat(mStore.getLastStatus(AUTHORITY_URI),
+				equalTo(AUSyncerStatus.statusNeverDownloaded()));
+		assertThat(mStore.getAllLastStatuses().size(), equalTo(0));
+	}
+}
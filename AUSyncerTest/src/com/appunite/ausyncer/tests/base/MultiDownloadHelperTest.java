@@ -0,0 +1,152 @@
+package com.appunite.ausyncer.tests.base;
+
+import static com.appunite.ausyncer.tests.base.Tests.assertThatWithTimeout;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.argThat;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContext;
+
+import com.appunite.ausyncer.tests.base.Tests.ValueRunnable;
+import com.appunite.syncer.AUSyncerStatus;
+import com.appunite.syncer.AbsDownloadService;
+import com.appunite.syncer.MultiDownloadHelper;
+import com.appunite.syncer.MultiDownloadHelperStatus;
+
+public class MultiDownloadHelperTest extends AndroidTestCase {
+
+	private Uri LIST_URI;
+	private Uri DETAILS_URI;
+	private MultiDownloadHelper mDownloadHelper;
+
+	@Mock
+	private MultiDownloadHelperStatus mDownloadHelperStatusMock;
+	private DownloadHelperTest.DownloadService mDownloadServiceMock;
+	@Mock
+	private MockContext mMockContext;
+
+	public MultiDownloadHelperTest() {
+		super();
+		setName("MultiDownloadHelperTest");
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		LIST_URI = Uri.parse("content://com.appunite.syncer/list");
+		DETAILS_URI = Uri.parse("content://com.appunite.syncer/details");
+		String SERVICE_ACTION_NAME = "com.appunite.syncer.ACTION_SYNC";
+
+		MockitoAnnotations.initMocks(this);
+		mDownloadServiceMock = new DownloadHelperTest.DownloadService();
+		when(mMockContext.getMainLooper()).thenReturn(Looper.getMainLooper());
+
+		setContext(mMockContext);
+		mDownloadHelper = new MultiDownloadHelper(mMockContext,
+				SERVICE_ACTION_NAME, mDownloadHelperStatusMock, Arrays.asList(
+						LIST_URI, DETAILS_URI, LIST_URI));
+	}
+
+	public void testUrisWithoutDuplicates() {
+		assertThat(mDownloadHelper.getUris(),
+				equalTo(Arrays.asList(LIST_URI, DETAILS_URI)));
+	}
+
+	public void testSingleRegistration() {
+		bind();
+
+		assertThat(mDownloadServiceMock.mCallbackUris,
+				equalTo(mDownloadHelper.getUris()));
+		verify(mMockContext, times(1)).bindService(Mockito.any(Intent.class),
+				Mockito.any(ServiceConnection.class), Mockito.anyInt());
+	}
+
+	public void testDownloadAll() throws Exception {
+		bind();
+
+		mDownloadHelper.startDownloading(null, true);
+		// mock service records the last uri of batch, request is made on
+		// background thread
+		assertThatWithTimeout(new ValueRunnable<Uri>() {
+			@Override
+			public Uri getValue() {
+				return mDownloadServiceMock.mUri;
+			}
+		}, equalTo(DETAILS_URI), 1000);
+		assertTrue(mDownloadServiceMock.mWithForce);
+		assertThat(mDownloadServiceMock.mPriority,
+				equalTo(AbsDownloadService.PRIORITY_FOREGROUND));
+	}
+
+	public void testCombinedStatus() throws RemoteException {
+		bind();
+		mDownloadHelper.updateLocalData(true, false);
+		reset(mDownloadHelperStatusMock);
+
+		AUSyncerStatus success = AUSyncerStatus.statusSuccess();
+		mDownloadServiceMock.mCallback.onTaskFinished(LIST_URI, success);
+		verify(mDownloadHelperStatusMock, timeout(1000)).onReportUriStatus(
+				LIST_URI, false, success);
+		// details are still in progress, so combined status did not change
+		verify(mDownloadHelperStatusMock, never()).onReportStatus(
+				Mockito.anyBoolean(), Mockito.anyBoolean(),
+				Mockito.anyBoolean(), Mockito.anyBoolean(),
+				Mockito.any(AUSyncerStatus.class));
+		reset(mDownloadHelperStatusMock);
+
+		AUSyncerStatus error = AUSyncerStatus.statusInternalIssue();
+		mDownloadServiceMock.mCallback.onTaskFinished(DETAILS_URI, error);
+		verify(mDownloadHelperStatusMock, timeout(1000)).onReportUriStatus(
+				DETAILS_URI, false, error);
+		verify(mDownloadHelperStatusMock, timeout(1000)).onReportStatus(true,
+				false, false, false, error);
+	}
+
+	private void bind() {
+		when(
+				mMockContext.bindService(Mockito.any(Intent.class),
+						argThat(notNullValue(ServiceConnection.class)),
+						anyInt())).thenReturn(true);
+
+		mDownloadServiceMock.mInProgress = true;
+		mDownloadHelper.onActivityResume();
+
+		ArgumentCaptor<ServiceConnection> serviceConnectionCaptor = ArgumentCaptor
+				.forClass(ServiceConnection.class);
+		verify(mMockContext).bindService(Mockito.any(Intent.class),
+				serviceConnectionCaptor.capture(), Mockito.anyInt());
+		ServiceConnection serviceConnection = serviceConnectionCaptor
+				.getValue();
+
+		// simulate bind service
+		serviceConnection.onServiceConnected(null, mDownloadServiceMock);
+		List<Uri> uris = mDownloadHelper.getUris();
+		for (Uri uri : uris) {
+			// state is read on background thread
+			verify(mDownloadHelperStatusMock, timeout(1000)).onReportUriStatus(
+					uri, true, AUSyncerStatus.statusNeverDownloaded());
+		}
+		reset(mDownloadHelperStatusMock);
+	}
+}
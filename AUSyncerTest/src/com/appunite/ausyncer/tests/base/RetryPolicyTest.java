@@ -0,0 +1,69 @@
+package com.appunite.ausyncer.tests.base;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.appunite.syncer.RetryPolicy;
+
+public class RetryPolicyTest extends AndroidTestCase {
+
+	private Random mRandom;
+
+	public RetryPolicyTest() {
+		setName("RetryPolicyTest");
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mRandom = new Random(0);
+	}
+
+	public void testNoRetry() {
+		assertFalse("NO_RETRY should not retry first attempt",
+				RetryPolicy.NO_RETRY.shouldRetry(1));
+	}
+
+	public void testMaxAttempts() {
+		RetryPolicy policy = new RetryPolicy(3, 1000, 10000, 0.0f);
+		assertTrue(policy.shouldRetry(1));
+		assertTrue(policy.shouldRetry(2));
+		assertFalse(policy.shouldRetry(3));
+	}
+
+	public void testExponentialDelayWithCap() {
+		RetryPolicy policy = new RetryPolicy(10, 1000, 5000, 0.0f);
+		assertThat(policy.getDelayMs(1, mRandom), equalTo(1000L));
+		assertThat(policy.getDelayMs(2, mRandom), equalTo(2000L));
+		assertThat(policy.getDelayMs(3, mRandom), equalTo(4000L));
+		assertThat(policy.getDelayMs(4, mRandom), equalTo(5000L));
+		assertThat(policy.getDelayMs(9, mRandom), equalTo(5000L));
+	}
+
+	public void testJitter() {
+		RetryPolicy policy = new RetryPolicy(10, 1000, 5000, 0.5f);
+		for (int i = 0; i < 100; i++) {
+			long delay = policy.getDelayMs(2, mRandom);
+			assertThat(delay, greaterThanOrEqualTo(1000L));
+			assertThat(delay, lessThanOrEqualTo(2000L));
+		}
+	}
+
+	public void testWrongArguments() {
+		try {
+			new RetryPolicy(0, 1000, 5000, 0.0f);
+			fail("maxAttempts lower than 1 should not be accepted");
+		} catch (IllegalArgumentException ignored) {
+		}
+		try {
+			new RetryPolicy(3, 1000, 5000, 1.5f);
+			fail("jitter greater than 1 should not be accepted");
+		} catch (IllegalArgumentException ignored) {
+		}
+	}
+}
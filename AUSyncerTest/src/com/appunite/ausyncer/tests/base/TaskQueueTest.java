@@ -0,0 +1,120 @@
+package com.appunite.ausyncer.tests.base;
+
+import static com.appunite.ausyncer.tests.base.Tests.assertThatWithTimeout;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.test.ServiceTestCase;
+
+import com.appunite.ausyncer.tests.DownloadService;
+import com.appunite.ausyncer.tests.base.Tests.ValueRunnable;
+import com.appunite.syncer.AbsDownloadService;
+import com.appunite.syncer.DownloadSharedPreference;
+import com.appunite.syncer.IDownloadService;
+
+public class TaskQueueTest extends ServiceTestCase<DownloadService> {
+
+	private static final Uri AUTHORITY_URI = Uri
+			.parse("content://com.example.exampleausyncer");
+
+	private DownloadService mService;
+	private IDownloadService mInterface;
+
+	public TaskQueueTest() {
+		super(DownloadService.class);
+		setName("TaskQueueTest");
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		setContext(getSystemContext());
+		new DownloadSharedPreference(getContext()).clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		DownloadService.sDeferTasksWhileOffline = false;
+		DownloadService.sBatchWakeLockTimeout = -1;
+		super.tearDown();
+	}
+
+	private void startService() {
+		// configuration is read when service is created
+		mInterface = IDownloadService.Stub.asInterface(bindService(new Intent(
+				DownloadService.ACTION_SYNC)));
+		mService = getService();
+	}
+
+	private void waitForCalls(final int calls) throws Exception {
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws Exception {
+				return mService.numberOfCalls;
+			}
+		}, equalTo(calls), 5000);
+	}
+
+	public void testDeferredTaskIsQueuedWhenConnectionIsBack()
+			throws Exception {
+		DownloadService.sDeferTasksWhileOffline = true;
+		startService();
+		mService.networkNeeded = true;
+		mService.setConnected(false);
+
+		mInterface.download(AUTHORITY_URI, null, true);
+		assertThatWithTimeout(new ValueRunnable<Boolean>() {
+			@Override
+			public Boolean getValue() throws RemoteException {
+				return mInterface.getLastStatus(AUTHORITY_URI)
+						.isNoInternetConnection();
+			}
+		}, equalTo(true), 1000);
+		assertFalse("deferred task should not be in progress",
+				mInterface.inProgress(AUTHORITY_URI));
+		assertThat("deferred task should not be executed",
+				mService.numberOfCalls, equalTo(0));
+
+		mService.setConnected(true);
+		waitForCalls(1);
+		assertThatWithTimeout(new ValueRunnable<Boolean>() {
+			@Override
+			public Boolean getValue() throws RemoteException {
+				return mInterface.getLastStatus(AUTHORITY_URI).isSuccess();
+			}
+		}, equalTo(true), 1000);
+	}
+
+	public void testBatchWakeLockCoversDrainedQueue() throws Exception {
+		DownloadService.sBatchWakeLockTimeout = 0;
+		startService();
+		mService.handleTimeMs = 100;
+
+		List<Uri> uris = new ArrayList<Uri>();
+		for (int i = 0; i < 3; i++) {
+			uris.add(Uri.withAppendedPath(AUTHORITY_URI, String.valueOf(i)));
+		}
+		mInterface.downloadAll(uris, null, true,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+		waitForCalls(3);
+
+		// wake lock is released after idle time of empty queue
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws Exception {
+				return mService.drainedTasks.size();
+			}
+		}, equalTo(1), 3000);
+		assertThat("whole queue should be drained under one wake lock",
+				mService.drainedTasks, equalTo(Arrays.asList(3)));
+		assertThat(mService.lastDrainHeldTimeMs,
+				greaterThanOrEqualTo(3 * mService.handleTimeMs));
+	}
+}
@@ -0,0 +1,109 @@
+package com.appunite.ausyncer.tests.base;
+
+import static com.appunite.ausyncer.tests.base.Tests.assertThatWithTimeout;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.test.ServiceTestCase;
+
+import com.appunite.ausyncer.tests.DownloadService;
+import com.appunite.ausyncer.tests.base.Tests.ValueRunnable;
+import com.appunite.syncer.AbsDownloadService;
+import com.appunite.syncer.DownloadSharedPreference;
+import com.appunite.syncer.IDownloadService;
+
+public class WorkerPoolTest extends ServiceTestCase<DownloadService> {
+
+	private static final Uri AUTHORITY_URI = Uri
+			.parse("content://com.example.exampleausyncer");
+
+	private DownloadService mService;
+	private IDownloadService mInterface;
+
+	public WorkerPoolTest() {
+		super(DownloadService.class);
+		setName("WorkerPoolTest");
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		setContext(getSystemContext());
+		new DownloadSharedPreference(getContext()).clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		DownloadService.sMaxConcurrentTasks = AbsDownloadService.DEFAULT_MAX_CONCURRENT_TASKS;
+		DownloadService.sMaxConcurrentTasksInGroup = Integer.MAX_VALUE;
+		super.tearDown();
+	}
+
+	private void startService(int maxConcurrentTasks,
+			int maxConcurrentTasksInGroup) {
+		// limits are read when service is created
+		DownloadService.sMaxConcurrentTasks = maxConcurrentTasks;
+		DownloadService.sMaxConcurrentTasksInGroup = maxConcurrentTasksInGroup;
+		mInterface = IDownloadService.Stub.asInterface(bindService(new Intent(
+				DownloadService.ACTION_SYNC)));
+		mService = getService();
+	}
+
+	private static List<Uri> uris(String path, int count) {
+		List<Uri> uris = new ArrayList<Uri>(count);
+		for (int i = 0; i < count; i++) {
+			uris.add(AUTHORITY_URI.buildUpon().appendPath(path)
+					.appendPath(String.valueOf(i)).build());
+		}
+		return uris;
+	}
+
+	private void waitForCalls(final int calls) throws Exception {
+		assertThatWithTimeout(new ValueRunnable<Integer>() {
+			@Override
+			public Integer getValue() throws Exception {
+				return mService.numberOfCalls;
+			}
+		}, equalTo(calls), 5000);
+	}
+
+	public void testSingleWorkerByDefault() throws Exception {
+		startService(AbsDownloadService.DEFAULT_MAX_CONCURRENT_TASKS,
+				Integer.MAX_VALUE);
+
+		mInterface.downloadAll(uris("pool", 3), null, true,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+		waitForCalls(3);
+		assertThat(mService.getMaxRunning(), equalTo(1));
+	}
+
+	public void testConcurrencyLimit() throws Exception {
+		startService(2, Integer.MAX_VALUE);
+
+		mInterface.downloadAll(uris("pool", 6), null, true,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+		waitForCalls(6);
+		assertThat("tasks should run on all workers but never more",
+				mService.getMaxRunning(), equalTo(2));
+	}
+
+	public void testGroupLimit() throws Exception {
+		startService(3, 1);
+
+		List<Uri> uris = new ArrayList<Uri>(uris(DownloadService.GROUP_PATH,
+				3));
+		uris.addAll(uris("pool", 3));
+		mInterface.downloadAll(uris, null, true,
+				AbsDownloadService.PRIORITY_FOREGROUND);
+		waitForCalls(6);
+		assertThat("group should be capped", mService.getMaxRunningInGroup(),
+				equalTo(1));
+		assertThat("other tasks should run next to group",
+				mService.getMaxRunning(), greaterThan(1));
+	}
+}
@@ -30,6 +30,7 @@ import android.os.RemoteException;
 
 import com.appunite.syncer.AUSyncerStatus;
 import com.appunite.syncer.AbsDownloadService;
+import com.appunite.syncer.RetryPolicy;
 import com.example.exampleausyncer.ApiConsts;
 import com.example.exampleausyncer.provider.ExampleContract;
 
@@ -116,4 +117,31 @@ public class DownloadService extends AbsDownloadService {
 		return 30 * 1000; // 30s
 	}
 
+	@Override
+	protected RetryPolicy retryPolicy(Uri uri, Bundle bundle) {
+		// 3 attempts, first retry after 2s, then 4s, up to 30s
+		return new RetryPolicy(3, 2000, 30000, 0.5f);
+	}
+
+	@Override
+	protected int maxConcurrentTasks() {
+		return 3;
+	}
+
+	@Override
+	protected int taskGroup(Uri uri, Bundle bundle) {
+		return sURIMatcher.match(uri);
+	}
+
+	@Override
+	protected int maxConcurrentTasksInGroup(int group) {
+		switch (group) {
+		case EXAMPLE:
+			// list is heavy, do not download it twice in the same time
+			return 1;
+		default:
+			return super.maxConcurrentTasksInGroup(group);
+		}
+	}
+
 }